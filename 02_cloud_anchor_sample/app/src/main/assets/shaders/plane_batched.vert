@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+uniform mat4 u_ViewProjection;
+
+attribute vec4 a_PositionAlpha; // (x, y, z, alpha) in world space
+attribute vec3 a_Normal;
+attribute vec4 a_PlaneUvMatrix; // 2x2 uv rotation matrix, column-major
+
+varying vec3 v_TexCoordAlpha;
+
+void main() {
+   // Construct two vectors that are orthogonal to the normal.
+   // This arbitrary choice is not co-linear with either horizontal
+   // or vertical plane normals.
+   const vec3 arbitrary = vec3(1.0, 1.0, 0.0);
+   vec3 vec_u = normalize(cross(a_Normal, arbitrary));
+   vec3 vec_v = normalize(cross(a_Normal, vec_u));
+
+   // Project vertices in world frame onto vec_u and vec_v.
+   vec2 uv = vec2(dot(a_PositionAlpha.xyz, vec_u), dot(a_PositionAlpha.xyz, vec_v));
+   mat2 planeUvMatrix = mat2(a_PlaneUvMatrix.xy, a_PlaneUvMatrix.zw);
+   v_TexCoordAlpha = vec3(planeUvMatrix * uv, a_PositionAlpha.w);
+   gl_Position = u_ViewProjection * vec4(a_PositionAlpha.xyz, 1.0);
+}
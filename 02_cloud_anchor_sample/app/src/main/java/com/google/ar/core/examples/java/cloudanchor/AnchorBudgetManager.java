@@ -0,0 +1,401 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import java.util.ArrayList;
+
+/**
+ * Keeps the number of live ARCore anchors within a budget, by streaming cloud anchors in and out
+ * depending on their distance to the camera.
+ *
+ * <p>When there are more live anchors than the budget allows, the farthest anchors that have a
+ * cloud anchor ID are detached and removed from the scene, along with the children placed on
+ * them. Their cloud anchor ID, model, children and last known position are kept, and they are
+ * resolved again through the {@link ResolveScheduler} once the camera comes back within a radius
+ * of them. Anchors that were never hosted are never detached, as they could not be brought back.
+ */
+class AnchorBudgetManager {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + AnchorBudgetManager.class.getSimpleName();
+  private static final long UPDATE_INTERVAL_MS = 500;
+  private static final long RETRY_DELAY_MS = 5000;
+  // A detached object only takes the place of a live one that is this many times farther, so that
+  // objects do not keep swapping when the camera stands between them.
+  private static final float SWAP_DISTANCE_RATIO = 1.5f;
+  // Objects detached this long ago rank half as recent as those detached just now.
+  private static final float RECENCY_HALF_LIFE_MS = 60000;
+
+  /** Listener for anchors that were detached or resolved again. */
+  interface StreamListener {
+
+    /**
+     * Invoked when an anchor and its children have been removed from the scene, with the lock
+     * guarding the scene store held.
+     */
+    void onAnchorDetached(String cloudAnchorId);
+
+    /** Invoked when the anchor of a detached object has been resolved again. */
+    void onObjectStreamedIn(Anchor anchor, DetachedObject object);
+  }
+
+  /** An anchor that was detached, with the model drawn on it and the children placed on it. */
+  static final class DetachedObject {
+    final String cloudAnchorId;
+    /** The model drawn on the anchor, or {@link SceneStore#NO_MODEL} for roots. */
+    final int modelIndex;
+    final int[] childModelIndices;
+    /** The poses of the children relative to the anchor, 7 floats per child. */
+    final float[] childOffsetPoses;
+    final float x;
+    final float y;
+    final float z;
+    final long detachTimeMillis;
+    boolean resolving;
+    long retryTimeMillis;
+
+    DetachedObject(
+        String cloudAnchorId,
+        int modelIndex,
+        int[] childModelIndices,
+        float[] childOffsetPoses,
+        float x,
+        float y,
+        float z,
+        long detachTimeMillis) {
+      this.cloudAnchorId = cloudAnchorId;
+      this.modelIndex = modelIndex;
+      this.childModelIndices = childModelIndices;
+      this.childOffsetPoses = childOffsetPoses;
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      this.detachTimeMillis = detachTimeMillis;
+    }
+  }
+
+  private final ResolveScheduler resolveScheduler;
+  private final AnchorRegistry anchorRegistry;
+  private final int maxLiveAnchors;
+  private final float streamInRadiusSquared;
+  private final StreamListener listener;
+
+  private final ArrayList<DetachedObject> detachedObjects = new ArrayList<>();
+  private int pendingResolveCount;
+  // Incremented by clear(), so that resolves started before are dropped.
+  private int generation;
+  private long nextUpdateMillis;
+
+  /**
+   * Creates a manager.
+   *
+   * @param maxLiveAnchors The number of anchors kept alive, including those being resolved.
+   *     Children have no anchor of their own and do not count.
+   * @param streamInRadiusMeters Detached objects within this distance of the camera are resolved
+   *     again.
+   */
+  AnchorBudgetManager(
+      ResolveScheduler resolveScheduler,
+      AnchorRegistry anchorRegistry,
+      int maxLiveAnchors,
+      float streamInRadiusMeters,
+      StreamListener listener) {
+    this.resolveScheduler = resolveScheduler;
+    this.anchorRegistry = anchorRegistry;
+    this.maxLiveAnchors = maxLiveAnchors;
+    this.streamInRadiusSquared = streamInRadiusMeters * streamInRadiusMeters;
+    this.listener = listener;
+  }
+
+  /** Returns the number of objects that are detached or being resolved again. */
+  synchronized int getDetachedCount() {
+    return detachedObjects.size();
+  }
+
+  /**
+   * Appends the detached objects to {@code outRoomAnchors}, each anchor as a root with its
+   * children, so that they are shared along with the live ones.
+   */
+  synchronized void appendDetachedObjects(RoomAnchors outRoomAnchors) {
+    for (int i = 0; i < detachedObjects.size(); ++i) {
+      DetachedObject object = detachedObjects.get(i);
+      int rootIndex = outRoomAnchors.addRoot(object.cloudAnchorId);
+      if (object.modelIndex != SceneStore.NO_MODEL) {
+        outRoomAnchors.addObject(rootIndex, object.modelIndex, RoomAnchors.IDENTITY_POSE, 0);
+      }
+      for (int c = 0; c < object.childModelIndices.length; ++c) {
+        outRoomAnchors.addObject(
+            rootIndex,
+            object.childModelIndices[c],
+            object.childOffsetPoses,
+            c * PoseSmoother.FLOATS_PER_POSE);
+      }
+    }
+  }
+
+  /**
+   * Forgets a detached anchor, e.g. one removed from the room being resolved. A resolve of it that
+   * is in progress is dropped when it completes.
+   */
+  synchronized void forget(String cloudAnchorId) {
+    for (int i = detachedObjects.size() - 1; i >= 0; --i) {
+      DetachedObject object = detachedObjects.get(i);
+      if (object.cloudAnchorId.equals(cloudAnchorId)) {
+        if (object.resolving) {
+          pendingResolveCount--;
+        }
+        detachedObjects.remove(i);
+      }
+    }
+  }
+
+  /** Forgets the detached objects. Resolves that are in progress are dropped when they complete. */
+  synchronized void clear() {
+    detachedObjects.clear();
+    pendingResolveCount = 0;
+    generation++;
+  }
+
+  /**
+   * Detaches and resolves objects to keep the nearest ones alive within the budget. Should be
+   * called on every frame with the lock guarding {@code store}; work is only done a few times per
+   * second.
+   */
+  synchronized void update(Pose cameraPose, SceneStore store, SceneBvh bvh) {
+    long now = SystemClock.uptimeMillis();
+    if (now < nextUpdateMillis) {
+      return;
+    }
+    nextUpdateMillis = now + UPDATE_INTERVAL_MS;
+    float cameraX = cameraPose.tx();
+    float cameraY = cameraPose.ty();
+    float cameraZ = cameraPose.tz();
+
+    // Detach the farthest anchors while over budget.
+    while (store.getAnchorCount() + pendingResolveCount > maxLiveAnchors) {
+      int farthest = findFarthestDetachable(store, cameraX, cameraY, cameraZ, 0);
+      if (farthest < 0) {
+        break;
+      }
+      detach(store, bvh, farthest, now);
+    }
+
+    // Resolve the nearest detached objects within the radius, making room if they are much nearer
+    // than the farthest live object.
+    while (true) {
+      DetachedObject nearest = findNearestDetached(cameraX, cameraY, cameraZ, now);
+      if (nearest == null) {
+        break;
+      }
+      if (store.getAnchorCount() + pendingResolveCount >= maxLiveAnchors) {
+        float distance =
+            (float)
+                Math.sqrt(
+                    distanceSquared(nearest.x, nearest.y, nearest.z, cameraX, cameraY, cameraZ));
+        int farthest =
+            findFarthestDetachable(
+                store, cameraX, cameraY, cameraZ, distance * SWAP_DISTANCE_RATIO);
+        if (farthest < 0) {
+          break;
+        }
+        detach(store, bvh, farthest, now);
+      }
+      resolve(nearest, now);
+    }
+  }
+
+  /**
+   * Returns the dense index of the farthest object that can be detached and is farther than {@code
+   * minDistance}, or -1 if there is none.
+   */
+  private static int findFarthestDetachable(
+      SceneStore store, float cameraX, float cameraY, float cameraZ, float minDistance) {
+    float[] poseMatrices = store.getPoseMatrices();
+    int farthest = -1;
+    float farthestDistanceSquared = minDistance * minDistance;
+    for (int i = 0; i < store.size(); ++i) {
+      if (!isDetachable(store, i)) {
+        continue;
+      }
+      int offset = i * SceneStore.FLOATS_PER_MATRIX;
+      float d =
+          distanceSquared(
+              poseMatrices[offset + 12],
+              poseMatrices[offset + 13],
+              poseMatrices[offset + 14],
+              cameraX,
+              cameraY,
+              cameraZ);
+      if (d > farthestDistanceSquared) {
+        farthestDistanceSquared = d;
+        farthest = i;
+      }
+    }
+    return farthest;
+  }
+
+  /**
+   * Returns whether an object can be brought back after detaching it. Children are detached along
+   * with their root, which holds the anchor.
+   */
+  private static boolean isDetachable(SceneStore store, int index) {
+    if (store.getAnchor(index) == null) {
+      return false;
+    }
+    byte cloudState = store.getCloudState(index);
+    return (cloudState == SceneStore.CLOUD_STATE_HOSTED
+            || cloudState == SceneStore.CLOUD_STATE_RESOLVED)
+        && store.getCloudAnchorId(index) != null
+        // The pose is only known once the anchor has tracked.
+        && store.getPoseMatrices()[index * SceneStore.FLOATS_PER_MATRIX + 15] != 0;
+  }
+
+  @Nullable
+  private DetachedObject findNearestDetached(
+      float cameraX, float cameraY, float cameraZ, long now) {
+    DetachedObject nearest = null;
+    float nearestDistanceSquared = streamInRadiusSquared;
+    for (int i = 0; i < detachedObjects.size(); ++i) {
+      DetachedObject object = detachedObjects.get(i);
+      if (object.resolving || now < object.retryTimeMillis) {
+        continue;
+      }
+      float d = distanceSquared(object.x, object.y, object.z, cameraX, cameraY, cameraZ);
+      if (d <= nearestDistanceSquared) {
+        nearestDistanceSquared = d;
+        nearest = object;
+      }
+    }
+    return nearest;
+  }
+
+  private void detach(SceneStore store, SceneBvh bvh, int index, long now) {
+    int childCount = 0;
+    for (int child = store.getFirstChildHandle(index); child != SceneStore.INVALID_HANDLE; ) {
+      childCount++;
+      child = store.getNextSiblingHandle(store.indexOf(child));
+    }
+    int[] childModelIndices = new int[childCount];
+    float[] childOffsetPoses = new float[childCount * PoseSmoother.FLOATS_PER_POSE];
+    int c = 0;
+    for (int child = store.getFirstChildHandle(index); child != SceneStore.INVALID_HANDLE; ) {
+      int childIndex = store.indexOf(child);
+      childModelIndices[c] = store.getModelIndex(childIndex);
+      System.arraycopy(
+          store.getOffsetPoses(),
+          childIndex * PoseSmoother.FLOATS_PER_POSE,
+          childOffsetPoses,
+          c * PoseSmoother.FLOATS_PER_POSE,
+          PoseSmoother.FLOATS_PER_POSE);
+      c++;
+      child = store.getNextSiblingHandle(childIndex);
+    }
+
+    int offset = index * SceneStore.FLOATS_PER_MATRIX;
+    float[] poseMatrices = store.getPoseMatrices();
+    String cloudAnchorId = store.getCloudAnchorId(index);
+    detachedObjects.add(
+        new DetachedObject(
+            cloudAnchorId,
+            store.getModelIndex(index),
+            childModelIndices,
+            childOffsetPoses,
+            poseMatrices[offset + 12],
+            poseMatrices[offset + 13],
+            poseMatrices[offset + 14],
+            now));
+
+    // Children first, so that none is left with a removed root.
+    int handle = store.getHandle(index);
+    while (true) {
+      int child = store.getFirstChildHandle(store.indexOf(handle));
+      if (child == SceneStore.INVALID_HANDLE) {
+        break;
+      }
+      bvh.remove(child);
+      store.remove(child);
+    }
+    anchorRegistry.release(store.getAnchor(store.indexOf(handle)));
+    bvh.remove(handle);
+    store.remove(handle);
+    listener.onAnchorDetached(cloudAnchorId);
+  }
+
+  private void resolve(DetachedObject object, long now) {
+    object.resolving = true;
+    pendingResolveCount++;
+    float recency = (float) Math.pow(0.5, (now - object.detachTimeMillis) / RECENCY_HALF_LIFE_MS);
+    resolveScheduler.request(
+        object.cloudAnchorId,
+        object.modelIndex,
+        1.0f + object.childModelIndices.length,
+        recency,
+        object.x,
+        object.y,
+        object.z,
+        0,
+        new ResolveListener(object, generation));
+  }
+
+  private static float distanceSquared(
+      float x1, float y1, float z1, float x2, float y2, float z2) {
+    float dx = x1 - x2;
+    float dy = y1 - y2;
+    float dz = z1 - z2;
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  /** Brings a detached object back into the scene once it has been resolved. */
+  private final class ResolveListener implements CloudAnchorManager.CloudAnchorResolveListener {
+    private final DetachedObject object;
+    private final int resolveGeneration;
+
+    ResolveListener(DetachedObject object, int resolveGeneration) {
+      this.object = object;
+      this.resolveGeneration = resolveGeneration;
+    }
+
+    @Override
+    public void onCloudTaskComplete(CloudAnchorManager.CloudAnchorResult result, int objectId) {
+      synchronized (AnchorBudgetManager.this) {
+        if (resolveGeneration != generation || !detachedObjects.contains(object)) {
+          anchorRegistry.release(result.anchor);
+          return;
+        }
+        pendingResolveCount--;
+        object.resolving = false;
+        if (result.cloudState.isError()) {
+          Log.w(TAG, "Could not resolve " + object.cloudAnchorId + ": " + result.cloudState);
+          object.retryTimeMillis = SystemClock.uptimeMillis() + RETRY_DELAY_MS;
+          return;
+        }
+        detachedObjects.remove(object);
+      }
+      // Called without holding this monitor, as the listener takes the scene lock.
+      listener.onObjectStreamedIn(result.anchor, object);
+    }
+
+    @Override
+    public void onShowResolveMessage() {
+      // Streaming happens in the background, without messages.
+    }
+  }
+}
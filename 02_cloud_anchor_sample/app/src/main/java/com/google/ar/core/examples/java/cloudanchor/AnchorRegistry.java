@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.TrackingState;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps track of which part of the app owns each native anchor, so that anchors are detached
+ * deterministically instead of being tracked by ARCore until the session closes.
+ *
+ * <p>Every anchor the app creates is registered with an owner, and is detached through {@link
+ * #release(Anchor)} or when its owner is released. {@link #checkForLeaks(Collection)} compares
+ * the registry with the anchors ARCore still tracks, and reports the anchors nobody owns.
+ */
+class AnchorRegistry {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + AnchorRegistry.class.getSimpleName();
+
+  /** Anchors of objects in the scene store. */
+  static final String OWNER_SCENE = "scene";
+  /** Anchors with a cloud task in progress, not yet handed to a listener. */
+  static final String OWNER_CLOUD_TASK = "cloud task";
+  /** Local anchors whose copy is being hosted. */
+  static final String OWNER_HOST_SOURCE = "host source";
+
+  private final HashMap<Anchor, String> owners = new HashMap<>();
+
+  /** Registers an anchor, or changes the owner of a registered anchor. */
+  synchronized void register(Anchor anchor, String owner) {
+    owners.put(anchor, owner);
+  }
+
+  /**
+   * Detaches an anchor and forgets it. Unregistered anchors are detached as well, while null and
+   * already detached anchors are ignored.
+   */
+  synchronized void release(@Nullable Anchor anchor) {
+    if (anchor == null) {
+      return;
+    }
+    owners.remove(anchor);
+    if (anchor.getTrackingState() != TrackingState.STOPPED) {
+      anchor.detach();
+    }
+  }
+
+  /** Detaches every anchor of an owner, and returns how many there were. */
+  synchronized int releaseOwner(String owner) {
+    int count = 0;
+    Iterator<Map.Entry<Anchor, String>> iter = owners.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<Anchor, String> entry = iter.next();
+      if (entry.getValue().equals(owner)) {
+        entry.getKey().detach();
+        iter.remove();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Detaches every registered anchor, e.g. before the session is closed. */
+  synchronized void releaseAll() {
+    for (Anchor anchor : owners.keySet()) {
+      anchor.detach();
+    }
+    owners.clear();
+  }
+
+  synchronized int size() {
+    return owners.size();
+  }
+
+  /**
+   * Reports the anchors ARCore tracks that are not registered, which leak until the session
+   * closes, and forgets the registered anchors that ARCore stopped tracking.
+   *
+   * @param sessionAnchors The anchors returned by {@code Session.getAllAnchors()}.
+   * @return The number of leaked anchors.
+   */
+  synchronized int checkForLeaks(Collection<Anchor> sessionAnchors) {
+    HashSet<Anchor> tracked = new HashSet<>();
+    ArrayList<Anchor> leaked = new ArrayList<>();
+    for (Anchor anchor : sessionAnchors) {
+      if (anchor.getTrackingState() == TrackingState.STOPPED) {
+        continue;
+      }
+      tracked.add(anchor);
+      if (!owners.containsKey(anchor)) {
+        leaked.add(anchor);
+      }
+    }
+    if (!leaked.isEmpty()) {
+      Log.w(TAG, leaked.size() + " native anchors are tracked without an owner: " + leaked);
+    }
+
+    Iterator<Map.Entry<Anchor, String>> iter = owners.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<Anchor, String> entry = iter.next();
+      if (!tracked.contains(entry.getKey())) {
+        Log.d(TAG, "An anchor owned by " + entry.getValue() + " is no longer tracked.");
+        iter.remove();
+      }
+    }
+    return leaked.size();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.opengl.Matrix;
+import com.google.ar.core.Pose;
+
+/**
+ * Extrapolates the camera pose to the time a frame is expected to be displayed, from the motion
+ * between the last two frames.
+ *
+ * <p>This only helps when virtual content is not drawn over the camera image of the same frame,
+ * e.g. on see-through displays. Over the camera feed, a predicted view would no longer line up
+ * with the background. Allocation-free, not thread safe.
+ */
+class CameraPosePredictor {
+  // Extrapolating further than this many frame intervals amplifies tracking noise too much.
+  private static final float MAX_EXTRAPOLATION_FACTOR = 2.0f;
+
+  private final long latencyNanos;
+
+  // Translation x, y, z then rotation quaternion x, y, z, w, as used by PoseSmoother.toMatrix().
+  private final float[] previousPose = new float[PoseSmoother.FLOATS_PER_POSE];
+  private final float[] currentPose = new float[PoseSmoother.FLOATS_PER_POSE];
+  private final float[] predictedPose = new float[PoseSmoother.FLOATS_PER_POSE];
+  private final float[] predictedMatrix = new float[16];
+  private long previousTimestampNanos;
+
+  /** @param latencyNanos The time between a frame's timestamp and its display. */
+  CameraPosePredictor(long latencyNanos) {
+    this.latencyNanos = latencyNanos;
+  }
+
+  /**
+   * Writes the view matrix of the camera, predicted at the display time of the frame.
+   *
+   * @param cameraPose The display oriented pose of the camera.
+   * @param timestampNanos The timestamp of the frame.
+   */
+  void getPredictedViewMatrix(Pose cameraPose, long timestampNanos, float[] outViewMatrix) {
+    cameraPose.getTranslation(currentPose, 0);
+    cameraPose.getRotationQuaternion(currentPose, 3);
+    long deltaNanos = timestampNanos - previousTimestampNanos;
+    if (previousTimestampNanos == 0 || deltaNanos <= 0) {
+      System.arraycopy(currentPose, 0, predictedPose, 0, PoseSmoother.FLOATS_PER_POSE);
+    } else {
+      float factor = Math.min((float) latencyNanos / deltaNanos, MAX_EXTRAPOLATION_FACTOR);
+      extrapolate(factor);
+    }
+    if (deltaNanos != 0) {
+      System.arraycopy(currentPose, 0, previousPose, 0, PoseSmoother.FLOATS_PER_POSE);
+      previousTimestampNanos = timestampNanos;
+    }
+
+    PoseSmoother.toMatrix(predictedPose, 0, predictedMatrix, 0);
+    Matrix.invertM(outViewMatrix, 0, predictedMatrix, 0);
+  }
+
+  /** Continues the motion from the previous to the current pose, {@code factor} times further. */
+  private void extrapolate(float factor) {
+    for (int i = 0; i < 3; ++i) {
+      predictedPose[i] = currentPose[i] + factor * (currentPose[i] - previousPose[i]);
+    }
+
+    // delta = current * conjugate(previous), the rotation over the last frame.
+    float cx = currentPose[3];
+    float cy = currentPose[4];
+    float cz = currentPose[5];
+    float cw = currentPose[6];
+    float px = -previousPose[3];
+    float py = -previousPose[4];
+    float pz = -previousPose[5];
+    float pw = previousPose[6];
+    float dx = cw * px + cx * pw + cy * pz - cz * py;
+    float dy = cw * py - cx * pz + cy * pw + cz * px;
+    float dz = cw * pz + cx * py - cy * px + cz * pw;
+    float dw = cw * pw - cx * px - cy * py - cz * pz;
+    if (dw < 0) {
+      dx = -dx;
+      dy = -dy;
+      dz = -dz;
+      dw = -dw;
+    }
+
+    // Scale the angle of delta by the factor.
+    float sinHalfAngle = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    if (sinHalfAngle < 1e-6f) {
+      System.arraycopy(currentPose, 3, predictedPose, 3, 4);
+      return;
+    }
+    float halfAngle = (float) Math.atan2(sinHalfAngle, dw) * factor;
+    float scale = (float) Math.sin(halfAngle) / sinHalfAngle;
+    dx *= scale;
+    dy *= scale;
+    dz *= scale;
+    dw = (float) Math.cos(halfAngle);
+
+    // predicted = delta * current.
+    predictedPose[3] = dw * cx + dx * cw + dy * cz - dz * cy;
+    predictedPose[4] = dw * cy - dx * cz + dy * cw + dz * cx;
+    predictedPose[5] = dw * cz + dx * cy - dy * cx + dz * cw;
+    predictedPose[6] = dw * cw - dx * cx - dy * cy - dz * cz;
+  }
+}
@@ -21,15 +21,18 @@ import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.opengl.Matrix;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.DialogFragment;
 import com.google.ar.core.Anchor;
@@ -44,6 +47,7 @@ import com.google.ar.core.Plane;
 import com.google.ar.core.Point;
 import com.google.ar.core.Point.OrientationMode;
 import com.google.ar.core.PointCloud;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
 import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingState;
@@ -51,21 +55,29 @@ import com.google.ar.core.examples.java.cloudanchor.PrivacyNoticeDialogFragment.
 import com.google.ar.core.examples.java.cloudanchor.PrivacyNoticeDialogFragment.NoticeDialogListener;
 import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
+import com.google.ar.core.examples.java.common.helpers.FeaturePointMap;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.helpers.TrackingStateHelper;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.GlUploadScheduler;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMode;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
+import com.google.ar.core.examples.java.common.rendering.PointCloudFilter;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
+import com.google.ar.core.examples.java.common.rendering.ShaderVariantRegistry;
+import com.google.ar.core.examples.java.common.rendering.TriangleMesh;
+import com.google.ar.core.examples.java.common.utils.IntArrayList;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.common.base.Preconditions;
 import com.google.firebase.database.DatabaseError;
+import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.sql.Array;
 import java.util.ArrayList;
 
@@ -92,12 +104,19 @@ public class CloudAnchorActivity extends AppCompatActivity
   // Rendering. The Renderers are created here, and initialized when the GL surface is created.
   private GLSurfaceView surfaceView;
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
+  private final ShaderVariantRegistry shaderVariantRegistry = new ShaderVariantRegistry();
+
+  // Time each frame may spend uploading textures and buffers, so model loads never stall a frame.
+  private static final float UPLOAD_BUDGET_MS = 4.0f;
+  private final GlUploadScheduler uploadScheduler = new GlUploadScheduler(UPLOAD_BUDGET_MS);
 
 
 //  private final ObjectRenderer virtualObject = new ObjectRenderer();
 //  private final ObjectRenderer virtualObjectShadow = new ObjectRenderer();
   private ArrayList<ObjectRenderer> virtualObjectList = new ArrayList<ObjectRenderer>();
   private ArrayList<ObjectRenderer> virtualObjectShadowList = new ArrayList<ObjectRenderer>();
+  // Drawn above the anchors waiting to be hosted, colored by the feature map quality.
+  private final ObjectRenderer mapQualityBar = new ObjectRenderer();
 
   final String[][] modelFileNames = {
           {"models/tree.obj", "models/default_diffuse.png"},
@@ -129,18 +148,105 @@ public class CloudAnchorActivity extends AppCompatActivity
   };
 
 
-  private ArrayList<Integer> objectIndexQueue = new ArrayList<Integer>();
-
 
+  // Only the most relevant planes are drawn, ranked by their size and distance.
+  private static final int MAX_DRAWN_PLANES = 16;
   private final PlaneRenderer planeRenderer = new PlaneRenderer();
   private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+  // Drops low-confidence points and keeps one point per 2cm voxel before upload.
+  private static final float POINT_CLOUD_MIN_CONFIDENCE = 0.3f;
+  private static final float POINT_CLOUD_VOXEL_SIZE_M = 0.02f;
+  private static final int POINT_CLOUD_MAX_POINTS = 2000;
+  private final PointCloudFilter pointCloudFilter =
+      new PointCloudFilter(
+          POINT_CLOUD_MIN_CONFIDENCE, POINT_CLOUD_VOXEL_SIZE_M, POINT_CLOUD_MAX_POINTS);
+
+  // Feature points accumulated over the session, to tell whether an area is mapped well enough
+  // to host an anchor. The capacity keeps memory flat over long sessions.
+  private static final int FEATURE_MAP_CAPACITY = 20000;
+  private static final float FEATURE_MAP_CELL_SIZE_M = 0.1f;
+  private static final float FEATURE_MAP_HALF_LIFE_S = 30.0f;
+  private static final float WELL_MAPPED_RADIUS_M = 0.3f;
+  private static final int WELL_MAPPED_MIN_POINTS = 40;
+
+  // The color the selected object is drawn with.
+  private static final float[] SELECTED_OBJECT_COLOR = {255.0f, 214.0f, 0.0f, 255.0f};
+
+  // At most this many anchors are kept alive. Farther hosted or resolved anchors are detached with
+  // the objects placed on them, and resolved again once the camera is back within the radius.
+  private static final int MAX_LIVE_ANCHORS = 32;
+
+  // A root that fails to host is hosted again from a new anchor at most this many times in all,
+  // so that the objects placed on it still get shared.
+  private static final int MAX_ROOT_HOST_ATTEMPTS = 3;
+  // A root that still fails to resolve with a transient error once the cloud manager gave up is
+  // requested again after this delay, which doubles each time, at most this many times.
+  private static final long ROOT_RESOLVE_RETRY_DELAY_MS = 30000;
+  private static final int MAX_ROOT_RESOLVE_RETRIES = 3;
+  private static final float STREAM_IN_RADIUS_M = 10.0f;
+
+  // At most this many resolves run at the same time, the most promising first. Resolves of
+  // anchors the user walked this far away from give their place to better ranked ones.
+  private static final int MAX_CONCURRENT_RESOLVES = 8;
+  private static final float RESOLVE_PREEMPT_DISTANCE_M = 1.5f * STREAM_IN_RADIUS_M;
+
+  // Objects are placed relative to a few hosted root anchors, and a new root is only hosted when
+  // an object is placed farther than this from every root.
+  private static final boolean HIERARCHICAL_ANCHORING = true;
+  private static final float ROOT_SPAWN_DISTANCE_M = 3.0f;
+  // Roots are not drawn, the color is unused.
+  private static final float[] ROOT_COLOR = new float[SceneStore.FLOATS_PER_COLOR];
+
+  // How often the anchors tracked by ARCore are compared with the anchors the app owns.
+  private static final long LEAK_CHECK_INTERVAL_MS = 10000;
+
+  // Hosts start in bursts of a few, then at a steady rate, with a few at a time, so that placing
+  // objects quickly does not exhaust the quota. Taps this close to a pending host are ignored.
+  private static final float HOSTS_PER_SECOND = 0.5f;
+  private static final int HOST_BURST_SIZE = 3;
+  private static final int MAX_CONCURRENT_HOSTS = 2;
+  private static final float DUPLICATE_PLACEMENT_RADIUS_M = 0.05f;
+  private static final long METRICS_LOG_INTERVAL_MS = 10000;
+  private static final String HOST_JOURNAL_FILE_NAME = "host_journal";
+  // Hosts wait for the area to be mapped well enough, but no longer than this.
+  private static final long HOSTING_GATE_TIMEOUT_MS = 15000;
+  // The quality bar floats this far above an anchor waiting to be hosted.
+  private static final float MAP_QUALITY_BAR_OFFSET_M = 0.25f;
+  // The colors of the quality bar, indexed by Session.FeatureMapQuality ordinal.
+  private static final float[][] MAP_QUALITY_COLORS = {
+    {244.0f, 67.0f, 54.0f, 255.0f}, // INSUFFICIENT
+    {255.0f, 193.0f, 7.0f, 255.0f}, // SUFFICIENT
+    {76.0f, 175.0f, 80.0f, 255.0f}, // GOOD
+  };
+
+  // Anchor pose refinements are eased in with a One-Euro filter rather than snapped to.
+  private static final float SMOOTHING_MIN_CUTOFF_HZ = 1.0f;
+  private static final float SMOOTHING_POSITION_BETA = 10.0f;
+  private static final float SMOOTHING_ROTATION_BETA = 2.0f;
+  private static final float SMOOTHING_DERIVATIVE_CUTOFF_HZ = 1.0f;
+
+  // Predicting the camera pose to display time only suits see-through displays: over the camera
+  // image the virtual content would no longer line up with the background, so it is off here.
+  private static final boolean PREDICT_CAMERA_POSE = false;
+  private static final long DISPLAY_LATENCY_NS = 33_000_000L;
+  private final CameraPosePredictor cameraPosePredictor =
+      new CameraPosePredictor(DISPLAY_LATENCY_NS);
+  private final FeaturePointMap featurePointMap =
+      new FeaturePointMap(
+          FEATURE_MAP_CAPACITY,
+          FEATURE_MAP_CELL_SIZE_M,
+          FEATURE_MAP_HALF_LIFE_S,
+          POINT_CLOUD_MIN_CONFIDENCE);
 
   private boolean installRequested;
 
   // Temporary matrices allocated here to reduce number of allocations for each frame.
-  private final ArrayList<float[]> anchorMatrixList = new ArrayList<float[]>(16);
   private final float[] viewMatrix = new float[16];
   private final float[] projectionMatrix = new float[16];
+  private final float[] colorCorrectionRgba = new float[4];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] shadowLocalBounds = new float[6];
+  private final float[] barModelMatrix = new float[16];
 
   // Locks needed for synchronization
   private final Object singleTapLock = new Object();
@@ -176,9 +282,43 @@ public class CloudAnchorActivity extends AppCompatActivity
 
   private Session session;
 
+  // Placed objects, with their anchors, models and cloud state.
+  @GuardedBy("anchorLock")
+  private final SceneStore sceneStore = new SceneStore();
+
+  // World-space bounds of the placed objects, for culling. Refitted from the scene store.
   @GuardedBy("anchorLock")
-  private ArrayList<Anchor> anchors = new ArrayList<Anchor>();
-  private ArrayList<String> cloudAnchors = new ArrayList<String>();
+  private final SceneBvh sceneBvh = new SceneBvh();
+
+  // The local bounds of each model and its shadow, 6 floats per model index.
+  private float[] modelLocalBounds = new float[0];
+  // The triangles of each model, for picking.
+  private TriangleMesh[] modelMeshes = new TriangleMesh[0];
+
+  private final ObjectPicker objectPicker = new ObjectPicker();
+
+  // The object last selected by a tap, or SceneStore.INVALID_HANDLE.
+  @GuardedBy("anchorLock")
+  private int selectedHandle = SceneStore.INVALID_HANDLE;
+
+  // Reused when sharing the hosted anchors in Firebase. Only accessed on the UI thread.
+  private final RoomAnchors sharedRoomAnchors = new RoomAnchors();
+  private final float[] offsetPose = new float[PoseSmoother.FLOATS_PER_POSE];
+
+  // The content of the room being resolved, and the roots and objects of it placed so far.
+  @GuardedBy("anchorLock")
+  @Nullable
+  private RoomAnchors resolvingRoomAnchors;
+
+  @GuardedBy("anchorLock")
+  private final ResolvedAnchorTable resolvedAnchorTable = new ResolvedAnchorTable();
+
+  @GuardedBy("anchorLock")
+  private final IntArrayList removedHandles = new IntArrayList(16);
+
+  // The number of times each root was sent for hosting, by handle, once it has failed.
+  @GuardedBy("anchorLock")
+  private final SparseIntArray rootHostAttempts = new SparseIntArray();
 
 //  @GuardedBy("resolveListenerLock")
 
@@ -186,7 +326,37 @@ public class CloudAnchorActivity extends AppCompatActivity
 
   // Cloud Anchor Components.
   private FirebaseManager firebaseManager;
-  private final CloudAnchorManager cloudManager = new CloudAnchorManager();
+  // Rooms are journaled before they are written to Firebase, so that a write lost when the app
+  // dies is completed on the next start instead of hosting the anchors again.
+  private HostJournal hostJournal;
+  private final AnchorRegistry anchorRegistry = new AnchorRegistry();
+  // Cloud anchor results are handled on the UI thread, away from the rendering.
+  private final CloudAnchorManager cloudManager =
+      new CloudAnchorManager(anchorRegistry, this::runOnUiThread);
+  private final ResolveScheduler resolveScheduler =
+      new ResolveScheduler(
+          cloudManager, anchorRegistry, MAX_CONCURRENT_RESOLVES, RESOLVE_PREEMPT_DISTANCE_M);
+  private final AnchorBudgetManager anchorBudgetManager =
+      new AnchorBudgetManager(
+          resolveScheduler,
+          anchorRegistry,
+          MAX_LIVE_ANCHORS,
+          STREAM_IN_RADIUS_M,
+          new BudgetStreamListener());
+  private final HostingGate hostingGate = new HostingGate();
+  private final HostingQueue hostingQueue =
+      new HostingQueue(
+          cloudManager,
+          this::runOnUiThread,
+          this::onHostStarted,
+          hostingGate,
+          HOSTING_GATE_TIMEOUT_MS,
+          HOSTS_PER_SECOND,
+          HOST_BURST_SIZE,
+          MAX_CONCURRENT_HOSTS,
+          DUPLICATE_PLACEMENT_RADIUS_M);
+  private long lastLeakCheckMillis;
+  private long lastMetricsLogMillis;
   private HostResolveMode currentMode;
   private RoomCodeAndCloudAnchorIdListener hostListener;
 
@@ -195,6 +365,14 @@ public class CloudAnchorActivity extends AppCompatActivity
     super.onCreate(savedInstanceState);
 
     setContentView(R.layout.activity_main);
+    synchronized (anchorLock) {
+      sceneStore.setPoseSmoother(
+          new PoseSmoother(
+              SMOOTHING_MIN_CUTOFF_HZ,
+              SMOOTHING_POSITION_BETA,
+              SMOOTHING_ROTATION_BETA,
+              SMOOTHING_DERIVATIVE_CUTOFF_HZ));
+    }
 
     // Open GL로 이미지 표시하는 뷰
     surfaceView = findViewById(R.id.surfaceview);
@@ -257,6 +435,9 @@ public class CloudAnchorActivity extends AppCompatActivity
 
     // Cloud Anchor 설정
     firebaseManager = new FirebaseManager(this);
+    hostJournal =
+        new HostJournal(new File(getFilesDir(), HOST_JOURNAL_FILE_NAME), this::runOnUiThread);
+    hostJournal.open(this::onPendingRoomReplayed);
 
     // HOST, RESOLVE 모드 설정
     currentMode = HostResolveMode.NONE;
@@ -268,8 +449,12 @@ public class CloudAnchorActivity extends AppCompatActivity
   protected void onDestroy() {
     // Clear all registered listeners.
     resetMode();
+    pointCloudFilter.shutdown();
+    hostJournal.close();
 
     if (session != null) {
+      // Detach the remaining anchors before the session goes away.
+      anchorRegistry.releaseAll();
       // Explicitly close ARCore Session to release native resources.
       // Review the API reference for important considerations before calling close() in apps with
       // more complicated lifecycle requirements:
@@ -423,7 +608,10 @@ public class CloudAnchorActivity extends AppCompatActivity
 
         // 앵커 여러 개 배치
 //        if (anchor == null  &&  queuedSingleTap != null  &&  cameraTrackingState == TrackingState.TRACKING) {
-        if (queuedSingleTap != null  &&  cameraTrackingState == TrackingState.TRACKING) {
+        // Taps on a placed object select it, rather than placing another object.
+        if (queuedSingleTap != null
+            && cameraTrackingState == TrackingState.TRACKING
+            && !selectObjectAt(queuedSingleTap)) {
 
           //////////////////////////////////////////////////////////////////////////////////////////
           //////////////////////////////////////////////////////////////////////////////////////////
@@ -441,22 +629,52 @@ public class CloudAnchorActivity extends AppCompatActivity
             // Ray casting 된 포인트에 엥커 설치가 가능한 경우
             if (shouldCreateAnchorWithHit(hit)) {
 
-              // hit: HitResult 안에 좌표 등 다양한 정보 있음
-              Anchor newAnchor = hit.createAnchor();
-
               // hostListener
               Preconditions.checkNotNull(hostListener, "The host listener cannot be null.");
 
-              // 새로운 엥커를 host로 발송
-              cloudManager.hostCloudAnchor(newAnchor, hostListener);
+              if (HIERARCHICAL_ANCHORING) {
+                placeOnNearestRoot(hit);
+              } else {
+                // hit: HitResult 안에 좌표 등 다양한 정보 있음
+                Anchor newAnchor = hit.createAnchor();
+
+                // 새로운 엥커를 host로 발송
+                // The object is drawn on its local anchor until hosting starts, and then moved to
+                // the anchor being hosted, which is the one the host listener receives.
+                if (!hostingQueue.enqueue(newAnchor, hostListener)) {
+                  // A double tap on an object that is waiting to be hosted.
+                  anchorRegistry.release(newAnchor);
+                  break;
+                }
 
-              // anchor에 새로운 엥커값을 대입
-              setNewAnchor(newAnchor, selectedObjectIndex);
+                // anchor에 새로운 엥커값을 대입
+                setNewAnchor(newAnchor, selectedObjectIndex, SceneStore.CLOUD_STATE_LOCAL);
+              }
 
               if(snackbarHelper.isShowing()){
                 snackbarHelper.hide(this);
               }
-              snackbarHelper.showMessage(this, getString(R.string.snackbar_anchor_placed));
+              Pose hitPose = hit.getHitPose();
+              if (!hostingGate.isOpen()) {
+                // The host waits in the queue until the area is mapped well enough.
+                String reason =
+                    TrackingStateHelper.getTrackingFailureReasonString(frame.getCamera());
+                snackbarHelper.showMessage(
+                    this,
+                    reason.isEmpty()
+                        ? getString(R.string.snackbar_anchor_waiting_for_mapping)
+                        : reason);
+              } else if (featurePointMap.isWellMapped(
+                  hitPose.tx(),
+                  hitPose.ty(),
+                  hitPose.tz(),
+                  WELL_MAPPED_RADIUS_M,
+                  WELL_MAPPED_MIN_POINTS)) {
+                snackbarHelper.showMessage(this, getString(R.string.snackbar_anchor_placed));
+              } else {
+                snackbarHelper.showMessage(
+                    this, getString(R.string.snackbar_anchor_placed_poorly_mapped));
+              }
 
               break; // Only handle the first valid hit.
             }
@@ -467,6 +685,74 @@ public class CloudAnchorActivity extends AppCompatActivity
     }
   }
 
+  /**
+   * Places the selected model relative to the nearest root anchor. A new root is hosted at the hit
+   * only when no root is within {@link #ROOT_SPAWN_DISTANCE_M}, so the number of cloud operations
+   * grows with the area covered rather than with the number of objects.
+   */
+  @GuardedBy("anchorLock")
+  private void placeOnNearestRoot(HitResult hit) {
+    Pose hitPose = hit.getHitPose();
+    int rootHandle =
+        sceneStore.findNearestRoot(
+            hitPose.tx(), hitPose.ty(), hitPose.tz(), ROOT_SPAWN_DISTANCE_M);
+    if (rootHandle == SceneStore.INVALID_HANDLE) {
+      // The root waits in the hosting queue on its local anchor.
+      Anchor localAnchor = hit.createAnchor();
+      if (!hostingQueue.enqueue(localAnchor, hostListener)) {
+        anchorRegistry.release(localAnchor);
+        return;
+      }
+      anchorRegistry.register(localAnchor, AnchorRegistry.OWNER_SCENE);
+      rootHandle =
+          sceneStore.add(
+              localAnchor, SceneStore.NO_MODEL, 1.0f, ROOT_COLOR, SceneStore.CLOUD_STATE_LOCAL);
+      System.arraycopy(RoomAnchors.IDENTITY_POSE, 0, offsetPose, 0, offsetPose.length);
+    } else {
+      Anchor rootAnchor = sceneStore.getAnchor(sceneStore.indexOf(rootHandle));
+      Pose offset = rootAnchor.getPose().inverse().compose(hitPose);
+      offset.getTranslation(offsetPose, 0);
+      offset.getRotationQuaternion(offsetPose, 3);
+    }
+    sceneStore.addChild(
+        rootHandle,
+        selectedObjectIndex,
+        scaleFactors[selectedObjectIndex],
+        objectColors[selectedObjectIndex],
+        offsetPose,
+        0);
+    if (sceneStore.getCloudState(sceneStore.indexOf(rootHandle))
+        == SceneStore.CLOUD_STATE_HOSTED) {
+      // No cloud operation is needed, share the new object right away. Sharing runs on the UI
+      // thread, like the host callbacks, so that only one thread fills the shared room.
+      runOnUiThread(hostListener::checkAndMaybeShare);
+    }
+  }
+
+  /**
+   * Selects the placed object under a tap, if there is one. The scene index and matrices of the
+   * previous frame are used, which match what is on screen.
+   *
+   * @return Whether an object was selected.
+   */
+  @GuardedBy("anchorLock")
+  private boolean selectObjectAt(MotionEvent tap) {
+    selectedHandle =
+        objectPicker.pick(
+            tap.getX(),
+            tap.getY(),
+            viewMatrix,
+            projectionMatrix,
+            sceneStore,
+            sceneBvh,
+            modelMeshes);
+    if (selectedHandle == SceneStore.INVALID_HANDLE) {
+      return false;
+    }
+    snackbarHelper.showMessage(this, getString(R.string.snackbar_object_selected));
+    return true;
+  }
+
 
   /** Returns {@code true} if and only if the hit can be used to create an Anchor reliably. */
   private static boolean shouldCreateAnchorWithHit(HitResult hit) {
@@ -481,6 +767,19 @@ public class CloudAnchorActivity extends AppCompatActivity
     return false;
   }
 
+  /** Returns whether a resolve that failed with {@code state} may succeed when requested again. */
+  private static boolean isTransientResolveError(CloudAnchorState state) {
+    switch (state) {
+      case ERROR_INTERNAL:
+      case ERROR_HOSTING_SERVICE_UNAVAILABLE:
+      case ERROR_RESOURCE_EXHAUSTED:
+        return true;
+      default:
+        // Not authorized, unknown ID or incompatible SDK: the root stays failed.
+        return false;
+    }
+  }
+
 
   // 세션 시작 후 평면 잡았을 때 호출됨
   @Override
@@ -492,8 +791,15 @@ public class CloudAnchorActivity extends AppCompatActivity
       // Create the texture and pass it to ARCore session to be filled during update().
       backgroundRenderer.createOnGlThread(this);
       planeRenderer.createOnGlThread(this, "models/trigrid.png");
+      planeRenderer.setBatchingEnabled(true);
+      planeRenderer.setMaxDrawnPlanes(MAX_DRAWN_PLANES);
       pointCloudRenderer.createOnGlThread(this);
 
+      // Precompile every shader variant on a shared context, so that switching variants later
+      // (e.g. toggling depth occlusion) does not compile in the middle of onDrawFrame.
+      ObjectRenderer.registerShaderVariants(shaderVariantRegistry);
+      shaderVariantRegistry.warmUpOnGlThread(this);
+
       // 모델을 여러 개 바꾸는 기능
       // 모델 세팅 코드
       // virtualObject -> 배열로 관리하고 별도 idx queue를 만들어서 관리
@@ -501,11 +807,15 @@ public class CloudAnchorActivity extends AppCompatActivity
       for(int i = 0; i < modelFileNames.length; i++){
 
         ObjectRenderer virtualObject = new ObjectRenderer();
-        virtualObject.createOnGlThread(this, modelFileNames[i][0], modelFileNames[i][1]);
+        virtualObject.setShaderVariantRegistry(shaderVariantRegistry);
+        virtualObject.createOnGlThread(
+            this, modelFileNames[i][0], modelFileNames[i][1], uploadScheduler);
         virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
 
         ObjectRenderer virtualObjectShadow = new ObjectRenderer();
-        virtualObjectShadow.createOnGlThread(this, modelShadowFileNames[i][0], modelShadowFileNames[i][1]);
+        virtualObjectShadow.setShaderVariantRegistry(shaderVariantRegistry);
+        virtualObjectShadow.createOnGlThread(
+            this, modelShadowFileNames[i][0], modelShadowFileNames[i][1], uploadScheduler);
         virtualObjectShadow.setBlendMode(BlendMode.Shadow);
         virtualObjectShadow.setMaterialProperties(1.0f, 0.0f, 0.0f, 1.0f);
 
@@ -513,6 +823,16 @@ public class CloudAnchorActivity extends AppCompatActivity
         virtualObjectShadowList.add(virtualObjectShadow);
 
       }
+      modelLocalBounds = computeModelLocalBounds();
+      modelMeshes = new TriangleMesh[virtualObjectList.size()];
+      for (int i = 0; i < modelMeshes.length; ++i) {
+        modelMeshes[i] = virtualObjectList.get(i).getMesh();
+      }
+
+      mapQualityBar.setShaderVariantRegistry(shaderVariantRegistry);
+      mapQualityBar.createOnGlThread(
+          this, "models/map_quality_bar.obj", "models/default_diffuse.png", uploadScheduler);
+      mapQualityBar.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
 
     } catch (IOException ex) {
       Log.e(TAG, "Failed to read an asset file", ex);
@@ -525,6 +845,8 @@ public class CloudAnchorActivity extends AppCompatActivity
   public void onSurfaceChanged(GL10 gl, int width, int height) {
     // 화면 회전 관리
     displayRotationHelper.onSurfaceChanged(width, height);
+    planeRenderer.setViewportSize(width, height);
+    objectPicker.setViewportSize(width, height);
     GLES20.glViewport(0, 0, width, height);
   }
 
@@ -536,6 +858,9 @@ public class CloudAnchorActivity extends AppCompatActivity
     // 리셋
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
+    // Upload pending textures and buffers within this frame's budget.
+    uploadScheduler.drainOnGlThread();
+
     // 세션이 없을 때 동작 안함
     if (session == null) {
       return;
@@ -559,6 +884,11 @@ public class CloudAnchorActivity extends AppCompatActivity
 
       // Notify the cloudManager of all the updates.
       cloudManager.onUpdate();
+      resolveScheduler.update(camera.getPose());
+      hostingGate.update(session, camera);
+      hostingQueue.update();
+      checkForAnchorLeaks();
+      logMetrics();
 
       // Handle user input.
       handleTap(frame, cameraTrackingState);
@@ -569,6 +899,15 @@ public class CloudAnchorActivity extends AppCompatActivity
       // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
       trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
 
+      // Updated planes and anchors are only reported for the frame they changed in, so they are
+      // read even when the frame is not drawn. Only the planes that changed are re-triangulated,
+      // and only the anchors that changed are read back through JNI. Pose changes are then eased
+      // in over the next frames.
+      planeRenderer.updatePlanes(frame.getUpdatedTrackables(Plane.class));
+      synchronized (anchorLock) {
+        sceneStore.updatePoses(frame.getUpdatedAnchors(), frame.getTimestamp());
+      }
+
       // If not tracking, don't draw 3d objects.
       if (cameraTrackingState == TrackingState.PAUSED) {
         return;
@@ -576,74 +915,74 @@ public class CloudAnchorActivity extends AppCompatActivity
 
       // Get camera and projection matrices.
       camera.getViewMatrix(viewMatrix, 0);
+      if (PREDICT_CAMERA_POSE) {
+        cameraPosePredictor.getPredictedViewMatrix(
+            camera.getDisplayOrientedPose(), frame.getTimestamp(), viewMatrix);
+      }
       camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
 
       // Visualize tracked points.
       // Use try-with-resources to automatically release the point cloud.
+      // The points are copied for filtering on a worker thread, and the latest filtered points
+      // are uploaded once ready.
       try (PointCloud pointCloud = frame.acquirePointCloud()) {
-        pointCloudRenderer.update(pointCloud);
-        pointCloudRenderer.draw(viewMatrix, projectionMatrix);
+        pointCloudFilter.submit(pointCloud);
+        featurePointMap.update(pointCloud);
+      }
+      FloatBuffer filteredPoints = pointCloudFilter.pollFilteredPoints();
+      if (filteredPoints != null) {
+        pointCloudRenderer.update(filteredPoints);
       }
+      pointCloudRenderer.draw(viewMatrix, projectionMatrix);
 
       // Visualize planes.
-      planeRenderer.drawPlanes(
-          session.getAllTrackables(Plane.class), camera.getDisplayOrientedPose(), projectionMatrix);
+      planeRenderer.drawPlanes(camera.getDisplayOrientedPose(), projectionMatrix);
 
       // Check if the anchor can be visualized or not, and get its pose if it can be.
 
 
       // 앵커 여러 개 배치
-      // anchor를 anchorMatrix로 변환하는 과정이 있음
-      // anchor, anchorMatrix 둘 다 배열로 관리해야 함
-      boolean shouldDrawAnchor = false;
+      // Visualize anchors. The scene store is walked in dense order, and only objects whose anchor
+      // is tracking are drawn.
+      frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
       synchronized (anchorLock) {
-
-        anchorMatrixList.clear();
-
-        for (Anchor anchor : anchors){
-          if (anchor != null && anchor.getTrackingState() == TrackingState.TRACKING) {
-            // Get the current pose of an Anchor in world space. The Anchor pose is updated
-            // during calls to session.update() as ARCore refines its estimate of the world.
-
-            final float[] anchorMatrix = new float[16];
-            anchor.getPose().toMatrix(anchorMatrix, 0);
-
-            anchorMatrixList.add(anchorMatrix);
+        anchorBudgetManager.update(camera.getPose(), sceneStore, sceneBvh);
+        sceneBvh.update(sceneStore, modelLocalBounds);
+
+        // Only the objects whose bounds intersect the view frustum are visited.
+        Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+        int visibleCount = sceneBvh.queryFrustum(viewProjectionMatrix);
+        int[] visibleHandles = sceneBvh.getResults();
+
+        float[] poseMatrices = sceneStore.getPoseMatrices();
+        float[] colors = sceneStore.getColors();
+        for (int v = 0; v < visibleCount; ++v) {
+          int i = sceneStore.indexOf(visibleHandles[v]);
+          if (i < 0 || sceneStore.getTrackingState(i) != TrackingState.TRACKING) {
+            continue;
           }
-        }
-
-        if(!anchorMatrixList.isEmpty()){
-          shouldDrawAnchor = true;
-        } else {
-          shouldDrawAnchor = false;
-        }
-      }
-
-      // Visualize anchor.
-      if (shouldDrawAnchor) {
-        float[] colorCorrectionRgba = new float[4];
-        frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
-
-        // Update and draw the model and its shadow.
-//        float scaleFactor = 0.01f;
-
-        int ii = 0;
-
-        for (float[] anchorMatrix : anchorMatrixList) {
-
-          int targetObjectIndx = objectIndexQueue.get(ii);
+          int modelIndex = sceneStore.getModelIndex(i);
 
           // 해당 obj를 랜더링함
-          ObjectRenderer virtualObject = virtualObjectList.get(targetObjectIndx);
-          ObjectRenderer virtualObjectShadow = virtualObjectShadowList.get(targetObjectIndx);
-
-          virtualObject.updateModelMatrix(anchorMatrix, scaleFactors[targetObjectIndx]);
-          virtualObjectShadow.updateModelMatrix(anchorMatrix, scaleFactors[targetObjectIndx]);
-          virtualObject.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, objectColors[targetObjectIndx]);
-          virtualObjectShadow.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, objectColors[targetObjectIndx]);
-
-          ii++;
+          ObjectRenderer virtualObject = virtualObjectList.get(modelIndex);
+          ObjectRenderer virtualObjectShadow = virtualObjectShadowList.get(modelIndex);
+
+          int poseOffset = i * SceneStore.FLOATS_PER_MATRIX;
+          float[] drawColors = colors;
+          int colorOffset = i * SceneStore.FLOATS_PER_COLOR;
+          if (visibleHandles[v] == selectedHandle) {
+            drawColors = SELECTED_OBJECT_COLOR;
+            colorOffset = 0;
+          }
+          virtualObject.updateModelMatrix(poseMatrices, poseOffset, sceneStore.getScale(i));
+          virtualObjectShadow.updateModelMatrix(poseMatrices, poseOffset, sceneStore.getScale(i));
+          virtualObject.draw(
+              viewMatrix, projectionMatrix, colorCorrectionRgba, drawColors, colorOffset);
+          virtualObjectShadow.draw(
+              viewMatrix, projectionMatrix, colorCorrectionRgba, drawColors, colorOffset);
         }
+        drawMapQualityBars(poseMatrices);
+        sceneStore.clearDirtyBits();
       }
     } catch (Throwable t) {
       // Avoid crashing the application due to unhandled exceptions.
@@ -652,42 +991,145 @@ public class CloudAnchorActivity extends AppCompatActivity
   }
 
 
-  /** Sets the new value of the current anchor. Detaches the old anchor, if it was non-null. */
-  private void setNewAnchor(Anchor newAnchor, int objectIndex) {
+  /**
+   * Draws a quality bar above each anchor that waits in the hosting queue, so the user can see
+   * whether the area needs more mapping before hosting starts. Only few anchors wait at a time.
+   */
+  @GuardedBy("anchorLock")
+  private void drawMapQualityBars(float[] poseMatrices) {
+    float[] color = MAP_QUALITY_COLORS[hostingGate.getQuality().ordinal()];
+    for (int i = 0; i < sceneStore.size(); ++i) {
+      if (sceneStore.getAnchor(i) == null
+          || sceneStore.getCloudState(i) != SceneStore.CLOUD_STATE_LOCAL
+          || sceneStore.getTrackingState(i) != TrackingState.TRACKING) {
+        continue;
+      }
+      Matrix.translateM(
+          barModelMatrix,
+          0,
+          poseMatrices,
+          i * SceneStore.FLOATS_PER_MATRIX,
+          0.0f,
+          MAP_QUALITY_BAR_OFFSET_M,
+          0.0f);
+      mapQualityBar.updateModelMatrix(barModelMatrix, 1.0f);
+      mapQualityBar.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, color);
+    }
+  }
+
+  /**
+   * Adds an object of the given model on a new anchor.
+   *
+   * @return The handle of the object in the scene store.
+   */
+  private int setNewAnchor(Anchor newAnchor, int objectIndex, byte cloudState) {
+    anchorRegistry.register(newAnchor, AnchorRegistry.OWNER_SCENE);
     synchronized (anchorLock) {
       // 앵커 여러 개 배치
       // -> 기존 앵커를 detach() 하지 않고 지속적으로 유지
-//      if (anchor != null) {
-//        anchor.detach();
-//      }
-//      anchor = newAnchor;
-
-      anchors.add(newAnchor);
-      objectIndexQueue.add(objectIndex);
+      return sceneStore.add(
+          newAnchor, objectIndex, scaleFactors[objectIndex], objectColors[objectIndex], cloudState);
     }
   }
 
 
-  // cloud anchor id queue 추가
-  private void setNewCloudAnchor(Anchor newAnchor) {
-    String cloudAnchorId = newAnchor.getCloudAnchorId();
-    if(!cloudAnchorId.isEmpty()) {
-      cloudAnchors.add(newAnchor.getCloudAnchorId());
+  // cloud anchor id 추가
+  private void setNewCloudAnchor(Anchor newAnchor, @Nullable String cloudAnchorId) {
+    synchronized (anchorLock) {
+      int handle = sceneStore.findHandle(newAnchor);
+      if (cloudAnchorId == null || cloudAnchorId.isEmpty()) {
+        sceneStore.setCloudState(handle, SceneStore.CLOUD_STATE_ERROR, null);
+      } else {
+        sceneStore.setCloudState(handle, SceneStore.CLOUD_STATE_HOSTED, cloudAnchorId);
+        rootHostAttempts.delete(handle);
+      }
+    }
+  }
+
+  /** Removes every placed object from the scene store. */
+  private void resetAnchors(){
+    synchronized (anchorLock) {
+      anchorRegistry.releaseOwner(AnchorRegistry.OWNER_SCENE);
+      sceneStore.clear();
+      sceneBvh.clear();
+      selectedHandle = SceneStore.INVALID_HANDLE;
+      resolvingRoomAnchors = null;
+      resolvedAnchorTable.clear();
+      rootHostAttempts.clear();
     }
+    anchorBudgetManager.clear();
+    resolveScheduler.clear();
+    hostingQueue.clear();
   }
 
   /**
-   * ## 아래 항목을 초기화
-   * - anchors
-   * - cloudAnchors
-   * - anchorMatrixList
-   * - objectIndexQueue
+   * Logs the native anchors that ARCore still tracks but that no part of the app owns anymore.
+   * Runs every {@link #LEAK_CHECK_INTERVAL_MS}, since it walks every anchor of the session.
    */
-  private void resetAnchors(){
-    anchors.clear();
-    cloudAnchors.clear();
-    anchorMatrixList.clear();
-    objectIndexQueue.clear();
+  private void checkForAnchorLeaks() {
+    long now = SystemClock.uptimeMillis();
+    if (now - lastLeakCheckMillis < LEAK_CHECK_INTERVAL_MS) {
+      return;
+    }
+    lastLeakCheckMillis = now;
+    anchorRegistry.checkForLeaks(session.getAllAnchors());
+  }
+
+  /** Logs the state of the hosting queue every {@link #METRICS_LOG_INTERVAL_MS}. */
+  private void logMetrics() {
+    long now = SystemClock.uptimeMillis();
+    if (now - lastMetricsLogMillis < METRICS_LOG_INTERVAL_MS) {
+      return;
+    }
+    lastMetricsLogMillis = now;
+    Log.i(TAG, "Hosting queue: " + hostingQueue.getMetrics());
+  }
+
+  /** Completes a write of a room that was journaled but not stored before the app stopped. */
+  private void onPendingRoomReplayed(HostJournal.PendingRoom pendingRoom) {
+    if (!firebaseManager.isAvailable()) {
+      return;
+    }
+    Log.i(TAG, "Storing room " + pendingRoom.roomCode + " again from the journal");
+    storePendingRoom(pendingRoom);
+  }
+
+  /** Writes a journaled room to Firebase, and marks it as shared once the write completes. */
+  private void storePendingRoom(HostJournal.PendingRoom pendingRoom) {
+    firebaseManager.storeRoomAnchors(
+        pendingRoom.roomCode,
+        pendingRoom.roomAnchors,
+        () -> hostJournal.markShared(pendingRoom));
+  }
+
+  /** Moves an object from its local anchor to the anchor hosted from it. */
+  private boolean onHostStarted(Anchor localAnchor, Anchor hostedAnchor) {
+    synchronized (anchorLock) {
+      int handle = sceneStore.findHandle(localAnchor);
+      if (handle == SceneStore.INVALID_HANDLE) {
+        return false;
+      }
+      anchorRegistry.register(hostedAnchor, AnchorRegistry.OWNER_SCENE);
+      sceneStore.replaceAnchor(handle, hostedAnchor);
+      sceneStore.setCloudState(handle, SceneStore.CLOUD_STATE_HOSTING, null);
+      return true;
+    }
+  }
+
+  /** Returns the union of the local bounds of each model and its shadow. */
+  private float[] computeModelLocalBounds() {
+    float[] bounds = new float[virtualObjectList.size() * 6];
+    for (int i = 0; i < virtualObjectList.size(); ++i) {
+      int offset = i * 6;
+      virtualObjectList.get(i).getLocalBounds(bounds, offset);
+      virtualObjectShadowList.get(i).getLocalBounds(shadowLocalBounds, 0);
+      for (int axis = 0; axis < 3; ++axis) {
+        bounds[offset + axis] = Math.min(bounds[offset + axis], shadowLocalBounds[axis]);
+        bounds[offset + 3 + axis] =
+            Math.max(bounds[offset + 3 + axis], shadowLocalBounds[3 + axis]);
+      }
+    }
+    return bounds;
   }
 
 
@@ -802,7 +1244,59 @@ public class CloudAnchorActivity extends AppCompatActivity
     }
   }
 
-  private int prevQueueSize = 0;
+  /** Places the objects of the room being resolved whose root has been resolved. */
+  @GuardedBy("anchorLock")
+  private void placeResolvedObjects() {
+    if (resolvingRoomAnchors == null) {
+      return;
+    }
+    for (int i = 0; i < resolvingRoomAnchors.getObjectCount(); ++i) {
+      RoomAnchors.RoomObject object = resolvingRoomAnchors.getObject(i);
+      String rootId = resolvingRoomAnchors.getRootCloudAnchorId(object.rootIndex);
+      int rootHandle = resolvedAnchorTable.getRootHandle(rootId);
+      if (rootHandle == ResolvedAnchorTable.IN_FLIGHT
+          || rootHandle == ResolvedAnchorTable.FAILED
+          || object.modelIndex < 0
+          || object.modelIndex >= scaleFactors.length) {
+        continue;
+      }
+      String objectKey = object.getKey(rootId);
+      if (resolvedAnchorTable.isObjectPlaced(objectKey)) {
+        continue;
+      }
+      int handle =
+          sceneStore.addChild(
+              rootHandle,
+              object.modelIndex,
+              scaleFactors[object.modelIndex],
+              objectColors[object.modelIndex],
+              object.offsetPose,
+              0);
+      resolvedAnchorTable.putObject(objectKey, handle);
+    }
+  }
+
+  /**
+   * Takes the objects of a room that are no longer in it out of the scene, and detaches the
+   * anchors of the roots among them.
+   */
+  @GuardedBy("anchorLock")
+  private void removeSceneObjects(IntArrayList handles) {
+    for (int i = 0; i < handles.size(); ++i) {
+      int handle = handles.get(i);
+      int index = sceneStore.indexOf(handle);
+      if (index < 0) {
+        continue;
+      }
+      rootHostAttempts.delete(handle);
+      anchorRegistry.release(sceneStore.getAnchor(index));
+      sceneBvh.remove(handle);
+      sceneStore.remove(handle);
+      if (selectedHandle == handle) {
+        selectedHandle = SceneStore.INVALID_HANDLE;
+      }
+    }
+  }
 
   /** Callback function invoked when the user presses the OK button in the Resolve Dialog. */
   private void onRoomCodeEntered(Long roomCode) {
@@ -816,33 +1310,55 @@ public class CloudAnchorActivity extends AppCompatActivity
     // Register a new listener for the given room.
     firebaseManager.registerNewListenerForRoom(
         roomCode,
-        // CloudAnchorIdListener::onNewCloudAnchorId(ArrayList<String>, ArrayList<Integer>)
-        (cloudAnchorIdList, objectIdxList) -> {
-          // When the cloud anchor ID is available from Firebase.
-          CloudAnchorResolveStateListener resolveListener = new CloudAnchorResolveStateListener(roomCode);
-          Preconditions.checkNotNull(resolveListener, "The resolve listener cannot be null.");
-
-          //
-          // 두 개가 모두 동기 업데이트 된 경우에만 실행
-          if(cloudAnchorIdList.size() == objectIdxList.size()) {
-            // cloudAnchor의 오브젝트 개수가 업데이트 된 경우
-            if(prevQueueSize < cloudAnchorIdList.size()){
-
-              // 모든 앵커 값을 초기화한 이후
-              // 서버로부터 받은 엥커를 대입
-              prevQueueSize = cloudAnchorIdList.size();
-              resetAnchors();
-
-              for (int ii=0; ii<cloudAnchorIdList.size(); ii++) {
-                cloudManager.resolveCloudAnchor(cloudAnchorIdList.get(ii), objectIdxList.get(ii), resolveListener, SystemClock.uptimeMillis());
-              }
+        // RoomAnchorsListener::onRoomAnchors(RoomAnchors)
+        roomAnchors -> {
+          // When the content of the room is available from Firebase. It is diffed against
+          // what is resolved or in flight: only the new roots are resolved, new objects on
+          // resolved roots are placed right away, and removed roots and objects are taken out.
+          ArrayList<Integer> newRootIndices = new ArrayList<>();
+          ArrayList<String> removedRootIds = new ArrayList<>();
+          synchronized (anchorLock) {
+            resolvingRoomAnchors = roomAnchors;
+            resolvedAnchorTable.diffRoots(roomAnchors, newRootIndices, removedRootIds);
+            removedHandles.clear();
+            for (String rootId : removedRootIds) {
+              int rootHandle = resolvedAnchorTable.getRootHandle(rootId);
+              // Children first, so that none is left with a removed parent.
+              resolvedAnchorTable.removeRoot(rootId, removedHandles);
+              removedHandles.add(rootHandle);
             }
+            resolvedAnchorTable.diffObjects(roomAnchors, removedHandles);
+            removeSceneObjects(removedHandles);
+            placeResolvedObjects();
+          }
+          for (String rootId : removedRootIds) {
+            resolveScheduler.cancel(rootId);
+            anchorBudgetManager.forget(rootId);
           }
 
-          // 코드 삭제
-          // 처음인 경우, cloud anchor 전부 불러오기
-          // 아닌 경우, 마지막 cloud anchor 만 불러오기
-
+          // Roots carrying more objects resolve first, then the most recently hosted ones. Their
+          // position is not known yet.
+          int[] objectCounts = new int[roomAnchors.getRootCount()];
+          for (int i = 0; i < roomAnchors.getObjectCount(); ++i) {
+            objectCounts[roomAnchors.getObject(i).rootIndex]++;
+          }
+          for (int rootIndex : newRootIndices) {
+            String rootId = roomAnchors.getRootCloudAnchorId(rootIndex);
+            resolveScheduler.request(
+                rootId,
+                0,
+                1 + objectCounts[rootIndex],
+                (rootIndex + 1.0f) / roomAnchors.getRootCount(),
+                Float.NaN,
+                Float.NaN,
+                Float.NaN,
+                0,
+                new CloudAnchorResolveStateListener(
+                    roomCode,
+                    rootId,
+                    1 + objectCounts[rootIndex],
+                    (rootIndex + 1.0f) / roomAnchors.getRootCount()));
+          }
         });
   }
 
@@ -853,6 +1369,7 @@ public class CloudAnchorActivity extends AppCompatActivity
   private final class RoomCodeAndCloudAnchorIdListener
       implements CloudAnchorManager.CloudAnchorHostListener, FirebaseManager.RoomCodeListener {
 
+    // Only accessed on the UI thread.
     private Long roomCode;
 //    private String cloudAnchorId;
 
@@ -880,47 +1397,205 @@ public class CloudAnchorActivity extends AppCompatActivity
     }
 
     @Override
-    public void onCloudTaskComplete(Anchor anchor) {
-      CloudAnchorState cloudState = anchor.getCloudAnchorState();
+    public void onCloudTaskComplete(CloudAnchorManager.CloudAnchorResult result) {
+      Anchor anchor = result.anchor;
+      CloudAnchorState cloudState = result.cloudState;
       if (cloudState.isError()) {
         Log.e(TAG, "Error hosting a cloud anchor, state " + cloudState);
+        int unsharedCount;
+        synchronized (anchorLock) {
+          if (rehostRoot(anchor)) {
+            return;
+          }
+          int handle = sceneStore.findHandle(anchor);
+          sceneStore.setCloudState(handle, SceneStore.CLOUD_STATE_ERROR, null);
+          unsharedCount = countChildren(handle);
+        }
         snackbarHelper.showMessageWithDismiss(
-            CloudAnchorActivity.this, getString(R.string.snackbar_host_error, cloudState));
+            CloudAnchorActivity.this,
+            unsharedCount > 0
+                ? getString(
+                    R.string.snackbar_host_error_objects_not_shared, cloudState, unsharedCount)
+                : getString(R.string.snackbar_host_error, cloudState));
         return;
       }
 
-      setNewCloudAnchor(anchor);
+      setNewCloudAnchor(anchor, result.cloudAnchorId);
       checkAndMaybeShare();
     }
 
+    /**
+     * Moves the children of a root that failed to host onto a new local anchor at the same pose,
+     * and queues it for hosting, so that they are not left unshared. Gives up after {@link
+     * #MAX_ROOT_HOST_ATTEMPTS}, or when the root is not tracking.
+     *
+     * @return Whether the root was queued again.
+     */
+    @GuardedBy("anchorLock")
+    private boolean rehostRoot(Anchor failedAnchor) {
+      int handle = sceneStore.findHandle(failedAnchor);
+      int index = sceneStore.indexOf(handle);
+      if (index < 0
+          || session == null
+          || sceneStore.getFirstChildHandle(index) == SceneStore.INVALID_HANDLE
+          || failedAnchor.getTrackingState() != TrackingState.TRACKING) {
+        return false;
+      }
+      // The first host is not recorded, so a root that failed once is on its second attempt.
+      int attempt = rootHostAttempts.get(handle, 1) + 1;
+      if (attempt > MAX_ROOT_HOST_ATTEMPTS) {
+        rootHostAttempts.delete(handle);
+        return false;
+      }
+      Anchor localAnchor = session.createAnchor(failedAnchor.getPose());
+      if (!hostingQueue.enqueue(localAnchor, this)) {
+        anchorRegistry.release(localAnchor);
+        return false;
+      }
+      Log.i(TAG, "Hosting root " + handle + " again, attempt " + attempt);
+      rootHostAttempts.put(handle, attempt);
+      anchorRegistry.register(localAnchor, AnchorRegistry.OWNER_SCENE);
+      sceneStore.replaceAnchor(handle, localAnchor);
+      sceneStore.setCloudState(handle, SceneStore.CLOUD_STATE_LOCAL, null);
+      anchorRegistry.release(failedAnchor);
+      return true;
+    }
+
+    @GuardedBy("anchorLock")
+    private int countChildren(int handle) {
+      int count = 0;
+      int index = sceneStore.indexOf(handle);
+      int child = index < 0 ? SceneStore.INVALID_HANDLE : sceneStore.getFirstChildHandle(index);
+      while (child != SceneStore.INVALID_HANDLE) {
+        count++;
+        child = sceneStore.getNextSiblingHandle(sceneStore.indexOf(child));
+      }
+      return count;
+    }
+
     // 앵커 여러 개 배치
     // 클라우드에 배포한 이후 이 코드가 실행됨
+    /** Shares the hosted anchors of the room, if it has a code. Only called on the UI thread. */
     private void checkAndMaybeShare() {
       if (roomCode == null) {
         return;
       }
 
       // 서버로 정보 전송
-      firebaseManager.storeAnchorIdInRoom(roomCode, cloudAnchors, objectIndexQueue);
+      // Only hosted anchors are shared, so that both lists stay in the same order.
+      // The live and detached objects are read under the same lock, so that an object detached
+      // meanwhile is neither shared twice nor dropped.
+      synchronized (anchorLock) {
+        sceneStore.getRoomAnchors(sharedRoomAnchors);
+        anchorBudgetManager.appendDetachedObjects(sharedRoomAnchors);
+      }
+      // The room is written to Firebase once its snapshot is on disk, so that it survives a crash.
+      hostJournal.append(roomCode, sharedRoomAnchors, CloudAnchorActivity.this::storePendingRoom);
       snackbarHelper.showMessageWithDismiss(
           CloudAnchorActivity.this, getString(R.string.snackbar_cloud_id_shared));
     }
   }
 
 
+  /** Keeps the scene and the room being resolved in step with the anchors streamed in and out. */
+  private final class BudgetStreamListener implements AnchorBudgetManager.StreamListener {
+
+    @Override
+    @GuardedBy("anchorLock")
+    public void onAnchorDetached(String cloudAnchorId) {
+      // The objects of a detached root of the room are placed from the room once it is back.
+      resolvedAnchorTable.detachRoot(cloudAnchorId);
+    }
+
+    @Override
+    public void onObjectStreamedIn(Anchor anchor, AnchorBudgetManager.DetachedObject object) {
+      anchorRegistry.register(anchor, AnchorRegistry.OWNER_SCENE);
+      synchronized (anchorLock) {
+        int modelIndex = object.modelIndex;
+        int handle =
+            sceneStore.add(
+                anchor,
+                modelIndex,
+                modelIndex == SceneStore.NO_MODEL ? 1.0f : scaleFactors[modelIndex],
+                modelIndex == SceneStore.NO_MODEL ? ROOT_COLOR : objectColors[modelIndex],
+                SceneStore.CLOUD_STATE_RESOLVED);
+        sceneStore.setCloudState(
+            handle, SceneStore.CLOUD_STATE_RESOLVED, anchor.getCloudAnchorId());
+        if (resolvedAnchorTable.isInFlight(object.cloudAnchorId)) {
+          resolvedAnchorTable.setRootHandle(object.cloudAnchorId, handle);
+          placeResolvedObjects();
+          return;
+        }
+        for (int c = 0; c < object.childModelIndices.length; ++c) {
+          int childModelIndex = object.childModelIndices[c];
+          sceneStore.addChild(
+              handle,
+              childModelIndex,
+              scaleFactors[childModelIndex],
+              objectColors[childModelIndex],
+              object.childOffsetPoses,
+              c * PoseSmoother.FLOATS_PER_POSE);
+        }
+      }
+    }
+  }
+
   private final class CloudAnchorResolveStateListener
       implements CloudAnchorManager.CloudAnchorResolveListener {
     private final long roomCode;
+    private final String rootCloudAnchorId;
+    // The ranking of the resolve in the scheduler, kept for requesting it again.
+    private final float importance;
+    private final float recency;
 
-    CloudAnchorResolveStateListener(long roomCode) {
+    CloudAnchorResolveStateListener(
+        long roomCode, String rootCloudAnchorId, float importance, float recency) {
       this.roomCode = roomCode;
+      this.rootCloudAnchorId = rootCloudAnchorId;
+      this.importance = importance;
+      this.recency = recency;
     }
 
     @Override
-    public void onCloudTaskComplete(Anchor anchor, int objectId) {
+    public void onCloudTaskComplete(CloudAnchorManager.CloudAnchorResult result, int objectId) {
       // When the anchor has been resolved, or had a final error state.
-      CloudAnchorState cloudState = anchor.getCloudAnchorState();
+      CloudAnchorState cloudState = result.cloudState;
       if (cloudState.isError()) {
+        int failures;
+        boolean retry;
+        synchronized (anchorLock) {
+          if (!resolvedAnchorTable.isInFlight(rootCloudAnchorId)) {
+            return; // Removed from the room, or reset, while it was resolved.
+          }
+          failures = resolvedAnchorTable.addFailure(rootCloudAnchorId);
+          retry = isTransientResolveError(cloudState) && failures <= MAX_ROOT_RESOLVE_RETRIES;
+          if (!retry) {
+            resolvedAnchorTable.setFailed(rootCloudAnchorId);
+          }
+        }
+        if (retry) {
+          // Requested again without waiting for the room to change, as it may never do.
+          long delayMillis = ROOT_RESOLVE_RETRY_DELAY_MS << (failures - 1);
+          Log.w(
+              TAG,
+              "Resolving the anchor in room "
+                  + roomCode
+                  + " again in "
+                  + delayMillis
+                  + " ms. The error state was "
+                  + cloudState);
+          resolveScheduler.request(
+              rootCloudAnchorId,
+              objectId,
+              importance,
+              recency,
+              Float.NaN,
+              Float.NaN,
+              Float.NaN,
+              delayMillis,
+              this);
+          return;
+        }
         Log.w(
             TAG,
             "The anchor in room "
@@ -933,10 +1608,29 @@ public class CloudAnchorActivity extends AppCompatActivity
       }
 
       // 성공적으로 resolved 된 경우
+      Anchor anchor = result.anchor;
       snackbarHelper.showMessageWithDismiss(
           CloudAnchorActivity.this, getString(R.string.snackbar_resolve_success));
 
-      setNewAnchor(anchor, objectId);
+      // The root is not drawn, the objects of the room are placed relative to it.
+      synchronized (anchorLock) {
+        if (!resolvedAnchorTable.isInFlight(rootCloudAnchorId)) {
+          // Removed from the room, or reset, while it was resolved.
+          anchorRegistry.release(anchor);
+          return;
+        }
+        anchorRegistry.register(anchor, AnchorRegistry.OWNER_SCENE);
+        int handle =
+            sceneStore.add(
+                anchor,
+                SceneStore.NO_MODEL,
+                1.0f,
+                ROOT_COLOR,
+                SceneStore.CLOUD_STATE_RESOLVED);
+        sceneStore.setCloudState(handle, SceneStore.CLOUD_STATE_RESOLVED, rootCloudAnchorId);
+        resolvedAnchorTable.setRootHandle(rootCloudAnchorId, handle);
+        placeResolvedObjects();
+      }
     }
 
     @Override
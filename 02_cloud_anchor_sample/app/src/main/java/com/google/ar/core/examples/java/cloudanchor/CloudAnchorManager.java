@@ -17,124 +17,497 @@
 package com.google.ar.core.examples.java.cloudanchor;
 
 import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.Anchor.CloudAnchorState;
 import com.google.ar.core.Session;
-import com.google.ar.core.examples.java.common.utils.Tuple;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
 
 /**
- * A helper class to handle all the Cloud Anchors logic, and add a callback-like mechanism on top of
+ * A helper class to handle all the Cloud Anchors logic, and add a future-based mechanism on top of
  * the existing ARCore API.
+ *
+ * <p>Each host or resolve returns a {@link CloudAnchorFuture}, which can be cancelled, given a
+ * timeout with {@code Futures.withTimeout} or composed like any {@code ListenableFuture}. The
+ * listener-based methods are built on top of it, and call their listeners on the executor given
+ * to the constructor rather than on the thread calling {@link #onUpdate()}.
+ *
+ * <p>Pending operations are polled on a timing wheel with backoff, often at first and less often
+ * the longer they take, so each frame only polls the operations that are due. The polling itself
+ * calls into the service outside of this object's monitor.
+ *
+ * <p>Resolves that fail with a transient error, or take longer than {@link #RESOLVE_TIMEOUT_MS},
+ * are issued again after a jittered exponential backoff, up to {@link #MAX_RESOLVE_RETRIES} times.
+ *
+ * <p>The operations go through a {@link CloudAnchorService}, which identifies them by ID, and time
+ * is read from a {@link Ticker}. The manager itself never calls into ARCore, so that it can be
+ * driven on a JVM by a {@link SimulatedCloudAnchorService} and a ticker that skips the latencies.
  */
 class CloudAnchorManager {
   private static final String TAG =
       CloudAnchorActivity.class.getSimpleName() + "." + CloudAnchorManager.class.getSimpleName();
   private static final long DURATION_FOR_NO_RESOLVE_RESULT_MS = 10000;
-  private long deadlineForMessageMillis;
+  private static final long INITIAL_POLL_INTERVAL_MS = 100;
+  private static final long MAX_POLL_INTERVAL_MS = 1600;
+  private static final long WHEEL_TICK_MS = 25;
+  // One revolution covers the longest poll interval.
+  private static final int WHEEL_SLOT_COUNT = 128;
+
+  // A resolve still in progress after this long is issued again.
+  private static final long RESOLVE_TIMEOUT_MS = 30000;
+  private static final int MAX_RESOLVE_RETRIES = 4;
+  // The backoff before the first retry, by error class. It doubles with every retry.
+  private static final long TRANSIENT_ERROR_RETRY_DELAY_MS = 1000;
+  private static final long QUOTA_ERROR_RETRY_DELAY_MS = 5000;
+  private static final long MAX_RETRY_DELAY_MS = 30000;
+  private static final long NO_RETRY = -1;
+  private static final int NO_OPERATION = -1;
+  private static final long NANOS_PER_MILLI = 1_000_000L;
+
+  /** The time base of {@code SystemClock.uptimeMillis()}. */
+  private static final Ticker UPTIME_TICKER =
+      new Ticker() {
+        @Override
+        public long read() {
+          return SystemClock.uptimeMillis() * NANOS_PER_MILLI;
+        }
+      };
 
   /** Listener for the results of a host operation. */
   interface CloudAnchorHostListener {
 
     /** This method is invoked when the results of a Cloud Anchor operation are available. */
-    void onCloudTaskComplete(Anchor anchor);
+    void onCloudTaskComplete(CloudAnchorResult result);
   }
 
   /** Listener for the results of a resolve operation. */
   interface CloudAnchorResolveListener {
 
     /** This method is invoked when the results of a Cloud Anchor operation are available. */
-    void onCloudTaskComplete(Anchor anchor, int objectId);
+    void onCloudTaskComplete(CloudAnchorResult result, int objectId);
 
     /** This method show the toast message. */
     void onShowResolveMessage();
   }
 
-  @Nullable private Session session = null;
-  private final HashMap<Anchor, CloudAnchorHostListener> pendingHostAnchors = new HashMap<>();
-  private final HashMap<Anchor, Tuple<Integer, CloudAnchorResolveListener>> pendingResolveAnchors = new HashMap<>();
+  /** The final state of a host or resolve, which may be an error state. */
+  static final class CloudAnchorResult {
+    /**
+     * The hosted or resolved anchor, or null if the resolve failed, in which case its anchor has
+     * been detached, or if the service hands out no anchors.
+     */
+    @Nullable final Anchor anchor;
+
+    final CloudAnchorState cloudState;
+    /** The Cloud Anchor ID hosted or resolved, or null if hosting failed. */
+    @Nullable final String cloudAnchorId;
+
+    CloudAnchorResult(
+        @Nullable Anchor anchor, CloudAnchorState cloudState, @Nullable String cloudAnchorId) {
+      this.anchor = anchor;
+      this.cloudState = cloudState;
+      this.cloudAnchorId = cloudAnchorId;
+    }
+  }
+
+  /**
+   * A pending host or resolve. It completes with its result once its cloud anchor state is final:
+   * the future only fails when it is cancelled.
+   *
+   * <p>Cancelling it releases its operation, which detaches its anchor and stops the cloud task. A
+   * successfully resolved anchor must be registered with an owner by the caller.
+   */
+  final class CloudAnchorFuture extends AbstractFuture<CloudAnchorResult> {
+    private final int id;
+    // The service that started the operation, which is polled until it completes.
+    private final CloudAnchorService service;
+    // NO_OPERATION while a resolve waits to be retried, and once completed. Only changed by the
+    // thread calling onUpdate().
+    private volatile int operationId;
+    // Set for resolve operations.
+    @Nullable private final String cloudAnchorId;
+    private final TimingWheel.Timer<CloudAnchorFuture> timer = new TimingWheel.Timer<>(this);
+    private long pollIntervalMillis = INITIAL_POLL_INTERVAL_MS;
+    // Invoked once on the callback executor if no result came before the deadline.
+    @Nullable private Runnable slowResultCallback;
+    private long slowResultDeadlineMillis;
+    // When the current attempt of a resolve is given up on.
+    private long timeoutMillis;
+    private int retryCount;
+    // Only accessed by the thread calling onUpdate().
+    private CloudAnchorState polledState = CloudAnchorState.NONE;
+    // Set once completed, until the future is done.
+    @Nullable private CloudAnchorResult result;
+
+    private CloudAnchorFuture(
+        int id, CloudAnchorService service, int operationId, @Nullable String cloudAnchorId) {
+      this.id = id;
+      this.service = service;
+      this.operationId = operationId;
+      this.cloudAnchorId = cloudAnchorId;
+    }
+
+    /**
+     * Returns the anchor being hosted or resolved, or null while a resolve waits for a retry, once
+     * completed, or if the service hands out no anchors.
+     */
+    @Nullable
+    Anchor getAnchor() {
+      int operationId = this.operationId;
+      return operationId != NO_OPERATION ? service.getAnchor(operationId) : null;
+    }
+
+    private void setResult() {
+      set(result);
+    }
+
+    private boolean isResolve() {
+      return cloudAnchorId != null;
+    }
+
+    @Override
+    protected void afterDone() {
+      if (isCancelled()) {
+        cancelTask(this);
+      }
+    }
+  }
+
+  private final AnchorRegistry anchorRegistry;
+  private final Executor callbackExecutor;
+  private final Ticker ticker;
+  private final Random random;
+  @Nullable private CloudAnchorService service = null;
+  private final HashMap<Integer, CloudAnchorFuture> pendingTasks = new HashMap<>();
+  private final TimingWheel<CloudAnchorFuture> pollWheel =
+      new TimingWheel<>(WHEEL_TICK_MS, WHEEL_SLOT_COUNT);
+  private int nextTaskId;
+  // Incremented by clearListeners(), so that callbacks already dispatched are dropped.
+  private int listenerGeneration;
+  // Only accessed by the thread calling onUpdate().
+  private final ArrayList<CloudAnchorFuture> dueTasks = new ArrayList<>();
+  private final ArrayList<CloudAnchorFuture> completedTasks = new ArrayList<>();
+
+  /**
+   * @param anchorRegistry Registry that the anchors of cloud tasks are registered with, and
+   *     released through.
+   * @param callbackExecutor The executor that listeners are called on.
+   */
+  CloudAnchorManager(AnchorRegistry anchorRegistry, Executor callbackExecutor) {
+    this(anchorRegistry, callbackExecutor, UPTIME_TICKER, new Random());
+  }
+
+  /**
+   * @param ticker The source of time for polls, retries and deadlines.
+   * @param random The source of the jitter of retries.
+   */
+  CloudAnchorManager(
+      AnchorRegistry anchorRegistry, Executor callbackExecutor, Ticker ticker, Random random) {
+    this.anchorRegistry = anchorRegistry;
+    this.callbackExecutor = callbackExecutor;
+    this.ticker = ticker;
+    this.random = random;
+  }
 
   /**
    * This method is used to set the session, since it might not be available when this object is
    * created.
    */
   synchronized void setSession(Session session) {
-    this.session = session;
+    this.service = new SessionCloudAnchorService(session, anchorRegistry);
+  }
+
+  /**
+   * Sets the service that new operations go through, instead of a session's. Pending operations
+   * keep polling the service that started them.
+   */
+  synchronized void setService(CloudAnchorService service) {
+    this.service = service;
+  }
+
+  /**
+   * This method hosts an anchor. {@code anchor} is detached once hosting completes, and the
+   * anchor of the returned future is the new anchor being hosted, registered as owned by a cloud
+   * task until the caller registers it with another owner.
+   */
+  synchronized CloudAnchorFuture hostCloudAnchor(Anchor anchor) {
+    CloudAnchorService service = Preconditions.checkNotNull(this.service, "No session was set.");
+    CloudAnchorFuture task =
+        new CloudAnchorFuture(nextTaskId++, service, service.hostCloudAnchor(anchor), null);
+    addTask(task);
+    return task;
   }
 
   /**
    * This method hosts an anchor. The {@code listener} will be invoked when the results are
    * available.
+   *
+   * @return The future of the host, which can be cancelled.
    */
-  synchronized void hostCloudAnchor(Anchor anchor, CloudAnchorHostListener listener) {
-    Preconditions.checkNotNull(session, "The session cannot be null.");
-    Anchor newAnchor = session.hostCloudAnchor(anchor);
-    pendingHostAnchors.put(newAnchor, listener);
+  synchronized CloudAnchorFuture hostCloudAnchor(Anchor anchor, CloudAnchorHostListener listener) {
+    CloudAnchorFuture future = hostCloudAnchor(anchor);
+    int generation = listenerGeneration;
+    Futures.addCallback(
+        future,
+        new FutureCallback<CloudAnchorResult>() {
+          @Override
+          public void onSuccess(CloudAnchorResult result) {
+            if (isListenerGeneration(generation)) {
+              listener.onCloudTaskComplete(result);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Cancelled, there is no result to report.
+          }
+        },
+        callbackExecutor);
+    return future;
+  }
+
+  /** This method resolves an anchor. See {@link CloudAnchorFuture} for the anchor's ownership. */
+  synchronized CloudAnchorFuture resolveCloudAnchor(String anchorId) {
+    CloudAnchorService service = Preconditions.checkNotNull(this.service, "No session was set.");
+    CloudAnchorFuture task =
+        new CloudAnchorFuture(
+            nextTaskId++, service, service.resolveCloudAnchor(anchorId), anchorId);
+    task.timeoutMillis = nowMillis() + RESOLVE_TIMEOUT_MS;
+    addTask(task);
+    return task;
   }
 
   /**
    * This method resolves an anchor. The {@code listener} will be invoked when the results are
-   * available.
+   * available, after any retries. A successfully resolved anchor must be registered with an owner
+   * by the listener, while an anchor that failed to resolve has already been released.
+   *
+   * @return The future of the resolve, which can be cancelled.
    */
-  synchronized void resolveCloudAnchor(
-      String anchorId, int objectId, CloudAnchorResolveListener listener, long startTimeMillis) {
-    Preconditions.checkNotNull(session, "The session cannot be null.");
-    Anchor newAnchor = session.resolveCloudAnchor(anchorId);
-    deadlineForMessageMillis = startTimeMillis + DURATION_FOR_NO_RESOLVE_RESULT_MS;
-
-    // 오브젝트 정보 넘겨줌
-    Tuple<Integer, CloudAnchorResolveListener> newObject = new Tuple<>(objectId, listener);
-    pendingResolveAnchors.put(newAnchor, newObject);
-  }
-
-  /** Should be called after a {@link Session#update()} call. */
-  synchronized void onUpdate() {
-    Preconditions.checkNotNull(session, "The session cannot be null.");
-    Iterator<Map.Entry<Anchor, CloudAnchorHostListener>> hostIter =
-        pendingHostAnchors.entrySet().iterator();
-    while (hostIter.hasNext()) {
-      Map.Entry<Anchor, CloudAnchorHostListener> entry = hostIter.next();
-      Anchor anchor = entry.getKey();
-      if (isReturnableState(anchor.getCloudAnchorState())) {
-        CloudAnchorHostListener listener = entry.getValue();
-        listener.onCloudTaskComplete(anchor);
-        hostIter.remove();
+  synchronized CloudAnchorFuture resolveCloudAnchor(
+      String anchorId, int objectId, CloudAnchorResolveListener listener) {
+    CloudAnchorFuture future = resolveCloudAnchor(anchorId);
+    future.slowResultCallback = listener::onShowResolveMessage;
+    future.slowResultDeadlineMillis = nowMillis() + DURATION_FOR_NO_RESOLVE_RESULT_MS;
+    int generation = listenerGeneration;
+    Futures.addCallback(
+        future,
+        new FutureCallback<CloudAnchorResult>() {
+          @Override
+          public void onSuccess(CloudAnchorResult result) {
+            if (isListenerGeneration(generation)) {
+              // 오브젝트 정보 넘겨줌
+              listener.onCloudTaskComplete(result, objectId);
+            } else {
+              anchorRegistry.release(result.anchor);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Cancelled, there is no result to report.
+          }
+        },
+        callbackExecutor);
+    return future;
+  }
+
+  private synchronized boolean isListenerGeneration(int generation) {
+    return generation == listenerGeneration;
+  }
+
+  @GuardedBy("this")
+  private void addTask(CloudAnchorFuture task) {
+    pendingTasks.put(task.id, task);
+    pollWheel.schedule(task.timer, nowMillis(), task.pollIntervalMillis);
+  }
+
+  /** Stops a cancelled task and detaches its anchors. */
+  private synchronized void cancelTask(CloudAnchorFuture task) {
+    if (pendingTasks.get(task.id) == task) {
+      pendingTasks.remove(task.id);
+      pollWheel.cancel(task.timer);
+    }
+    if (task.operationId != NO_OPERATION) {
+      task.service.release(task.operationId, false);
+      task.operationId = NO_OPERATION;
+    } else if (task.result != null) {
+      // Cancelled after completing, before its result was set.
+      anchorRegistry.release(task.result.anchor);
+    }
+  }
+
+  /** Returns the number of hosts and resolves that have not completed. */
+  synchronized int getPendingCount() {
+    return pendingTasks.size();
+  }
+
+  /**
+   * Should be called after a {@link Session#update()} call, always from the same thread. Only the
+   * operations due for a poll or a retry are checked.
+   */
+  void onUpdate() {
+    long nowMillis = nowMillis();
+    dueTasks.clear();
+    synchronized (this) {
+      pollWheel.advance(nowMillis, dueTasks);
+    }
+
+    // The states are read without holding the monitor, so that hosting or resolving from other
+    // threads does not wait on a poll.
+    for (int i = 0; i < dueTasks.size(); ++i) {
+      CloudAnchorFuture task = dueTasks.get(i);
+      int operationId = task.operationId;
+      task.polledState =
+          operationId != NO_OPERATION
+              ? task.service.getCloudAnchorState(operationId)
+              : CloudAnchorState.NONE;
+    }
+
+    synchronized (this) {
+      for (int i = 0; i < dueTasks.size(); ++i) {
+        CloudAnchorFuture task = dueTasks.get(i);
+        if (pendingTasks.get(task.id) != task) {
+          // Cleared or cancelled while it was polled.
+          continue;
+        }
+        onTaskDue(task, nowMillis);
       }
     }
+    dueTasks.clear();
 
-    Iterator<Map.Entry<Anchor, Tuple<Integer, CloudAnchorResolveListener>>> resolveIter =
-        pendingResolveAnchors.entrySet().iterator();
-    while (resolveIter.hasNext()) {
-      Map.Entry<Anchor, Tuple<Integer, CloudAnchorResolveListener>> entry = resolveIter.next();
-      Anchor anchor = entry.getKey();
+    // Completed outside of the monitor, as callbacks on a direct executor run right away.
+    for (int i = 0; i < completedTasks.size(); ++i) {
+      CloudAnchorFuture task = completedTasks.get(i);
+      task.setResult();
+    }
+    completedTasks.clear();
+  }
 
-      // listener하고 object idx를 받는다
-      Tuple<Integer, CloudAnchorResolveListener> target = entry.getValue();
+  @GuardedBy("this")
+  private void onTaskDue(CloudAnchorFuture task, long nowMillis) {
+    if (task.slowResultCallback != null && nowMillis > task.slowResultDeadlineMillis) {
+      callbackExecutor.execute(task.slowResultCallback);
+      task.slowResultCallback = null;
+    }
 
-      // 값 추출
-      int objectId = target.getA();
-      CloudAnchorResolveListener listener = target.getB();
+    if (task.operationId == NO_OPERATION) {
+      // The backoff of a retry is over.
+      reissueResolve(task, nowMillis);
+      return;
+    }
 
-      // 정상 수행 시, 해당 앵커&오브젝트 추가
-      if (isReturnableState(anchor.getCloudAnchorState())) {
-        listener.onCloudTaskComplete(anchor, objectId);
-        resolveIter.remove();
+    if (isReturnableState(task.polledState)) {
+      long retryDelayMillis =
+          task.polledState.isError() ? getRetryDelayMillis(task, task.polledState) : NO_RETRY;
+      if (retryDelayMillis != NO_RETRY) {
+        Log.w(TAG, "Retrying the resolve of " + task.cloudAnchorId + ": " + task.polledState);
+        retryResolve(task, retryDelayMillis, nowMillis);
+        return;
       }
-      if (deadlineForMessageMillis > 0 && SystemClock.uptimeMillis() > deadlineForMessageMillis) {
-        listener.onShowResolveMessage();
-        deadlineForMessageMillis = 0;
+      pendingTasks.remove(task.id);
+      complete(task);
+      return;
+    }
+
+    if (task.isResolve() && nowMillis > task.timeoutMillis) {
+      long retryDelayMillis = getRetryDelayMillis(task, CloudAnchorState.ERROR_INTERNAL);
+      if (retryDelayMillis != NO_RETRY) {
+        Log.w(TAG, "Retrying the resolve of " + task.cloudAnchorId + " after a timeout.");
+        retryResolve(task, retryDelayMillis, nowMillis);
+        return;
       }
     }
+    task.pollIntervalMillis = Math.min(task.pollIntervalMillis * 2, MAX_POLL_INTERVAL_MS);
+    pollWheel.schedule(task.timer, nowMillis, task.pollIntervalMillis);
+  }
+
+  /**
+   * Returns how long to wait before retrying a resolve that ended in {@code errorState}, or {@link
+   * #NO_RETRY}. Hosts are not retried, as the hosted anchor is the one the caller placed content
+   * on.
+   */
+  private long getRetryDelayMillis(CloudAnchorFuture task, CloudAnchorState errorState) {
+    if (!task.isResolve() || task.retryCount >= MAX_RESOLVE_RETRIES) {
+      return NO_RETRY;
+    }
+    long baseDelayMillis;
+    switch (errorState) {
+      case ERROR_INTERNAL:
+      case ERROR_HOSTING_SERVICE_UNAVAILABLE:
+        baseDelayMillis = TRANSIENT_ERROR_RETRY_DELAY_MS;
+        break;
+      case ERROR_RESOURCE_EXHAUSTED:
+        baseDelayMillis = QUOTA_ERROR_RETRY_DELAY_MS;
+        break;
+      default:
+        // Not authorized, unknown ID or incompatible SDK: retrying cannot help.
+        return NO_RETRY;
+    }
+    long delayMillis = Math.min(baseDelayMillis << task.retryCount, MAX_RETRY_DELAY_MS);
+    // Up to half of the delay is random, so that failed resolves do not all retry together.
+    return delayMillis / 2 + (long) (random.nextFloat() * (delayMillis / 2));
+  }
+
+  @GuardedBy("this")
+  private void retryResolve(CloudAnchorFuture task, long delayMillis, long nowMillis) {
+    task.service.release(task.operationId, false);
+    task.operationId = NO_OPERATION;
+    task.retryCount++;
+    pollWheel.schedule(task.timer, nowMillis, delayMillis);
+  }
+
+  @GuardedBy("this")
+  private void reissueResolve(CloudAnchorFuture task, long nowMillis) {
+    task.operationId = task.service.resolveCloudAnchor(task.cloudAnchorId);
+    task.pollIntervalMillis = INITIAL_POLL_INTERVAL_MS;
+    task.timeoutMillis = nowMillis + RESOLVE_TIMEOUT_MS;
+    pollWheel.schedule(task.timer, nowMillis, task.pollIntervalMillis);
+  }
+
+  @GuardedBy("this")
+  private void complete(CloudAnchorFuture task) {
+    // The anchor of a failed host is kept, as the caller placed content on it and may host it
+    // again.
+    boolean keepAnchor = !(task.isResolve() && task.polledState.isError());
+    CloudAnchorService service = task.service;
+    task.result =
+        new CloudAnchorResult(
+            keepAnchor ? service.getAnchor(task.operationId) : null,
+            task.polledState,
+            task.isResolve() ? task.cloudAnchorId : service.getCloudAnchorId(task.operationId));
+    service.release(task.operationId, keepAnchor);
+    task.operationId = NO_OPERATION;
+    completedTasks.add(task);
+  }
+
+  /**
+   * Used to clear any currently registered listeners, so they won't be called again. Pending
+   * futures are cancelled, which detaches their anchors and cancels the cloud tasks.
+   */
+  void clearListeners() {
+    ArrayList<CloudAnchorFuture> tasks;
+    synchronized (this) {
+      listenerGeneration++;
+      tasks = new ArrayList<>(pendingTasks.values());
+    }
+    for (CloudAnchorFuture task : tasks) {
+      task.cancel(false);
+    }
   }
 
-  /** Used to clear any currently registered listeners, so they won't be called again. */
-  synchronized void clearListeners() {
-    pendingHostAnchors.clear();
-    deadlineForMessageMillis = 0;
+  private long nowMillis() {
+    return ticker.read() / NANOS_PER_MILLI;
   }
 
   private static boolean isReturnableState(CloudAnchorState cloudState) {
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+
+/**
+ * The cloud side of hosting and resolving anchors, as used by {@link CloudAnchorManager}. It is
+ * implemented on top of an ARCore session by {@link SessionCloudAnchorService}, and in-process by
+ * {@link SimulatedCloudAnchorService}.
+ *
+ * <p>Each host or resolve is identified by an operation ID, which the manager polls and releases,
+ * so that the manager never calls into ARCore itself. Only the anchors handed out through {@link
+ * #getAnchor(int)} are native, and a service may hand out none.
+ */
+interface CloudAnchorService {
+
+  /** Starts hosting {@code anchor}, and returns the ID of the operation. */
+  int hostCloudAnchor(Anchor anchor);
+
+  /** Starts resolving a Cloud Anchor ID, and returns the ID of the operation. */
+  int resolveCloudAnchor(String cloudAnchorId);
+
+  /**
+   * Returns the state of an operation, or {@code NONE} if it was released. May be called from
+   * another thread than the one starting operations.
+   */
+  CloudAnchorState getCloudAnchorState(int operationId);
+
+  /** Returns the anchor being hosted or resolved, or null if there is none. */
+  @Nullable
+  Anchor getAnchor(int operationId);
+
+  /** Returns the Cloud Anchor ID hosted or resolved, or null if there is none yet. */
+  @Nullable
+  String getCloudAnchorId(int operationId);
+
+  /**
+   * Forgets an operation and detaches the anchor a host was copied from. The anchor being hosted
+   * or resolved is detached as well, which cancels the operation, unless {@code keepAnchor} hands
+   * it over to the caller.
+   */
+  void release(int operationId, boolean keepAnchor);
+}
@@ -31,7 +31,10 @@ import com.google.firebase.database.ValueEventListener;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /** A helper class to manage all communications with Firebase. */
 class FirebaseManager {
@@ -48,11 +51,18 @@ class FirebaseManager {
     void onError(DatabaseError error);
   }
 
-  /** Listener for a new cloud anchor ID. */
-  interface CloudAnchorIdListener {
+  /** Listener for the content of a room. */
+  interface RoomAnchorsListener {
 
-    /** Invoked when a new cloud anchor ID is available. */
-    void onNewCloudAnchorId(ArrayList<String> cloudAnchorIdList, ArrayList<Integer> objectIdxList);
+    /** Invoked when the anchors and objects of the room are available or changed. */
+    void onRoomAnchors(RoomAnchors roomAnchors);
+  }
+
+  /** Listener for the completion of a write of the content of a room. */
+  interface RoomAnchorsStoredListener {
+
+    /** Invoked once the anchors and objects of the room are stored in Firebase. */
+    void onRoomAnchorsStored();
   }
 
   // Names of the nodes used in the Firebase Database
@@ -64,6 +74,13 @@ class FirebaseManager {
   private static final String KEY_ANCHOR_ID_QUEUE = "hosted_anchor_id_queue";
   private static final String KEY_TIMESTAMP = "updated_at_timestamp";
   private static final String KEY_OBJECT_IDX_QUEUE = "object_index_queue";
+  // Rooms with hierarchical anchors list their roots, and objects as offsets from a root. Rooms
+  // with only the two queues above are read as one root per object.
+  private static final String KEY_ROOT_ANCHOR_IDS = "root_anchor_ids";
+  private static final String KEY_OBJECTS = "objects";
+  private static final String KEY_OBJECT_ROOT = "root";
+  private static final String KEY_OBJECT_MODEL = "model";
+  private static final String KEY_OBJECT_OFFSET = "offset";
 
   private static final String DISPLAY_NAME_VALUE = "AR World";
 
@@ -128,18 +145,50 @@ class FirebaseManager {
         });
   }
 
-  /** Stores the given anchor ID in the given room code. */
-  void storeAnchorIdInRoom(Long roomCode, ArrayList<String> cloudAnchorId, ArrayList<Integer> objectIndexQueue) {
+  /** Returns whether the Firebase App could be initialized. */
+  boolean isAvailable() {
+    return app != null;
+  }
 
-    Preconditions.checkNotNull(app, "Firebase App was null");
+  /**
+   * Stores the root anchors and objects of the given room code. The listener is invoked once the
+   * write is committed, and not at all if it fails.
+   */
+  void storeRoomAnchors(
+      Long roomCode, RoomAnchors roomAnchors, RoomAnchorsStoredListener listener) {
 
-    DatabaseReference roomRef = hotspotListRef.child(String.valueOf(roomCode));
-    roomRef.child(KEY_DISPLAY_NAME).setValue(DISPLAY_NAME_VALUE);
+    Preconditions.checkNotNull(app, "Firebase App was null");
 
-    roomRef.child(KEY_ANCHOR_ID_QUEUE).setValue(cloudAnchorId);
-    roomRef.child(KEY_OBJECT_IDX_QUEUE).setValue(objectIndexQueue);
+    List<String> rootIds = new ArrayList<>();
+    for (int i = 0; i < roomAnchors.getRootCount(); ++i) {
+      rootIds.add(roomAnchors.getRootCloudAnchorId(i));
+    }
+    List<Map<String, Object>> objects = new ArrayList<>();
+    for (int i = 0; i < roomAnchors.getObjectCount(); ++i) {
+      RoomAnchors.RoomObject object = roomAnchors.getObject(i);
+      List<Double> offset = new ArrayList<>();
+      for (float value : object.offsetPose) {
+        offset.add((double) value);
+      }
+      Map<String, Object> objectValue = new HashMap<>();
+      objectValue.put(KEY_OBJECT_ROOT, object.rootIndex);
+      objectValue.put(KEY_OBJECT_MODEL, object.modelIndex);
+      objectValue.put(KEY_OBJECT_OFFSET, offset);
+      objects.add(objectValue);
+    }
 
-    roomRef.child(KEY_TIMESTAMP).setValue(System.currentTimeMillis());
+    // The children are written in one update, so that readers never see the roots of one snapshot
+    // with the objects of another, whose root indices would not match.
+    Map<String, Object> roomValues = new HashMap<>();
+    roomValues.put(KEY_DISPLAY_NAME, DISPLAY_NAME_VALUE);
+    roomValues.put(KEY_ROOT_ANCHOR_IDS, rootIds);
+    roomValues.put(KEY_OBJECTS, objects);
+    roomValues.put(KEY_TIMESTAMP, System.currentTimeMillis());
+    hotspotListRef
+        .child(String.valueOf(roomCode))
+        .updateChildren(roomValues)
+        .addOnSuccessListener(unused -> listener.onRoomAnchorsStored())
+        .addOnFailureListener(e -> Log.w(TAG, "Failed to store room " + roomCode, e));
   }
 
   /**
@@ -148,7 +197,7 @@ class FirebaseManager {
    */
 
 
-  void registerNewListenerForRoom(Long roomCode, CloudAnchorIdListener listener) {
+  void registerNewListenerForRoom(Long roomCode, RoomAnchorsListener listener) {
     Preconditions.checkNotNull(app, "Firebase App was null");
     clearRoomListener();
     currentRoomRef = hotspotListRef.child(String.valueOf(roomCode));
@@ -156,27 +205,17 @@ class FirebaseManager {
         new ValueEventListener() {
           @Override
           public void onDataChange(DataSnapshot dataSnapshot) {
-
-            Object valObjAnchor = dataSnapshot.child(KEY_ANCHOR_ID_QUEUE).getValue();
-            Object valObjIdx = dataSnapshot.child(KEY_OBJECT_IDX_QUEUE).getValue();
-
-            // Cast Obj to ArrayList
-            ArrayList<String> cloudIdList = new ArrayList<String>();
-            ArrayList<Integer> objectIdxList = new ArrayList<Integer>();
-
-            if(valObjAnchor != null && valObjIdx != null) {
-              for (Object a : (Collection<?>) valObjAnchor) {
-                cloudIdList.add((String) a);
-              }
-              for(Object a: (Collection<?>)valObjIdx){
-                // https://wwwnghks.tistory.com/123
-                // String에서 parseInt해야 정상적으로 잡힘
-                objectIdxList.add( Integer.parseInt(a.toString()) );
-              }
+            RoomAnchors roomAnchors = new RoomAnchors();
+            Object valRoots = dataSnapshot.child(KEY_ROOT_ANCHOR_IDS).getValue();
+            if (valRoots != null) {
+              readRoomAnchors(valRoots, dataSnapshot.child(KEY_OBJECTS).getValue(), roomAnchors);
+            } else {
+              readLegacyRoomAnchors(
+                  dataSnapshot.child(KEY_ANCHOR_ID_QUEUE).getValue(),
+                  dataSnapshot.child(KEY_OBJECT_IDX_QUEUE).getValue(),
+                  roomAnchors);
             }
-
-            listener.onNewCloudAnchorId(cloudIdList, objectIdxList);
-
+            listener.onRoomAnchors(roomAnchors);
           }
 
           @Override
@@ -187,9 +226,64 @@ class FirebaseManager {
     currentRoomRef.addValueEventListener(currentRoomListener);
   }
 
+  private static void readRoomAnchors(
+      Object valRoots, Object valObjects, RoomAnchors outRoomAnchors) {
+    for (Object rootId : (Collection<?>) valRoots) {
+      outRoomAnchors.addRoot((String) rootId);
+    }
+    if (valObjects == null) {
+      return;
+    }
+    float[] offsetPose = new float[PoseSmoother.FLOATS_PER_POSE];
+    for (Object valObject : (Collection<?>) valObjects) {
+      Map<?, ?> object = (Map<?, ?>) valObject;
+      Object root = object.get(KEY_OBJECT_ROOT);
+      Object model = object.get(KEY_OBJECT_MODEL);
+      Object offset = object.get(KEY_OBJECT_OFFSET);
+      if (!(root instanceof Number)
+          || !(model instanceof Number)
+          || !(offset instanceof List)
+          || ((List<?>) offset).size() != offsetPose.length) {
+        Log.w(TAG, "Skipping a malformed object: " + object);
+        continue;
+      }
+      int rootIndex = ((Number) root).intValue();
+      if (rootIndex < 0 || rootIndex >= outRoomAnchors.getRootCount()) {
+        Log.w(TAG, "Skipping an object with an unknown root: " + object);
+        continue;
+      }
+      for (int i = 0; i < offsetPose.length; ++i) {
+        offsetPose[i] = ((Number) ((List<?>) offset).get(i)).floatValue();
+      }
+      outRoomAnchors.addObject(rootIndex, ((Number) model).intValue(), offsetPose, 0);
+    }
+  }
+
+  /** Reads a room written with one cloud anchor per object, as one root per object. */
+  private static void readLegacyRoomAnchors(
+      Object valObjAnchor, Object valObjIdx, RoomAnchors outRoomAnchors) {
+    if (valObjAnchor == null || valObjIdx == null) {
+      return;
+    }
+    Collection<?> cloudIds = (Collection<?>) valObjAnchor;
+    Collection<?> objectIndices = (Collection<?>) valObjIdx;
+    if (cloudIds.size() != objectIndices.size()) {
+      // The two queues are written separately, wait until both are updated.
+      return;
+    }
+    Iterator<?> objectIndexIter = objectIndices.iterator();
+    for (Object cloudId : cloudIds) {
+      int rootIndex = outRoomAnchors.addRoot((String) cloudId);
+      // https://wwwnghks.tistory.com/123
+      // String에서 parseInt해야 정상적으로 잡힘
+      int modelIndex = Integer.parseInt(objectIndexIter.next().toString());
+      outRoomAnchors.addObject(rootIndex, modelIndex, RoomAnchors.IDENTITY_POSE, 0);
+    }
+  }
+
   /**
    * Resets the current room listener registered using {@link #registerNewListenerForRoom(Long,
-   * CloudAnchorIdListener)}.
+   * RoomAnchorsListener)}.
    */
   void clearRoomListener() {
     if (currentRoomListener != null && currentRoomRef != null) {
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the rooms written to Firebase, so that a write lost when the app dies
+ * after hosting is completed on the next start instead of hosting again.
+ *
+ * <p>A snapshot of the room is appended and synced to disk before it is written to Firebase, and
+ * marked as shared once the write completes. On {@link #open}, the latest snapshot of each room
+ * that was not marked is replayed. Records appended together are written and synced to disk with a
+ * single fsync on a worker thread. The worker is shared by every journal of the process, so that a
+ * journal opened by a new activity only reads the file once the previous one is closed. The file
+ * is compacted to the unshared snapshots when it is opened and after every {@link
+ * #COMPACTION_RECORD_COUNT} records.
+ *
+ * <p>Each record is framed by its length and CRC32, so that a record torn by a crash is dropped
+ * with everything after it.
+ */
+class HostJournal {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + HostJournal.class.getSimpleName();
+  private static final byte RECORD_SNAPSHOT = 1;
+  private static final byte RECORD_SHARED = 2;
+  private static final int MAX_RECORD_BYTES = 1 << 20;
+  private static final int COMPACTION_RECORD_COUNT = 64;
+  private static final ExecutorService WORKER = Executors.newSingleThreadExecutor();
+
+  /** Listener for the rooms replayed from the journal. */
+  interface ReplayListener {
+
+    /** Invoked for each room whose latest snapshot was not shared before the app stopped. */
+    void onPendingRoom(PendingRoom pendingRoom);
+  }
+
+  /** Listener for the snapshots that are synced to disk. */
+  interface SyncListener {
+
+    /**
+     * Invoked once a snapshot is on disk, which is when the room can be written to Firebase. Also
+     * invoked if the journal failed to write it, so that the room is still shared.
+     */
+    void onSynced(PendingRoom pendingRoom);
+  }
+
+  /** A snapshot of a room that is being written to Firebase. */
+  static final class PendingRoom {
+    final long roomCode;
+    final RoomAnchors roomAnchors;
+    // Assigned when the snapshot is written. Only accessed on the worker thread.
+    private long sequence;
+
+    private PendingRoom(long roomCode, RoomAnchors roomAnchors) {
+      this.roomCode = roomCode;
+      this.roomAnchors = roomAnchors;
+    }
+  }
+
+  /** A record waiting to be written. */
+  private static final class Record {
+    final byte type;
+    final PendingRoom pendingRoom;
+    @Nullable final SyncListener syncListener;
+
+    Record(byte type, PendingRoom pendingRoom, @Nullable SyncListener syncListener) {
+      this.type = type;
+      this.pendingRoom = pendingRoom;
+      this.syncListener = syncListener;
+    }
+  }
+
+  private final File file;
+  private final Executor callbackExecutor;
+
+  // Guarded by this.
+  private ArrayList<Record> queuedRecords = new ArrayList<>();
+  private boolean flushScheduled;
+  private boolean closed;
+
+  // Only accessed on the worker thread.
+  private ArrayList<Record> writtenRecords = new ArrayList<>();
+  // The latest unshared snapshot of each room, which is what compaction keeps.
+  private final LinkedHashMap<Long, PendingRoom> unsharedRooms = new LinkedHashMap<>();
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+  private final CRC32 crc = new CRC32();
+  @Nullable private FileOutputStream fileOut;
+  @Nullable private DataOutputStream out;
+  private long nextSequence;
+  private int recordsSinceCompaction;
+
+  /**
+   * Creates a journal backed by {@code file}, which is not read until {@link #open}.
+   *
+   * @param callbackExecutor The executor that the replay and sync listeners are called on.
+   */
+  HostJournal(File file, Executor callbackExecutor) {
+    this.file = file;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * Reads the journal on the worker thread, compacts it and passes the rooms that still need to be
+   * written to {@code listener}. Records appended meanwhile are written after it is open.
+   */
+  void open(ReplayListener listener) {
+    WORKER.execute(
+        () -> {
+          replay();
+          compact();
+          for (PendingRoom pendingRoom : unsharedRooms.values()) {
+            callbackExecutor.execute(() -> listener.onPendingRoom(pendingRoom));
+          }
+        });
+  }
+
+  /**
+   * Appends a snapshot of a room that is about to be written to Firebase. The room anchors are
+   * copied, so they can be reused as soon as this returns.
+   *
+   * @param listener Invoked with the snapshot once it is synced, to write it to Firebase and pass
+   *     it to {@link #markShared} once the write completes.
+   */
+  void append(long roomCode, RoomAnchors roomAnchors, SyncListener listener) {
+    RoomAnchors copy = new RoomAnchors();
+    copy.copyFrom(roomAnchors);
+    PendingRoom pendingRoom = new PendingRoom(roomCode, copy);
+    if (!enqueue(new Record(RECORD_SNAPSHOT, pendingRoom, listener))) {
+      callbackExecutor.execute(() -> listener.onSynced(pendingRoom));
+    }
+  }
+
+  /** Records that a snapshot was written to Firebase, so that it is not replayed. */
+  void markShared(PendingRoom pendingRoom) {
+    enqueue(new Record(RECORD_SHARED, pendingRoom, null));
+  }
+
+  /**
+   * Writes the queued records, then closes the file. Nothing can be appended afterwards. A journal
+   * opened after this returns reads the file once it is closed.
+   */
+  synchronized void close() {
+    closed = true;
+    WORKER.execute(
+        () -> {
+          flush();
+          closeFile();
+        });
+  }
+
+  /** Queues a record to be written, and returns false if the journal is closed. */
+  private synchronized boolean enqueue(Record record) {
+    if (closed) {
+      // E.g. a write that completed after the activity was destroyed. It is replayed next time.
+      return false;
+    }
+    queuedRecords.add(record);
+    if (!flushScheduled) {
+      flushScheduled = true;
+      WORKER.execute(this::flush);
+    }
+    return true;
+  }
+
+  /** Writes every queued record, and syncs them to disk at once. */
+  private void flush() {
+    synchronized (this) {
+      ArrayList<Record> records = queuedRecords;
+      queuedRecords = writtenRecords;
+      writtenRecords = records;
+      flushScheduled = false;
+    }
+    if (writtenRecords.isEmpty()) {
+      return;
+    }
+    for (int i = 0; i < writtenRecords.size(); ++i) {
+      Record record = writtenRecords.get(i);
+      if (record.type == RECORD_SNAPSHOT) {
+        record.pendingRoom.sequence = nextSequence++;
+        unsharedRooms.put(record.pendingRoom.roomCode, record.pendingRoom);
+      } else if (unsharedRooms.get(record.pendingRoom.roomCode) == record.pendingRoom) {
+        unsharedRooms.remove(record.pendingRoom.roomCode);
+      }
+    }
+    try {
+      if (out == null) {
+        openFile();
+      }
+      for (int i = 0; i < writtenRecords.size(); ++i) {
+        Record record = writtenRecords.get(i);
+        writeRecord(out, record.type, record.pendingRoom);
+      }
+      sync();
+    } catch (IOException e) {
+      // The snapshots are kept in memory, and written again by the next compaction.
+      Log.e(TAG, "Failed to write the journal", e);
+      closeFile();
+    }
+    for (int i = 0; i < writtenRecords.size(); ++i) {
+      Record record = writtenRecords.get(i);
+      if (record.syncListener != null) {
+        callbackExecutor.execute(() -> record.syncListener.onSynced(record.pendingRoom));
+      }
+    }
+    recordsSinceCompaction += writtenRecords.size();
+    writtenRecords.clear();
+    if (recordsSinceCompaction >= COMPACTION_RECORD_COUNT) {
+      compact();
+    }
+  }
+
+  /** Reads the records of the file, up to the first one that is torn or corrupt. */
+  private void replay() {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      byte[] payload = new byte[0];
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        long expectedCrc = in.readInt() & 0xFFFFFFFFL;
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+          Log.w(TAG, "Dropping the journal from a record of " + length + " bytes");
+          break;
+        }
+        if (payload.length < length) {
+          payload = new byte[length];
+        }
+        in.readFully(payload, 0, length);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if (crc.getValue() != expectedCrc) {
+          Log.w(TAG, "Dropping the journal from a corrupt record");
+          break;
+        }
+        readRecord(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+      }
+    } catch (FileNotFoundException e) {
+      // Nothing was journaled yet.
+    } catch (IOException e) {
+      // Typically a record torn by a crash. The records read so far are kept.
+      Log.w(TAG, "Stopped reading the journal", e);
+    }
+  }
+
+  private void readRecord(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    long roomCode = in.readLong();
+    long sequence = in.readLong();
+    nextSequence = Math.max(nextSequence, sequence + 1);
+    if (type == RECORD_SHARED) {
+      PendingRoom pendingRoom = unsharedRooms.get(roomCode);
+      if (pendingRoom != null && pendingRoom.sequence == sequence) {
+        unsharedRooms.remove(roomCode);
+      }
+      return;
+    }
+    RoomAnchors roomAnchors = new RoomAnchors();
+    int rootCount = in.readInt();
+    for (int i = 0; i < rootCount; ++i) {
+      roomAnchors.addRoot(in.readUTF());
+    }
+    float[] offsetPose = new float[PoseSmoother.FLOATS_PER_POSE];
+    int objectCount = in.readInt();
+    for (int i = 0; i < objectCount; ++i) {
+      int rootIndex = in.readInt();
+      int modelIndex = in.readInt();
+      for (int j = 0; j < offsetPose.length; ++j) {
+        offsetPose[j] = in.readFloat();
+      }
+      roomAnchors.addObject(rootIndex, modelIndex, offsetPose, 0);
+    }
+    PendingRoom pendingRoom = new PendingRoom(roomCode, roomAnchors);
+    pendingRoom.sequence = sequence;
+    unsharedRooms.put(roomCode, pendingRoom);
+  }
+
+  private void writeRecord(DataOutputStream out, byte type, PendingRoom pendingRoom)
+      throws IOException {
+    recordBytes.reset();
+    DataOutputStream payload = new DataOutputStream(recordBytes);
+    payload.writeByte(type);
+    payload.writeLong(pendingRoom.roomCode);
+    payload.writeLong(pendingRoom.sequence);
+    if (type == RECORD_SNAPSHOT) {
+      RoomAnchors roomAnchors = pendingRoom.roomAnchors;
+      payload.writeInt(roomAnchors.getRootCount());
+      for (int i = 0; i < roomAnchors.getRootCount(); ++i) {
+        payload.writeUTF(roomAnchors.getRootCloudAnchorId(i));
+      }
+      payload.writeInt(roomAnchors.getObjectCount());
+      for (int i = 0; i < roomAnchors.getObjectCount(); ++i) {
+        RoomAnchors.RoomObject object = roomAnchors.getObject(i);
+        payload.writeInt(object.rootIndex);
+        payload.writeInt(object.modelIndex);
+        for (float value : object.offsetPose) {
+          payload.writeFloat(value);
+        }
+      }
+    }
+    payload.flush();
+    crc.reset();
+    crc.update(recordBytes.toByteArray());
+    out.writeInt(recordBytes.size());
+    out.writeInt((int) crc.getValue());
+    recordBytes.writeTo(out);
+  }
+
+  /**
+   * Rewrites the file with only the unshared snapshots. The new file is synced before it replaces
+   * the old one, so a crash leaves one or the other.
+   */
+  private void compact() {
+    closeFile();
+    recordsSinceCompaction = 0;
+    File compactFile = new File(file.getPath() + ".compact");
+    try (FileOutputStream compactOut = new FileOutputStream(compactFile)) {
+      DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(compactOut));
+      for (PendingRoom pendingRoom : unsharedRooms.values()) {
+        writeRecord(dataOut, RECORD_SNAPSHOT, pendingRoom);
+      }
+      dataOut.flush();
+      compactOut.getFD().sync();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to compact the journal", e);
+      compactFile.delete();
+      return;
+    }
+    if (!compactFile.renameTo(file)) {
+      Log.e(TAG, "Failed to replace the journal with its compacted copy");
+      compactFile.delete();
+    }
+  }
+
+  private void openFile() throws FileNotFoundException {
+    fileOut = new FileOutputStream(file, /* append= */ true);
+    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+  }
+
+  private void sync() throws IOException {
+    out.flush();
+    fileOut.getFD().sync();
+  }
+
+  private void closeFile() {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close the journal", e);
+    }
+    out = null;
+    fileOut = null;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.os.SystemClock;
+import com.google.ar.core.Camera;
+import com.google.ar.core.Session;
+import com.google.ar.core.Session.FeatureMapQuality;
+import com.google.ar.core.TrackingFailureReason;
+import com.google.ar.core.TrackingState;
+
+/**
+ * Decides whether the area seen by the camera is mapped well enough to host an anchor in it.
+ *
+ * <p>The feature map quality is estimated by ARCore from the features seen in the last few seconds
+ * and visible from the camera pose. Estimating it is not free, so it is only sampled every {@link
+ * #SAMPLE_INTERVAL_MS}. Hosts are held back while the quality is insufficient or tracking is
+ * limited, since they would likely fail or resolve poorly later.
+ *
+ * <p>Only accessed on the GL thread.
+ */
+class HostingGate {
+  private static final long SAMPLE_INTERVAL_MS = 500;
+
+  private FeatureMapQuality quality = FeatureMapQuality.INSUFFICIENT;
+  private TrackingFailureReason failureReason = TrackingFailureReason.NONE;
+  private long nextSampleMillis;
+
+  /** Samples the feature map quality from the camera pose, if it is time to. */
+  void update(Session session, Camera camera) {
+    long now = SystemClock.uptimeMillis();
+    if (now < nextSampleMillis) {
+      return;
+    }
+    nextSampleMillis = now + SAMPLE_INTERVAL_MS;
+    failureReason = camera.getTrackingFailureReason();
+    if (camera.getTrackingState() == TrackingState.TRACKING) {
+      quality = session.estimateFeatureMapQualityForHosting(camera.getPose());
+    } else {
+      quality = FeatureMapQuality.INSUFFICIENT;
+    }
+  }
+
+  /** Returns whether hosts can start: the quality is at least sufficient and tracking is normal. */
+  boolean isOpen() {
+    return quality != FeatureMapQuality.INSUFFICIENT
+        && failureReason == TrackingFailureReason.NONE;
+  }
+
+  /** Returns the last sampled quality. */
+  FeatureMapQuality getQuality() {
+    return quality;
+  }
+
+  /** Returns the reason tracking was limited at the last sample, or NONE. */
+  TrackingFailureReason getFailureReason() {
+    return failureReason;
+  }
+}
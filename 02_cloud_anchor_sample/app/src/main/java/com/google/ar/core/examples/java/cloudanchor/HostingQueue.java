@@ -0,0 +1,292 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.os.SystemClock;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Queues local anchors for hosting, and starts them through the {@link CloudAnchorManager} at a
+ * limited rate and concurrency, so that placing many objects quickly does not run into quota
+ * errors.
+ *
+ * <p>The rate is limited by a token bucket: bursts of a few hosts start right away, then hosts
+ * start at a steady rate. A placement close to one that is queued or being hosted is rejected as a
+ * duplicate. Objects are drawn on their local anchor while they wait, and moved to the hosted
+ * anchor by the {@link HostStartListener} once hosting starts.
+ *
+ * <p>Hosts are also held back while the {@link HostingGate} is closed, i.e. while the area is not
+ * mapped well enough, until they have waited for a timeout. They then start anyway, so that a
+ * placement is never stuck in the queue.
+ */
+class HostingQueue {
+
+  /** Listener for the hosts that start. */
+  interface HostStartListener {
+
+    /**
+     * Invoked when a queued anchor starts hosting, without holding the queue's monitor.
+     *
+     * @return false if the anchor is no longer used, in which case the host is cancelled.
+     */
+    boolean onHostStarted(Anchor localAnchor, Anchor hostedAnchor);
+  }
+
+  /** A queued or in-flight host. */
+  private static final class Entry {
+    final Anchor localAnchor;
+    final CloudAnchorManager.CloudAnchorHostListener listener;
+    final float x;
+    final float y;
+    final float z;
+    final long enqueueTimeMillis;
+    CloudAnchorManager.CloudAnchorFuture future;
+
+    Entry(
+        Anchor localAnchor,
+        CloudAnchorManager.CloudAnchorHostListener listener,
+        Pose pose,
+        long enqueueTimeMillis) {
+      this.localAnchor = localAnchor;
+      this.listener = listener;
+      this.x = pose.tx();
+      this.y = pose.ty();
+      this.z = pose.tz();
+      this.enqueueTimeMillis = enqueueTimeMillis;
+    }
+  }
+
+  private final CloudAnchorManager cloudManager;
+  private final Executor callbackExecutor;
+  private final HostStartListener startListener;
+  private final HostingGate gate;
+  private final long gateTimeoutMillis;
+  private final float hostsPerSecond;
+  private final int burstSize;
+  private final int maxInFlight;
+  private final float duplicateRadiusSquared;
+
+  private final ArrayDeque<Entry> queuedEntries = new ArrayDeque<>();
+  private final ArrayList<Entry> inFlightEntries = new ArrayList<>();
+  private float tokens;
+  private long lastRefillMillis;
+  // Incremented by clear(), so that hosts started before are not counted.
+  private int generation;
+  // Only accessed by the thread calling update().
+  private final ArrayList<Entry> startedEntries = new ArrayList<>();
+
+  // Metrics.
+  private int hostedCount;
+  private int failedCount;
+  private int duplicateCount;
+  private int throttledCount;
+  private int ungatedCount;
+
+  /**
+   * Creates a queue.
+   *
+   * @param callbackExecutor The executor that host listeners are called on.
+   * @param gate The gate that holds hosts back until the area is mapped well enough. It is only
+   *     read on the thread calling {@link #update()}.
+   * @param gateTimeoutMillis How long a host waits for the gate to open before it starts anyway.
+   * @param hostsPerSecond The steady rate at which hosts start.
+   * @param burstSize The number of hosts that can start at once after a quiet period.
+   * @param maxInFlight The number of hosts running at the same time.
+   * @param duplicateRadiusMeters Placements this close to a pending one are rejected.
+   */
+  HostingQueue(
+      CloudAnchorManager cloudManager,
+      Executor callbackExecutor,
+      HostStartListener startListener,
+      HostingGate gate,
+      long gateTimeoutMillis,
+      float hostsPerSecond,
+      int burstSize,
+      int maxInFlight,
+      float duplicateRadiusMeters) {
+    this.cloudManager = cloudManager;
+    this.callbackExecutor = callbackExecutor;
+    this.startListener = startListener;
+    this.gate = gate;
+    this.gateTimeoutMillis = gateTimeoutMillis;
+    this.hostsPerSecond = hostsPerSecond;
+    this.burstSize = burstSize;
+    this.maxInFlight = maxInFlight;
+    this.duplicateRadiusSquared = duplicateRadiusMeters * duplicateRadiusMeters;
+    this.tokens = burstSize;
+  }
+
+  /**
+   * Queues a local anchor for hosting. The {@code listener} is invoked like the one passed to
+   * {@link CloudAnchorManager#hostCloudAnchor(Anchor, CloudAnchorManager.CloudAnchorHostListener)},
+   * with the hosted anchor.
+   *
+   * @return false if the anchor is a duplicate of a pending placement, and was not queued.
+   */
+  synchronized boolean enqueue(
+      Anchor localAnchor, CloudAnchorManager.CloudAnchorHostListener listener) {
+    Entry entry =
+        new Entry(localAnchor, listener, localAnchor.getPose(), SystemClock.uptimeMillis());
+    if (isDuplicate(entry)) {
+      duplicateCount++;
+      return false;
+    }
+    queuedEntries.add(entry);
+    return true;
+  }
+
+  /** Drops the queued anchors. Hosts in flight are left to the manager. */
+  synchronized void clear() {
+    queuedEntries.clear();
+    inFlightEntries.clear();
+    generation++;
+  }
+
+  /**
+   * Starts the queued hosts that the gate, the rate and the concurrency limits allow. Call on every
+   * frame, after {@link HostingGate#update}.
+   */
+  void update() {
+    startedEntries.clear();
+    boolean gateOpen = gate.isOpen();
+    synchronized (this) {
+      long now = SystemClock.uptimeMillis();
+      refillTokens(now);
+      while (!queuedEntries.isEmpty() && inFlightEntries.size() < maxInFlight) {
+        // Entries are queued in order, so when the oldest has not timed out, none has.
+        boolean timedOut = now - queuedEntries.peek().enqueueTimeMillis >= gateTimeoutMillis;
+        if (!gateOpen && !timedOut) {
+          break;
+        }
+        if (tokens < 1) {
+          throttledCount++;
+          break;
+        }
+        tokens -= 1;
+        if (!gateOpen) {
+          ungatedCount++;
+        }
+        Entry entry = queuedEntries.poll();
+        entry.future = cloudManager.hostCloudAnchor(entry.localAnchor);
+        inFlightEntries.add(entry);
+        addCallback(entry, generation);
+        startedEntries.add(entry);
+      }
+    }
+
+    // The listener takes the scene lock, so it is called without holding this monitor.
+    for (int i = 0; i < startedEntries.size(); ++i) {
+      Entry entry = startedEntries.get(i);
+      if (!startListener.onHostStarted(entry.localAnchor, entry.future.getAnchor())) {
+        entry.future.cancel(false);
+      }
+    }
+    startedEntries.clear();
+  }
+
+  synchronized int getQueuedCount() {
+    return queuedEntries.size();
+  }
+
+  synchronized int getInFlightCount() {
+    return inFlightEntries.size();
+  }
+
+  /** Returns a one-line summary of the queue state and counters, for logging. */
+  synchronized String getMetrics() {
+    return String.format(
+        Locale.US,
+        "queued=%d inFlight=%d tokens=%.1f hosted=%d failed=%d duplicates=%d throttled=%d"
+            + " gate=%s/%s ungated=%d",
+        queuedEntries.size(),
+        inFlightEntries.size(),
+        tokens,
+        hostedCount,
+        failedCount,
+        duplicateCount,
+        throttledCount,
+        gate.getQuality(),
+        gate.getFailureReason(),
+        ungatedCount);
+  }
+
+  private void refillTokens(long now) {
+    if (lastRefillMillis > 0) {
+      tokens = Math.min(burstSize, tokens + (now - lastRefillMillis) * hostsPerSecond / 1000.0f);
+    }
+    lastRefillMillis = now;
+  }
+
+  private boolean isDuplicate(Entry entry) {
+    for (Entry pending : queuedEntries) {
+      if (isNear(entry, pending)) {
+        return true;
+      }
+    }
+    for (int i = 0; i < inFlightEntries.size(); ++i) {
+      if (isNear(entry, inFlightEntries.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isNear(Entry a, Entry b) {
+    float dx = a.x - b.x;
+    float dy = a.y - b.y;
+    float dz = a.z - b.z;
+    return dx * dx + dy * dy + dz * dz < duplicateRadiusSquared;
+  }
+
+  private void addCallback(Entry entry, int entryGeneration) {
+    Futures.addCallback(
+        entry.future,
+        new FutureCallback<CloudAnchorManager.CloudAnchorResult>() {
+          @Override
+          public void onSuccess(CloudAnchorManager.CloudAnchorResult result) {
+            synchronized (HostingQueue.this) {
+              if (entryGeneration != generation) {
+                return;
+              }
+              inFlightEntries.remove(entry);
+              if (result.cloudState.isError()) {
+                failedCount++;
+              } else {
+                hostedCount++;
+              }
+            }
+            entry.listener.onCloudTaskComplete(result);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Cancelled.
+            synchronized (HostingQueue.this) {
+              inFlightEntries.remove(entry);
+            }
+          }
+        },
+        callbackExecutor);
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.opengl.Matrix;
+import com.google.ar.core.TrackingState;
+import com.google.ar.core.examples.java.common.rendering.TriangleMesh;
+import java.util.Arrays;
+
+/**
+ * Finds the placed object under a screen position.
+ *
+ * <p>The tap is turned into a world-space ray, the candidates are narrowed down with the bounds in
+ * a {@link SceneBvh}, and the ray is intersected with the triangles of each candidate's model.
+ * Candidates are visited from the nearest bounds to the farthest, and the triangles of a candidate
+ * whose bounds start behind the nearest hit so far are skipped, so a tap mostly tests the meshes of
+ * the objects in front. Unlike {@code Frame.hitTest}, this only considers our virtual objects. Not
+ * thread safe.
+ */
+class ObjectPicker {
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] inverseMatrix = new float[16];
+  private final float[] screenPoint = new float[4];
+  private final float[] nearPoint = new float[4];
+  private final float[] farPoint = new float[4];
+  private final float[] worldOrigin = new float[3];
+  private final float[] worldDirection = new float[3];
+  private final float[] localOrigin = new float[3];
+  private final float[] localDirection = new float[3];
+  // The candidates hitting their model's bounds: the bits of the ray parameter at which the bounds
+  // are entered in the high half, so that sorting orders them by it, and the dense index of the
+  // object in the low half.
+  private long[] sortedCandidates = new long[64];
+
+  private int viewportWidth = 1;
+  private int viewportHeight = 1;
+
+  /** Sets the size of the view that tap coordinates are relative to. */
+  void setViewportSize(int width, int height) {
+    viewportWidth = Math.max(width, 1);
+    viewportHeight = Math.max(height, 1);
+  }
+
+  /**
+   * Returns the handle of the nearest tracking object under a screen position, or {@link
+   * SceneStore#INVALID_HANDLE} if there is none. {@code bvh} must be up to date with {@code
+   * store}.
+   *
+   * @param meshes The triangles of each model index.
+   */
+  int pick(
+      float screenX,
+      float screenY,
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      SceneStore store,
+      SceneBvh bvh,
+      TriangleMesh[] meshes) {
+    if (!computeRay(screenX, screenY, viewMatrix, projectionMatrix)) {
+      return SceneStore.INVALID_HANDLE;
+    }
+    return pickRay(worldOrigin, worldDirection, store, bvh, meshes);
+  }
+
+  /**
+   * Returns the handle of the nearest tracking object hit by a world-space ray, or {@link
+   * SceneStore#INVALID_HANDLE} if there is none.
+   *
+   * <p>The ray is parameterized from its origin (t = 0) to {@code origin + direction} (t = 1),
+   * e.g. from the near plane to the far plane. The ray parameter is unchanged by transforming the
+   * ray into model space, so hits on different objects can be compared directly.
+   */
+  int pickRay(
+      float[] origin, float[] direction, SceneStore store, SceneBvh bvh, TriangleMesh[] meshes) {
+    int candidateCount = bvh.queryRay(origin, direction, 1.0f);
+    int[] candidates = bvh.getResults();
+    if (sortedCandidates.length < candidateCount) {
+      sortedCandidates = new long[Math.max(candidateCount, 2 * sortedCandidates.length)];
+    }
+
+    // The world bounds in the hierarchy are enlarged and axis-aligned, so the ray is tested again
+    // against the tight bounds of each model.
+    int sortedCount = 0;
+    for (int c = 0; c < candidateCount; ++c) {
+      int i = store.indexOf(candidates[c]);
+      if (i < 0 || store.getTrackingState(i) != TrackingState.TRACKING) {
+        continue;
+      }
+      toModelSpace(store, i, origin, direction);
+      float entryT = meshes[store.getModelIndex(i)].intersectBounds(localOrigin, localDirection, 1);
+      if (entryT >= 0) {
+        // Non-negative floats sort like their bits.
+        sortedCandidates[sortedCount++] = ((long) Float.floatToIntBits(entryT) << 32) | i;
+      }
+    }
+    Arrays.sort(sortedCandidates, 0, sortedCount);
+
+    int nearestHandle = SceneStore.INVALID_HANDLE;
+    float nearestT = 1.0f;
+    for (int c = 0; c < sortedCount; ++c) {
+      float entryT = Float.intBitsToFloat((int) (sortedCandidates[c] >>> 32));
+      if (entryT >= nearestT) {
+        break; // This and the following candidates are all behind the nearest hit.
+      }
+      int i = (int) sortedCandidates[c];
+      toModelSpace(store, i, origin, direction);
+      float t = meshes[store.getModelIndex(i)].intersectRay(localOrigin, localDirection, nearestT);
+      if (t >= 0) {
+        nearestT = t;
+        nearestHandle = store.getHandle(i);
+      }
+    }
+    return nearestHandle;
+  }
+
+  /**
+   * Transforms a world-space ray into the space of the model of an object, before scaling, into
+   * {@link #localOrigin} and {@link #localDirection}. Pose matrices are rigid, so they are inverted
+   * by transposing their rotation.
+   */
+  private void toModelSpace(SceneStore store, int index, float[] origin, float[] direction) {
+    float[] poseMatrices = store.getPoseMatrices();
+    int m = index * SceneStore.FLOATS_PER_MATRIX;
+    float inverseScale = 1.0f / store.getScale(index);
+    float ox = origin[0] - poseMatrices[m + 12];
+    float oy = origin[1] - poseMatrices[m + 13];
+    float oz = origin[2] - poseMatrices[m + 14];
+    for (int axis = 0; axis < 3; ++axis) {
+      // The rotation column of each model axis.
+      int column = m + 4 * axis;
+      localOrigin[axis] =
+          (poseMatrices[column] * ox
+                  + poseMatrices[column + 1] * oy
+                  + poseMatrices[column + 2] * oz)
+              * inverseScale;
+      localDirection[axis] =
+          (poseMatrices[column] * direction[0]
+                  + poseMatrices[column + 1] * direction[1]
+                  + poseMatrices[column + 2] * direction[2])
+              * inverseScale;
+    }
+  }
+
+  /**
+   * Unprojects a screen position on the near and far planes, into {@link #worldOrigin} and {@link
+   * #worldDirection}. Returns false if the camera matrices are degenerate.
+   */
+  private boolean computeRay(
+      float screenX, float screenY, float[] viewMatrix, float[] projectionMatrix) {
+    Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+    if (!Matrix.invertM(inverseMatrix, 0, viewProjectionMatrix, 0)) {
+      return false;
+    }
+    float ndcX = 2.0f * screenX / viewportWidth - 1.0f;
+    float ndcY = 1.0f - 2.0f * screenY / viewportHeight;
+    if (!unproject(ndcX, ndcY, -1.0f, nearPoint) || !unproject(ndcX, ndcY, 1.0f, farPoint)) {
+      return false;
+    }
+    for (int axis = 0; axis < 3; ++axis) {
+      worldOrigin[axis] = nearPoint[axis];
+      worldDirection[axis] = farPoint[axis] - nearPoint[axis];
+    }
+    return true;
+  }
+
+  private boolean unproject(float ndcX, float ndcY, float ndcZ, float[] outPoint) {
+    screenPoint[0] = ndcX;
+    screenPoint[1] = ndcY;
+    screenPoint[2] = ndcZ;
+    screenPoint[3] = 1.0f;
+    Matrix.multiplyMV(outPoint, 0, inverseMatrix, 0, screenPoint, 0);
+    if (outPoint[3] == 0) {
+      return false;
+    }
+    for (int axis = 0; axis < 3; ++axis) {
+      outPoint[axis] /= outPoint[3];
+    }
+    return true;
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+/**
+ * A One-Euro filter for poses, which eases objects towards the poses reported by ARCore instead of
+ * snapping to them.
+ *
+ * <p>The cutoff frequency rises with the speed of the pose, so small refinements are smoothed out
+ * while large corrections are followed quickly. Positions are filtered linearly and rotations by
+ * normalized interpolation. The filter holds no state itself: the state of each pose lives in
+ * caller-owned arrays, so that any number of poses can be filtered without allocating.
+ */
+class PoseSmoother {
+  /** Floats per target pose: translation x, y, z then rotation quaternion x, y, z, w. */
+  static final int FLOATS_PER_POSE = 7;
+  /** Floats per filter state: the filtered pose, then the filtered linear and angular speeds. */
+  static final int FLOATS_PER_STATE = FLOATS_PER_POSE + 2;
+
+  private static final float CONVERGED_DISTANCE_M = 1e-4f;
+  private static final float CONVERGED_ANGLE_RAD = 1e-4f;
+  private static final float MAX_STEP_SECONDS = 0.1f;
+
+  private final float minCutoffHz;
+  private final float positionBeta;
+  private final float rotationBeta;
+  private final float derivativeCutoffHz;
+
+  /**
+   * Creates a filter.
+   *
+   * @param minCutoffHz The cutoff frequency of a pose at rest. Lower values smooth more.
+   * @param positionBeta How fast the cutoff rises with the linear speed, in Hz per m/s.
+   * @param rotationBeta How fast the cutoff rises with the angular speed, in Hz per rad/s.
+   * @param derivativeCutoffHz The cutoff frequency used to filter the speeds.
+   */
+  PoseSmoother(
+      float minCutoffHz, float positionBeta, float rotationBeta, float derivativeCutoffHz) {
+    this.minCutoffHz = minCutoffHz;
+    this.positionBeta = positionBeta;
+    this.rotationBeta = rotationBeta;
+    this.derivativeCutoffHz = derivativeCutoffHz;
+  }
+
+  /** Sets a filter state to rest at a target pose. */
+  static void reset(float[] states, int stateOffset, float[] targets, int targetOffset) {
+    System.arraycopy(targets, targetOffset, states, stateOffset, FLOATS_PER_POSE);
+    states[stateOffset + FLOATS_PER_POSE] = 0;
+    states[stateOffset + FLOATS_PER_POSE + 1] = 0;
+  }
+
+  /**
+   * Advances a filter state towards its target pose.
+   *
+   * @return false once the filtered pose has reached the target, in which case it is snapped to
+   *     the target and no more steps are needed until the target changes.
+   */
+  boolean step(
+      float[] states, int stateOffset, float[] targets, int targetOffset, float deltaSeconds) {
+    if (deltaSeconds <= 0) {
+      return true;
+    }
+    float dt = Math.min(deltaSeconds, MAX_STEP_SECONDS);
+    float derivativeAlpha = alpha(derivativeCutoffHz, dt);
+
+    // Position.
+    float dx = targets[targetOffset] - states[stateOffset];
+    float dy = targets[targetOffset + 1] - states[stateOffset + 1];
+    float dz = targets[targetOffset + 2] - states[stateOffset + 2];
+    float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    int linearSpeed = stateOffset + FLOATS_PER_POSE;
+    states[linearSpeed] += derivativeAlpha * (distance / dt - states[linearSpeed]);
+    float positionAlpha = alpha(minCutoffHz + positionBeta * states[linearSpeed], dt);
+    states[stateOffset] += positionAlpha * dx;
+    states[stateOffset + 1] += positionAlpha * dy;
+    states[stateOffset + 2] += positionAlpha * dz;
+
+    // Rotation. The target is negated if needed, so that the shorter arc is taken.
+    int q = stateOffset + 3;
+    int t = targetOffset + 3;
+    float dot =
+        states[q] * targets[t]
+            + states[q + 1] * targets[t + 1]
+            + states[q + 2] * targets[t + 2]
+            + states[q + 3] * targets[t + 3];
+    float sign = dot < 0 ? -1 : 1;
+    // The angle is read from the chord between the quaternions, which is 2 * sin(angle / 4). The
+    // arc cosine of the dot product cannot resolve angles below about 1e-3 rad in float precision,
+    // so poses would never converge.
+    float chordSquared = 0;
+    for (int i = 0; i < 4; ++i) {
+      float d = sign * targets[t + i] - states[q + i];
+      chordSquared += d * d;
+    }
+    float angle = 4 * (float) Math.asin(Math.min(1, 0.5f * (float) Math.sqrt(chordSquared)));
+    int angularSpeed = stateOffset + FLOATS_PER_POSE + 1;
+    states[angularSpeed] += derivativeAlpha * (angle / dt - states[angularSpeed]);
+    float rotationAlpha = alpha(minCutoffHz + rotationBeta * states[angularSpeed], dt);
+    float lengthSquared = 0;
+    for (int i = 0; i < 4; ++i) {
+      states[q + i] += rotationAlpha * (sign * targets[t + i] - states[q + i]);
+      lengthSquared += states[q + i] * states[q + i];
+    }
+    float inverseLength = 1.0f / (float) Math.sqrt(lengthSquared);
+    for (int i = 0; i < 4; ++i) {
+      states[q + i] *= inverseLength;
+    }
+
+    if (distance * (1 - positionAlpha) < CONVERGED_DISTANCE_M
+        && angle * (1 - rotationAlpha) < CONVERGED_ANGLE_RAD) {
+      reset(states, stateOffset, targets, targetOffset);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Writes the filtered pose of a state as a column-major 4x4 matrix, like {@code
+   * Pose.toMatrix()}.
+   */
+  static void toMatrix(float[] states, int stateOffset, float[] outMatrix, int matrixOffset) {
+    float qx = states[stateOffset + 3];
+    float qy = states[stateOffset + 4];
+    float qz = states[stateOffset + 5];
+    float qw = states[stateOffset + 6];
+    outMatrix[matrixOffset] = 1 - 2 * (qy * qy + qz * qz);
+    outMatrix[matrixOffset + 1] = 2 * (qx * qy + qz * qw);
+    outMatrix[matrixOffset + 2] = 2 * (qx * qz - qy * qw);
+    outMatrix[matrixOffset + 3] = 0;
+    outMatrix[matrixOffset + 4] = 2 * (qx * qy - qz * qw);
+    outMatrix[matrixOffset + 5] = 1 - 2 * (qx * qx + qz * qz);
+    outMatrix[matrixOffset + 6] = 2 * (qy * qz + qx * qw);
+    outMatrix[matrixOffset + 7] = 0;
+    outMatrix[matrixOffset + 8] = 2 * (qx * qz + qy * qw);
+    outMatrix[matrixOffset + 9] = 2 * (qy * qz - qx * qw);
+    outMatrix[matrixOffset + 10] = 1 - 2 * (qx * qx + qy * qy);
+    outMatrix[matrixOffset + 11] = 0;
+    outMatrix[matrixOffset + 12] = states[stateOffset];
+    outMatrix[matrixOffset + 13] = states[stateOffset + 1];
+    outMatrix[matrixOffset + 14] = states[stateOffset + 2];
+    outMatrix[matrixOffset + 15] = 1;
+  }
+
+  /** The smoothing factor of an exponential filter with the given cutoff frequency. */
+  private static float alpha(float cutoffHz, float dt) {
+    float tau = 1.0f / (2 * (float) Math.PI * cutoffHz);
+    return 1.0f / (1.0f + tau / dt);
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.ar.core.Pose;
+import java.util.ArrayList;
+
+/**
+ * Queues resolve requests and starts at most a fixed number of them at a time through the {@link
+ * CloudAnchorManager}, the most promising first.
+ *
+ * <p>Requests are ranked by importance and recency, divided by their last known distance to the
+ * camera, so that the objects the user is most likely to look at appear first. An in-flight
+ * resolve whose anchor the user walked away from is cancelled and queued again when a better
+ * ranked request is waiting. A request can be delayed, e.g. to back off before resolving an anchor
+ * again that failed, in which case it is not started before its delay is over.
+ *
+ * <p>The manager is only called from {@link #update(Pose)}, so that its monitor is always taken
+ * after this object's.
+ */
+class ResolveScheduler {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + ResolveScheduler.class.getSimpleName();
+  private static final long UPDATE_INTERVAL_MS = 250;
+  // The distance assumed for anchors whose position is not known yet.
+  private static final float UNKNOWN_DISTANCE_M = 5.0f;
+  // How much a recent request outranks an old one of the same importance.
+  private static final float RECENCY_WEIGHT = 1.0f;
+  // An in-flight resolve is only preempted once it has had this long to complete.
+  private static final long MIN_RESOLVE_TIME_BEFORE_PREEMPTION_MS = 2000;
+
+  /** A queued or in-flight resolve. */
+  private static final class Request {
+    final String cloudAnchorId;
+    final int objectId;
+    final float importance;
+    final float recency;
+    final float x;
+    final float y;
+    final float z;
+    final long notBeforeMillis;
+    final CloudAnchorManager.CloudAnchorResolveListener listener;
+    float score;
+    @Nullable CloudAnchorManager.CloudAnchorFuture future;
+    long startTimeMillis;
+
+    Request(
+        String cloudAnchorId,
+        int objectId,
+        float importance,
+        float recency,
+        float x,
+        float y,
+        float z,
+        long notBeforeMillis,
+        CloudAnchorManager.CloudAnchorResolveListener listener) {
+      this.cloudAnchorId = cloudAnchorId;
+      this.objectId = objectId;
+      this.importance = importance;
+      this.recency = recency;
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      this.notBeforeMillis = notBeforeMillis;
+      this.listener = listener;
+    }
+
+    boolean hasPosition() {
+      return !Float.isNaN(x);
+    }
+  }
+
+  private final CloudAnchorManager cloudManager;
+  private final AnchorRegistry anchorRegistry;
+  private final int maxInFlight;
+  private final float preemptDistanceMeters;
+
+  private final ArrayList<Request> queuedRequests = new ArrayList<>();
+  private final ArrayList<Request> inFlightRequests = new ArrayList<>();
+  // Incremented by clear(), so that resolves started before are dropped.
+  private int generation;
+  private long nextUpdateMillis;
+
+  /**
+   * Creates a scheduler.
+   *
+   * @param maxInFlight The number of resolves running at the same time.
+   * @param preemptDistanceMeters In-flight resolves of anchors farther than this from the camera
+   *     can be preempted.
+   */
+  ResolveScheduler(
+      CloudAnchorManager cloudManager,
+      AnchorRegistry anchorRegistry,
+      int maxInFlight,
+      float preemptDistanceMeters) {
+    this.cloudManager = cloudManager;
+    this.anchorRegistry = anchorRegistry;
+    this.maxInFlight = maxInFlight;
+    this.preemptDistanceMeters = preemptDistanceMeters;
+  }
+
+  /**
+   * Queues a resolve. The {@code listener} is invoked like the one passed to {@link
+   * CloudAnchorManager#resolveCloudAnchor}, once the resolve has been started and has completed.
+   *
+   * @param importance How much the anchor matters, e.g. the number of objects placed on it.
+   * @param recency From 0 for the oldest anchors to 1 for the most recently used ones.
+   * @param x The last known position of the anchor, or NaN if it is not known.
+   * @param delayMillis How long to wait before the resolve may start, or 0 to start it as soon as
+   *     it ranks among the best requests.
+   */
+  synchronized void request(
+      String cloudAnchorId,
+      int objectId,
+      float importance,
+      float recency,
+      float x,
+      float y,
+      float z,
+      long delayMillis,
+      CloudAnchorManager.CloudAnchorResolveListener listener) {
+    long notBeforeMillis = SystemClock.uptimeMillis() + delayMillis;
+    queuedRequests.add(
+        new Request(
+            cloudAnchorId, objectId, importance, recency, x, y, z, notBeforeMillis, listener));
+    // Start it on the next update. A delayed request is picked up by the periodic updates.
+    if (delayMillis <= 0) {
+      nextUpdateMillis = 0;
+    }
+  }
+
+  /** Drops the queued requests. Resolves that are in flight are dropped when they complete. */
+  synchronized void clear() {
+    queuedRequests.clear();
+    inFlightRequests.clear();
+    generation++;
+  }
+
+  /** Drops the queued requests of an anchor, and cancels its in-flight resolves. */
+  synchronized void cancel(String cloudAnchorId) {
+    for (int i = queuedRequests.size() - 1; i >= 0; --i) {
+      if (queuedRequests.get(i).cloudAnchorId.equals(cloudAnchorId)) {
+        removeQueued(i);
+      }
+    }
+    for (int i = inFlightRequests.size() - 1; i >= 0; --i) {
+      Request request = inFlightRequests.get(i);
+      if (request.cloudAnchorId.equals(cloudAnchorId)) {
+        inFlightRequests.remove(i);
+        if (request.future != null) {
+          request.future.cancel(false);
+        }
+        nextUpdateMillis = 0;
+      }
+    }
+  }
+
+  synchronized int getQueuedCount() {
+    return queuedRequests.size();
+  }
+
+  synchronized int getInFlightCount() {
+    return inFlightRequests.size();
+  }
+
+  /**
+   * Ranks the queued requests from the camera pose, preempts at most one far in-flight resolve and
+   * starts the best ranked requests whose delay is over while fewer than the maximum are in flight.
+   * Should be called on every frame; work is only done a few times per second, or when a request
+   * was added or completed.
+   */
+  synchronized void update(Pose cameraPose) {
+    long now = SystemClock.uptimeMillis();
+    if (queuedRequests.isEmpty() || now < nextUpdateMillis) {
+      return;
+    }
+    nextUpdateMillis = now + UPDATE_INTERVAL_MS;
+    float cameraX = cameraPose.tx();
+    float cameraY = cameraPose.ty();
+    float cameraZ = cameraPose.tz();
+
+    Request best = null;
+    for (int i = 0; i < queuedRequests.size(); ++i) {
+      Request request = queuedRequests.get(i);
+      request.score = score(request, cameraX, cameraY, cameraZ);
+      if (request.notBeforeMillis <= now && (best == null || request.score > best.score)) {
+        best = request;
+      }
+    }
+
+    if (inFlightRequests.size() >= maxInFlight && best != null) {
+      preemptFarthest(best.score, cameraX, cameraY, cameraZ, now);
+    }
+
+    // Few requests start per update, so selecting the best one each time beats sorting the queue.
+    while (inFlightRequests.size() < maxInFlight) {
+      int bestIndex = -1;
+      for (int i = 0; i < queuedRequests.size(); ++i) {
+        Request request = queuedRequests.get(i);
+        if (request.notBeforeMillis <= now
+            && (bestIndex < 0 || request.score > queuedRequests.get(bestIndex).score)) {
+          bestIndex = i;
+        }
+      }
+      if (bestIndex < 0) {
+        break; // Nothing queued, or still backing off.
+      }
+      start(removeQueued(bestIndex), now);
+    }
+  }
+
+  private void preemptFarthest(
+      float bestQueuedScore, float cameraX, float cameraY, float cameraZ, long now) {
+    Request farthest = null;
+    float farthestDistance = preemptDistanceMeters;
+    for (int i = 0; i < inFlightRequests.size(); ++i) {
+      Request request = inFlightRequests.get(i);
+      if (!request.hasPosition()
+          || now - request.startTimeMillis < MIN_RESOLVE_TIME_BEFORE_PREEMPTION_MS) {
+        continue;
+      }
+      float distance = distance(request, cameraX, cameraY, cameraZ);
+      if (distance > farthestDistance) {
+        farthestDistance = distance;
+        farthest = request;
+      }
+    }
+    if (farthest == null
+        || score(farthest, cameraX, cameraY, cameraZ) >= bestQueuedScore
+        || farthest.future == null
+        || !farthest.future.cancel(false)) {
+      return;
+    }
+    Log.d(TAG, "Preempted the resolve of " + farthest.cloudAnchorId);
+    inFlightRequests.remove(farthest);
+    farthest.future = null;
+    farthest.score = score(farthest, cameraX, cameraY, cameraZ);
+    queuedRequests.add(farthest);
+  }
+
+  private void start(Request request, long now) {
+    request.startTimeMillis = now;
+    inFlightRequests.add(request);
+    request.future =
+        cloudManager.resolveCloudAnchor(
+            request.cloudAnchorId, request.objectId, new CompletionListener(request, generation));
+  }
+
+  /** Removes a queued request by swapping the last one into its place. */
+  private Request removeQueued(int index) {
+    Request request = queuedRequests.get(index);
+    int last = queuedRequests.size() - 1;
+    queuedRequests.set(index, queuedRequests.get(last));
+    queuedRequests.remove(last);
+    return request;
+  }
+
+  private static float score(Request request, float cameraX, float cameraY, float cameraZ) {
+    float distance =
+        request.hasPosition() ? distance(request, cameraX, cameraY, cameraZ) : UNKNOWN_DISTANCE_M;
+    return (request.importance + RECENCY_WEIGHT * request.recency) / (1.0f + distance);
+  }
+
+  private static float distance(Request request, float cameraX, float cameraY, float cameraZ) {
+    float dx = request.x - cameraX;
+    float dy = request.y - cameraY;
+    float dz = request.z - cameraZ;
+    return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+
+  /** Frees the slot of a completed resolve, then forwards the result. */
+  private final class CompletionListener
+      implements CloudAnchorManager.CloudAnchorResolveListener {
+    private final Request request;
+    private final int requestGeneration;
+
+    CompletionListener(Request request, int requestGeneration) {
+      this.request = request;
+      this.requestGeneration = requestGeneration;
+    }
+
+    @Override
+    public void onCloudTaskComplete(CloudAnchorManager.CloudAnchorResult result, int objectId) {
+      synchronized (ResolveScheduler.this) {
+        if (requestGeneration != generation) {
+          anchorRegistry.release(result.anchor);
+          return;
+        }
+        inFlightRequests.remove(request);
+        nextUpdateMillis = 0;
+      }
+      // Called without holding this monitor, as the listener may take other locks.
+      request.listener.onCloudTaskComplete(result, objectId);
+    }
+
+    @Override
+    public void onShowResolveMessage() {
+      request.listener.onShowResolveMessage();
+    }
+  }
+}
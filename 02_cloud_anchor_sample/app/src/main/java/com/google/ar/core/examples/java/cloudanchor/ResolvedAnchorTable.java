@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.examples.java.common.utils.IntArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The roots and objects of a room that are resolved, being resolved or placed, keyed by cloud
+ * anchor ID and object key. Each update of the room is diffed against it, so that only new roots
+ * are resolved and only removed roots and objects are taken out of the scene. A root whose resolve
+ * failed stays in the table, so that it is neither resolved again by an update of the room nor
+ * mistaken for a root that was never seen.
+ *
+ * <p>Not thread safe.
+ */
+class ResolvedAnchorTable {
+  /** The handle of a root whose resolve is in flight. */
+  static final int IN_FLIGHT = SceneStore.INVALID_HANDLE;
+
+  /** The handle of a root whose resolve failed, and which is not being resolved again. */
+  static final int FAILED = SceneStore.INVALID_HANDLE - 1;
+
+  // Cloud anchor ID to scene store handle, IN_FLIGHT or FAILED.
+  private final HashMap<String, Integer> rootHandles = new HashMap<>();
+  // Cloud anchor ID to the number of failed resolves of roots that are not resolved yet.
+  private final HashMap<String, Integer> rootFailureCounts = new HashMap<>();
+  // Object key to scene store handle.
+  private final HashMap<String, Integer> objectHandles = new HashMap<>();
+  private final HashSet<String> currentKeys = new HashSet<>();
+
+  /**
+   * Diffs the roots of a room against the table. New roots are marked in flight and their indices
+   * in {@code room} are added to {@code outNewRootIndices}. The IDs of the roots that are no
+   * longer in the room are added to {@code outRemovedRootIds}, to be taken out with {@link
+   * #removeRoot}.
+   */
+  void diffRoots(
+      RoomAnchors room, List<Integer> outNewRootIndices, List<String> outRemovedRootIds) {
+    currentKeys.clear();
+    for (int i = 0; i < room.getRootCount(); ++i) {
+      String rootId = room.getRootCloudAnchorId(i);
+      currentKeys.add(rootId);
+      if (!rootHandles.containsKey(rootId)) {
+        rootHandles.put(rootId, IN_FLIGHT);
+        outNewRootIndices.add(i);
+      }
+    }
+    for (String rootId : rootHandles.keySet()) {
+      if (!currentKeys.contains(rootId)) {
+        outRemovedRootIds.add(rootId);
+      }
+    }
+  }
+
+  /**
+   * Diffs the objects of a room against the table, and adds the handles of the placed objects
+   * that are no longer in the room to {@code outRemovedHandles}, forgetting them.
+   */
+  void diffObjects(RoomAnchors room, IntArrayList outRemovedHandles) {
+    currentKeys.clear();
+    for (int i = 0; i < room.getObjectCount(); ++i) {
+      RoomAnchors.RoomObject object = room.getObject(i);
+      currentKeys.add(object.getKey(room.getRootCloudAnchorId(object.rootIndex)));
+    }
+    Iterator<Map.Entry<String, Integer>> iter = objectHandles.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<String, Integer> entry = iter.next();
+      if (!currentKeys.contains(entry.getKey())) {
+        outRemovedHandles.add(entry.getValue());
+        iter.remove();
+      }
+    }
+  }
+
+  /** Returns whether a resolve of the root is in flight. */
+  boolean isInFlight(String rootId) {
+    Integer handle = rootHandles.get(rootId);
+    return handle != null && handle == IN_FLIGHT;
+  }
+
+  /** Returns whether the root failed to resolve and is not being resolved again. */
+  boolean isFailed(String rootId) {
+    Integer handle = rootHandles.get(rootId);
+    return handle != null && handle == FAILED;
+  }
+
+  /**
+   * Returns the handle of a root, {@link #IN_FLIGHT} while it is being resolved, {@link #FAILED}
+   * if its resolve failed, or {@link SceneStore#INVALID_HANDLE} if it is not in the table.
+   */
+  int getRootHandle(String rootId) {
+    Integer handle = rootHandles.get(rootId);
+    return handle != null ? handle : SceneStore.INVALID_HANDLE;
+  }
+
+  /** Records the handle of a root whose resolve succeeded. */
+  void setRootHandle(String rootId, int handle) {
+    rootHandles.put(rootId, handle);
+    rootFailureCounts.remove(rootId);
+  }
+
+  /**
+   * Counts a failed resolve of an in-flight root, and returns how many of its resolves have failed
+   * so far. The root stays in flight, for a resolve that is requested again.
+   */
+  int addFailure(String rootId) {
+    Integer failures = rootFailureCounts.get(rootId);
+    int count = failures == null ? 1 : failures + 1;
+    rootFailureCounts.put(rootId, count);
+    return count;
+  }
+
+  /** Marks an in-flight root as failed, once its resolve is not going to be requested again. */
+  void setFailed(String rootId) {
+    rootHandles.put(rootId, FAILED);
+  }
+
+  /**
+   * Forgets a root that is no longer in the room, and adds the handles of its placed objects to
+   * {@code outRemovedHandles}.
+   */
+  void removeRoot(String rootId, IntArrayList outRemovedHandles) {
+    rootHandles.remove(rootId);
+    rootFailureCounts.remove(rootId);
+    removeObjects(rootId, outRemovedHandles);
+  }
+
+  /**
+   * Marks a root whose anchor was detached to stay within the anchor budget as in flight, and
+   * forgets its objects, which were taken out of the scene with it. They are placed again once the
+   * root is resolved again. Does nothing if the root is not in the table.
+   */
+  void detachRoot(String rootId) {
+    if (!rootHandles.containsKey(rootId)) {
+      return;
+    }
+    rootHandles.put(rootId, IN_FLIGHT);
+    removeObjects(rootId, null);
+  }
+
+  private void removeObjects(String rootId, @Nullable IntArrayList outRemovedHandles) {
+    String prefix = rootId + '/';
+    Iterator<Map.Entry<String, Integer>> iter = objectHandles.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<String, Integer> entry = iter.next();
+      if (entry.getKey().startsWith(prefix)) {
+        if (outRemovedHandles != null) {
+          outRemovedHandles.add(entry.getValue());
+        }
+        iter.remove();
+      }
+    }
+  }
+
+  boolean isObjectPlaced(String objectKey) {
+    return objectHandles.containsKey(objectKey);
+  }
+
+  void putObject(String objectKey, int handle) {
+    objectHandles.put(objectKey, handle);
+  }
+
+  void clear() {
+    rootHandles.clear();
+    rootFailureCounts.clear();
+    objectHandles.clear();
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.ArrayList;
+
+/**
+ * The content of a room as shared in Firebase: a few hosted root cloud anchors, and the placed
+ * objects, each stored as a pose relative to one of the roots.
+ *
+ * <p>Poses are 7 floats: translation x, y, z then rotation quaternion x, y, z, w.
+ */
+class RoomAnchors {
+  /** The pose of an object placed right on its root. */
+  static final float[] IDENTITY_POSE = {0, 0, 0, 0, 0, 0, 1};
+
+  /** A placed object. */
+  static final class RoomObject {
+    final int rootIndex;
+    final int modelIndex;
+    final float[] offsetPose = new float[PoseSmoother.FLOATS_PER_POSE];
+
+    RoomObject(int rootIndex, int modelIndex, float[] offsetPose, int offset) {
+      this.rootIndex = rootIndex;
+      this.modelIndex = modelIndex;
+      System.arraycopy(offsetPose, offset, this.offsetPose, 0, PoseSmoother.FLOATS_PER_POSE);
+    }
+
+    /** Returns a key identifying this object within its room, given its root's cloud anchor ID. */
+    String getKey(String rootCloudAnchorId) {
+      StringBuilder key = new StringBuilder(rootCloudAnchorId).append('/').append(modelIndex);
+      for (float value : offsetPose) {
+        key.append('/').append(value);
+      }
+      return key.toString();
+    }
+  }
+
+  private final ArrayList<String> rootCloudAnchorIds = new ArrayList<>();
+  private final ArrayList<RoomObject> objects = new ArrayList<>();
+
+  void clear() {
+    rootCloudAnchorIds.clear();
+    objects.clear();
+  }
+
+  /** Replaces the content of this room with a copy of {@code other}. */
+  void copyFrom(RoomAnchors other) {
+    clear();
+    rootCloudAnchorIds.addAll(other.rootCloudAnchorIds);
+    // Objects are immutable, so they are shared.
+    objects.addAll(other.objects);
+  }
+
+  /** Adds a root cloud anchor, and returns its index. */
+  int addRoot(String cloudAnchorId) {
+    rootCloudAnchorIds.add(cloudAnchorId);
+    return rootCloudAnchorIds.size() - 1;
+  }
+
+  /** Adds an object at {@code offsetPose[offset]} relative to the root at {@code rootIndex}. */
+  void addObject(int rootIndex, int modelIndex, float[] offsetPose, int offset) {
+    objects.add(new RoomObject(rootIndex, modelIndex, offsetPose, offset));
+  }
+
+  int getRootCount() {
+    return rootCloudAnchorIds.size();
+  }
+
+  String getRootCloudAnchorId(int rootIndex) {
+    return rootCloudAnchorIds.get(rootIndex);
+  }
+
+  int getObjectCount() {
+    return objects.size();
+  }
+
+  RoomObject getObject(int index) {
+    return objects.get(index);
+  }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import com.google.ar.core.examples.java.common.utils.LongIntHashMap;
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over the world-space bounds of the objects in a {@link SceneStore}.
+ *
+ * <p>This is a dynamic AABB tree: each object is a leaf whose bounds are enlarged by a margin, and
+ * a leaf is only reinserted when the object moves out of its enlarged bounds. Inserting picks the
+ * sibling with the smallest surface area increase, and the tree is kept balanced with rotations.
+ * Queries return object handles, and cost in proportion to the number of nodes they overlap.
+ *
+ * <p>Nodes are stored in primitive arrays. Not thread safe.
+ */
+class SceneBvh {
+  private static final int NULL_NODE = -1;
+  private static final int BOUNDS_PER_NODE = 6; // min x, y, z, max x, y, z.
+  private static final int INITIAL_CAPACITY = 16;
+  // Leaves are enlarged by this margin, so that small pose refinements do not touch the tree.
+  private static final float FAT_MARGIN_M = 0.05f;
+
+  private float[] bounds = new float[INITIAL_CAPACITY * BOUNDS_PER_NODE];
+  private int[] parents = new int[INITIAL_CAPACITY];
+  private int[] children1 = new int[INITIAL_CAPACITY];
+  private int[] children2 = new int[INITIAL_CAPACITY];
+  private int[] heights = new int[INITIAL_CAPACITY];
+  // The object handle of a leaf, or SceneStore.INVALID_HANDLE for internal nodes.
+  private int[] handles = new int[INITIAL_CAPACITY];
+  private int nodeCapacity = INITIAL_CAPACITY;
+  private int nodeCount;
+  private int freeList = NULL_NODE;
+  private int root = NULL_NODE;
+
+  private final LongIntHashMap handleToLeaf = new LongIntHashMap(INITIAL_CAPACITY);
+
+  // Query state, reused between queries.
+  private int[] stack = new int[INITIAL_CAPACITY];
+  private int[] results = new int[INITIAL_CAPACITY];
+  private int resultCount;
+  private final float[] frustumPlanes = new float[24];
+  private final float[] scratchBounds = new float[BOUNDS_PER_NODE];
+
+  SceneBvh() {
+    initFreeList(0);
+  }
+
+  /** Returns the number of objects in the hierarchy. */
+  int size() {
+    return handleToLeaf.size();
+  }
+
+  /**
+   * Inserts the objects of {@code store} that are new, and refits those whose pose changed, as
+   * reported by {@link SceneStore#DIRTY_POSE}. Only the objects listed by {@link
+   * SceneStore#getChangedHandles()} are visited, so it must be called before the dirty bits are
+   * cleared. New objects are always listed, as they start with every dirty bit set.
+   *
+   * @param modelLocalBounds The local bounds of each model, 6 floats per model index, as returned
+   *     by {@code ObjectRenderer.getLocalBounds}.
+   */
+  void update(SceneStore store, float[] modelLocalBounds) {
+    float[] poseMatrices = store.getPoseMatrices();
+    int[] changedHandles = store.getChangedHandles();
+    for (int c = 0; c < store.getChangedCount(); ++c) {
+      int handle = changedHandles[c];
+      int i = store.indexOf(handle);
+      if (i < 0 || store.getModelIndex(i) == SceneStore.NO_MODEL) {
+        continue; // Removed since, or a root, which is not drawn.
+      }
+      if ((store.getDirtyBits(i) & SceneStore.DIRTY_POSE) == 0) {
+        continue;
+      }
+      int leaf = handleToLeaf.get(handle, NULL_NODE);
+      transformBounds(
+          modelLocalBounds,
+          store.getModelIndex(i) * BOUNDS_PER_NODE,
+          poseMatrices,
+          i * SceneStore.FLOATS_PER_MATRIX,
+          store.getScale(i),
+          scratchBounds);
+      if (leaf == NULL_NODE) {
+        insert(handle, scratchBounds);
+      } else {
+        move(leaf, scratchBounds);
+      }
+    }
+  }
+
+  /** Removes the object with the given handle. Does nothing if it is not in the hierarchy. */
+  void remove(int handle) {
+    int leaf = handleToLeaf.remove(handle, NULL_NODE);
+    if (leaf == NULL_NODE) {
+      return;
+    }
+    removeLeaf(leaf);
+    freeNode(leaf);
+  }
+
+  /** Removes all objects. */
+  void clear() {
+    handleToLeaf.clear();
+    root = NULL_NODE;
+    nodeCount = 0;
+    initFreeList(0);
+  }
+
+  /**
+   * Finds the objects whose bounds intersect the view frustum.
+   *
+   * @param viewProjection The 4x4 view-projection matrix, in column-major order.
+   * @return The number of results, available through {@link #getResults()}.
+   */
+  int queryFrustum(float[] viewProjection) {
+    // Gribb-Hartmann plane extraction: row 3 plus or minus rows 0, 1 and 2.
+    for (int row = 0; row < 3; ++row) {
+      for (int sign = 0; sign < 2; ++sign) {
+        int plane = (row * 2 + sign) * 4;
+        float s = sign == 0 ? 1 : -1;
+        for (int column = 0; column < 4; ++column) {
+          frustumPlanes[plane + column] =
+              viewProjection[column * 4 + 3] + s * viewProjection[column * 4 + row];
+        }
+      }
+    }
+
+    resultCount = 0;
+    int stackSize = pushRoot();
+    while (stackSize > 0) {
+      int node = stack[--stackSize];
+      if (!intersectsFrustum(node)) {
+        continue;
+      }
+      stackSize = visit(node, stackSize);
+    }
+    return resultCount;
+  }
+
+  /**
+   * Finds the objects whose bounds are hit by a ray.
+   *
+   * @param origin The origin of the ray.
+   * @param direction The direction of the ray. Need not be normalized.
+   * @param maxDistance The length of the ray, in units of {@code direction}.
+   * @return The number of results, available through {@link #getResults()}.
+   */
+  int queryRay(float[] origin, float[] direction, float maxDistance) {
+    resultCount = 0;
+    int stackSize = pushRoot();
+    while (stackSize > 0) {
+      int node = stack[--stackSize];
+      if (!intersectsRay(node, origin, direction, maxDistance)) {
+        continue;
+      }
+      stackSize = visit(node, stackSize);
+    }
+    return resultCount;
+  }
+
+  /**
+   * Finds the objects whose bounds are within {@code radius} of a point.
+   *
+   * @return The number of results, available through {@link #getResults()}.
+   */
+  int queryRadius(float x, float y, float z, float radius) {
+    resultCount = 0;
+    int stackSize = pushRoot();
+    float radiusSquared = radius * radius;
+    while (stackSize > 0) {
+      int node = stack[--stackSize];
+      if (distanceSquaredToBounds(node, x, y, z) > radiusSquared) {
+        continue;
+      }
+      stackSize = visit(node, stackSize);
+    }
+    return resultCount;
+  }
+
+  /**
+   * Returns the handles found by the last query, in no particular order. Only the first entries,
+   * as many as the query returned, are valid. The array is reused by the next query.
+   */
+  int[] getResults() {
+    return results;
+  }
+
+  private int pushRoot() {
+    if (root == NULL_NODE) {
+      return 0;
+    }
+    stack[0] = root;
+    return 1;
+  }
+
+  /** Adds a leaf to the results, or pushes the children of an internal node. */
+  private int visit(int node, int stackSize) {
+    if (isLeaf(node)) {
+      if (resultCount == results.length) {
+        results = Arrays.copyOf(results, results.length * 2);
+      }
+      results[resultCount++] = handles[node];
+      return stackSize;
+    }
+    if (stackSize + 2 > stack.length) {
+      stack = Arrays.copyOf(stack, stack.length * 2);
+    }
+    stack[stackSize++] = children1[node];
+    stack[stackSize++] = children2[node];
+    return stackSize;
+  }
+
+  private boolean intersectsFrustum(int node) {
+    int b = node * BOUNDS_PER_NODE;
+    for (int plane = 0; plane < 24; plane += 4) {
+      float nx = frustumPlanes[plane];
+      float ny = frustumPlanes[plane + 1];
+      float nz = frustumPlanes[plane + 2];
+      // The corner of the box farthest along the plane normal.
+      float px = nx >= 0 ? bounds[b + 3] : bounds[b];
+      float py = ny >= 0 ? bounds[b + 4] : bounds[b + 1];
+      float pz = nz >= 0 ? bounds[b + 5] : bounds[b + 2];
+      if (nx * px + ny * py + nz * pz + frustumPlanes[plane + 3] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean intersectsRay(int node, float[] origin, float[] direction, float maxDistance) {
+    int b = node * BOUNDS_PER_NODE;
+    float tMin = 0;
+    float tMax = maxDistance;
+    for (int axis = 0; axis < 3; ++axis) {
+      float min = bounds[b + axis];
+      float max = bounds[b + 3 + axis];
+      if (direction[axis] == 0) {
+        if (origin[axis] < min || origin[axis] > max) {
+          return false;
+        }
+        continue;
+      }
+      float inverse = 1.0f / direction[axis];
+      float t1 = (min - origin[axis]) * inverse;
+      float t2 = (max - origin[axis]) * inverse;
+      tMin = Math.max(tMin, Math.min(t1, t2));
+      tMax = Math.min(tMax, Math.max(t1, t2));
+      if (tMin > tMax) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private float distanceSquaredToBounds(int node, float x, float y, float z) {
+    int b = node * BOUNDS_PER_NODE;
+    float dx = Math.max(0, Math.max(bounds[b] - x, x - bounds[b + 3]));
+    float dy = Math.max(0, Math.max(bounds[b + 1] - y, y - bounds[b + 4]));
+    float dz = Math.max(0, Math.max(bounds[b + 2] - z, z - bounds[b + 5]));
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private void insert(int handle, float[] objectBounds) {
+    int leaf = allocateNode();
+    setFatBounds(leaf, objectBounds);
+    handles[leaf] = handle;
+    heights[leaf] = 0;
+    handleToLeaf.put(handle, leaf);
+    insertLeaf(leaf);
+  }
+
+  /** Reinserts a leaf if the object moved out of its enlarged bounds. */
+  private void move(int leaf, float[] objectBounds) {
+    int b = leaf * BOUNDS_PER_NODE;
+    if (bounds[b] <= objectBounds[0]
+        && bounds[b + 1] <= objectBounds[1]
+        && bounds[b + 2] <= objectBounds[2]
+        && bounds[b + 3] >= objectBounds[3]
+        && bounds[b + 4] >= objectBounds[4]
+        && bounds[b + 5] >= objectBounds[5]) {
+      return;
+    }
+    removeLeaf(leaf);
+    setFatBounds(leaf, objectBounds);
+    insertLeaf(leaf);
+  }
+
+  private void setFatBounds(int node, float[] objectBounds) {
+    int b = node * BOUNDS_PER_NODE;
+    for (int axis = 0; axis < 3; ++axis) {
+      bounds[b + axis] = objectBounds[axis] - FAT_MARGIN_M;
+      bounds[b + 3 + axis] = objectBounds[3 + axis] + FAT_MARGIN_M;
+    }
+  }
+
+  private void insertLeaf(int leaf) {
+    if (root == NULL_NODE) {
+      root = leaf;
+      parents[leaf] = NULL_NODE;
+      return;
+    }
+
+    // Find the sibling whose bounds grow the least, in surface area, to include the leaf.
+    int index = root;
+    while (!isLeaf(index)) {
+      int child1 = children1[index];
+      int child2 = children2[index];
+      float area = surfaceArea(index);
+      float combinedArea = unionSurfaceArea(index, leaf);
+      // Cost of creating a new parent for this node and the new leaf.
+      float cost = 2 * combinedArea;
+      // Minimum cost of pushing the leaf further down the tree.
+      float inheritanceCost = 2 * (combinedArea - area);
+      float cost1 = descendCost(child1, leaf) + inheritanceCost;
+      float cost2 = descendCost(child2, leaf) + inheritanceCost;
+      if (cost < cost1 && cost < cost2) {
+        break;
+      }
+      index = cost1 < cost2 ? child1 : child2;
+    }
+    int sibling = index;
+
+    int oldParent = parents[sibling];
+    int newParent = allocateNode();
+    parents[newParent] = oldParent;
+    handles[newParent] = SceneStore.INVALID_HANDLE;
+    heights[newParent] = heights[sibling] + 1;
+    children1[newParent] = sibling;
+    children2[newParent] = leaf;
+    parents[sibling] = newParent;
+    parents[leaf] = newParent;
+    if (oldParent == NULL_NODE) {
+      root = newParent;
+    } else if (children1[oldParent] == sibling) {
+      children1[oldParent] = newParent;
+    } else {
+      children2[oldParent] = newParent;
+    }
+
+    refitAncestors(newParent);
+  }
+
+  private void removeLeaf(int leaf) {
+    if (leaf == root) {
+      root = NULL_NODE;
+      return;
+    }
+    int parent = parents[leaf];
+    int grandParent = parents[parent];
+    int sibling = children1[parent] == leaf ? children2[parent] : children1[parent];
+    freeNode(parent);
+    if (grandParent == NULL_NODE) {
+      root = sibling;
+      parents[sibling] = NULL_NODE;
+      return;
+    }
+    if (children1[grandParent] == parent) {
+      children1[grandParent] = sibling;
+    } else {
+      children2[grandParent] = sibling;
+    }
+    parents[sibling] = grandParent;
+    refitAncestors(grandParent);
+  }
+
+  /** Rebalances and recomputes the bounds and heights from {@code index} up to the root. */
+  private void refitAncestors(int index) {
+    while (index != NULL_NODE) {
+      index = balance(index);
+      int child1 = children1[index];
+      int child2 = children2[index];
+      heights[index] = 1 + Math.max(heights[child1], heights[child2]);
+      setUnion(index, child1, child2);
+      index = parents[index];
+    }
+  }
+
+  /**
+   * Rotates the taller child of {@code a} up if the heights of its children differ by more than
+   * one. Returns the node that took the place of {@code a}.
+   */
+  private int balance(int a) {
+    if (isLeaf(a) || heights[a] < 2) {
+      return a;
+    }
+    int b = children1[a];
+    int c = children2[a];
+    int imbalance = heights[c] - heights[b];
+    if (imbalance > 1) {
+      return rotateUp(a, c, b, false);
+    } else if (imbalance < -1) {
+      return rotateUp(a, b, c, true);
+    }
+    return a;
+  }
+
+  /**
+   * Rotates {@code up}, a child of {@code a}, into the place of {@code a}. The shorter child of
+   * {@code up} is moved under {@code a}, next to {@code other}.
+   */
+  private int rotateUp(int a, int up, int other, boolean upIsChild1) {
+    int f = children1[up];
+    int g = children2[up];
+
+    children1[up] = a;
+    parents[up] = parents[a];
+    parents[a] = up;
+    if (parents[up] == NULL_NODE) {
+      root = up;
+    } else if (children1[parents[up]] == a) {
+      children1[parents[up]] = up;
+    } else {
+      children2[parents[up]] = up;
+    }
+
+    int taller = heights[f] > heights[g] ? f : g;
+    int shorter = taller == f ? g : f;
+    children2[up] = taller;
+    if (upIsChild1) {
+      children1[a] = shorter;
+    } else {
+      children2[a] = shorter;
+    }
+    parents[shorter] = a;
+
+    setUnion(a, other, shorter);
+    setUnion(up, a, taller);
+    heights[a] = 1 + Math.max(heights[other], heights[shorter]);
+    heights[up] = 1 + Math.max(heights[a], heights[taller]);
+    return up;
+  }
+
+  private float descendCost(int child, int leaf) {
+    float combinedArea = unionSurfaceArea(child, leaf);
+    return isLeaf(child) ? combinedArea : combinedArea - surfaceArea(child);
+  }
+
+  private boolean isLeaf(int node) {
+    return children1[node] == NULL_NODE;
+  }
+
+  private float surfaceArea(int node) {
+    int b = node * BOUNDS_PER_NODE;
+    float dx = bounds[b + 3] - bounds[b];
+    float dy = bounds[b + 4] - bounds[b + 1];
+    float dz = bounds[b + 5] - bounds[b + 2];
+    return 2 * (dx * dy + dy * dz + dz * dx);
+  }
+
+  private float unionSurfaceArea(int node1, int node2) {
+    int b1 = node1 * BOUNDS_PER_NODE;
+    int b2 = node2 * BOUNDS_PER_NODE;
+    float dx = Math.max(bounds[b1 + 3], bounds[b2 + 3]) - Math.min(bounds[b1], bounds[b2]);
+    float dy = Math.max(bounds[b1 + 4], bounds[b2 + 4]) - Math.min(bounds[b1 + 1], bounds[b2 + 1]);
+    float dz = Math.max(bounds[b1 + 5], bounds[b2 + 5]) - Math.min(bounds[b1 + 2], bounds[b2 + 2]);
+    return 2 * (dx * dy + dy * dz + dz * dx);
+  }
+
+  private void setUnion(int node, int node1, int node2) {
+    int b = node * BOUNDS_PER_NODE;
+    int b1 = node1 * BOUNDS_PER_NODE;
+    int b2 = node2 * BOUNDS_PER_NODE;
+    for (int axis = 0; axis < 3; ++axis) {
+      bounds[b + axis] = Math.min(bounds[b1 + axis], bounds[b2 + axis]);
+      bounds[b + 3 + axis] = Math.max(bounds[b1 + 3 + axis], bounds[b2 + 3 + axis]);
+    }
+  }
+
+  private int allocateNode() {
+    if (freeList == NULL_NODE) {
+      int capacity = nodeCapacity * 2;
+      bounds = Arrays.copyOf(bounds, capacity * BOUNDS_PER_NODE);
+      parents = Arrays.copyOf(parents, capacity);
+      children1 = Arrays.copyOf(children1, capacity);
+      children2 = Arrays.copyOf(children2, capacity);
+      heights = Arrays.copyOf(heights, capacity);
+      handles = Arrays.copyOf(handles, capacity);
+      int oldCapacity = nodeCapacity;
+      nodeCapacity = capacity;
+      initFreeList(oldCapacity);
+    }
+    int node = freeList;
+    // Free nodes are chained through their parent index.
+    freeList = parents[node];
+    parents[node] = NULL_NODE;
+    children1[node] = NULL_NODE;
+    children2[node] = NULL_NODE;
+    heights[node] = 0;
+    nodeCount++;
+    return node;
+  }
+
+  private void freeNode(int node) {
+    parents[node] = freeList;
+    heights[node] = -1;
+    freeList = node;
+    nodeCount--;
+  }
+
+  /** Chains the nodes from {@code first} to the capacity into the free list. */
+  private void initFreeList(int first) {
+    for (int node = first; node < nodeCapacity - 1; ++node) {
+      parents[node] = node + 1;
+      heights[node] = -1;
+    }
+    parents[nodeCapacity - 1] = NULL_NODE;
+    heights[nodeCapacity - 1] = -1;
+    freeList = first;
+  }
+
+  /**
+   * Computes the world-space bounds of a model's local bounds, transformed by a pose matrix and a
+   * uniform scale.
+   */
+  private static void transformBounds(
+      float[] localBounds,
+      int localOffset,
+      float[] poseMatrices,
+      int poseOffset,
+      float scale,
+      float[] outBounds) {
+    for (int row = 0; row < 3; ++row) {
+      float center = poseMatrices[poseOffset + 12 + row];
+      float extent = 0;
+      for (int column = 0; column < 3; ++column) {
+        float m = poseMatrices[poseOffset + column * 4 + row] * scale;
+        float localCenter =
+            0.5f * (localBounds[localOffset + column] + localBounds[localOffset + 3 + column]);
+        float localExtent =
+            0.5f * (localBounds[localOffset + 3 + column] - localBounds[localOffset + column]);
+        center += m * localCenter;
+        extent += Math.abs(m) * localExtent;
+      }
+      outBounds[row] = center - extent;
+      outBounds[3 + row] = center + extent;
+    }
+  }
+}
@@ -0,0 +1,752 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.opengl.Matrix;
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import com.google.ar.core.examples.java.common.utils.ObjectIntHashMap;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Holds the placed objects of the scene in packed columns, indexed by a dense index from 0 to
+ * {@link #size()}, so that the render loop can walk them linearly without boxing.
+ *
+ * <p>Objects are referred to from outside by handles, which stay valid until the object is
+ * removed. Removing an object moves the last object into its dense index, so dense indices must
+ * not be kept across removals. Not thread safe.
+ */
+class SceneStore {
+  /** A handle that never refers to an object. */
+  static final int INVALID_HANDLE = -1;
+  /** The model index of root anchors, which are not drawn. */
+  static final int NO_MODEL = -1;
+
+  /** The object is local and has not been sent for hosting. */
+  static final byte CLOUD_STATE_LOCAL = 0;
+  /** The object's anchor is being hosted. */
+  static final byte CLOUD_STATE_HOSTING = 1;
+  /** The object's anchor was hosted and has a Cloud Anchor ID. */
+  static final byte CLOUD_STATE_HOSTED = 2;
+  /** The object's anchor was resolved from a Cloud Anchor ID. */
+  static final byte CLOUD_STATE_RESOLVED = 3;
+  /** Hosting the object's anchor failed. */
+  static final byte CLOUD_STATE_ERROR = 4;
+
+  /** Set when the pose of an object changed. */
+  static final int DIRTY_POSE = 1;
+  /** Set when the tracking state of an object changed. */
+  static final int DIRTY_TRACKING = 1 << 1;
+  /** Set when the cloud state of an object changed. */
+  static final int DIRTY_CLOUD = 1 << 2;
+
+  static final int FLOATS_PER_MATRIX = 16;
+  static final int FLOATS_PER_COLOR = 4;
+
+  private static final int INITIAL_CAPACITY = 16;
+  // Handles pack a slot index in the low bits and the slot generation in the high bits.
+  private static final int SLOT_BITS = 20;
+  private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+  private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+  private static final TrackingState[] TRACKING_STATES = TrackingState.values();
+  private static final float SECONDS_PER_NANO = 1e-9f;
+
+  // Dense columns.
+  private float[] poseMatrices = new float[INITIAL_CAPACITY * FLOATS_PER_MATRIX];
+  private int[] modelIndices = new int[INITIAL_CAPACITY];
+  private float[] scales = new float[INITIAL_CAPACITY];
+  private float[] colors = new float[INITIAL_CAPACITY * FLOATS_PER_COLOR];
+  private byte[] trackingStates = new byte[INITIAL_CAPACITY];
+  private byte[] cloudStates = new byte[INITIAL_CAPACITY];
+  private int[] dirtyBits = new int[INITIAL_CAPACITY];
+  private Anchor[] anchors = new Anchor[INITIAL_CAPACITY];
+  private String[] cloudAnchorIds = new String[INITIAL_CAPACITY];
+  private int[] denseToHandle = new int[INITIAL_CAPACITY];
+  // The latest poses reported by ARCore, and the state of their smoothing filters.
+  private float[] targetPoses = new float[INITIAL_CAPACITY * PoseSmoother.FLOATS_PER_POSE];
+  private float[] filterStates = new float[INITIAL_CAPACITY * PoseSmoother.FLOATS_PER_STATE];
+  private boolean[] smoothing = new boolean[INITIAL_CAPACITY];
+  // Children have no anchor of their own, and are placed at an offset pose from a parent root.
+  private int[] parentHandles = new int[INITIAL_CAPACITY];
+  private float[] offsetPoses = new float[INITIAL_CAPACITY * PoseSmoother.FLOATS_PER_POSE];
+  // The children of each root, as a list linked through their handles.
+  private int[] firstChildHandles = new int[INITIAL_CAPACITY];
+  private int[] nextSiblingHandles = new int[INITIAL_CAPACITY];
+  // Whether the children of a root are queued to follow its pose and tracking state.
+  private boolean[] childrenQueued = new boolean[INITIAL_CAPACITY];
+  private int size;
+
+  // Handle slots.
+  private int[] slotToDense = new int[INITIAL_CAPACITY];
+  private int[] slotGenerations = new int[INITIAL_CAPACITY];
+  private int[] freeSlots = new int[INITIAL_CAPACITY];
+  private int freeSlotCount;
+  private int slotCount;
+
+  // Anchor to handle, to look up the anchors reported by Frame.getUpdatedAnchors().
+  private final ObjectIntHashMap<Anchor> anchorToHandle = new ObjectIntHashMap<>(INITIAL_CAPACITY);
+  // Objects added since the last updatePoses(), whose pose has not been read yet.
+  private int[] unreadHandles = new int[INITIAL_CAPACITY];
+  private int unreadHandleCount;
+  // Objects with dirty bits set, so that consumers and clearDirtyBits() visit only those.
+  private int[] changedHandles = new int[INITIAL_CAPACITY];
+  private int changedHandleCount;
+  // Roots whose pose or tracking state changed since the last updatePoses().
+  private int[] queuedRootHandles = new int[INITIAL_CAPACITY];
+  private int queuedRootCount;
+
+  @Nullable private PoseSmoother poseSmoother;
+  private long lastTimestampNanos;
+  private final float[] poseScratch = new float[FLOATS_PER_MATRIX];
+  private final float[] offsetScratch = new float[FLOATS_PER_MATRIX];
+  private int[] rootIndexScratch = new int[INITIAL_CAPACITY];
+
+  /**
+   * Sets the filter that pose changes are eased through, or null to snap to the poses reported by
+   * ARCore.
+   */
+  void setPoseSmoother(@Nullable PoseSmoother poseSmoother) {
+    this.poseSmoother = poseSmoother;
+  }
+
+  /** Returns the number of objects. */
+  int size() {
+    return size;
+  }
+
+  /** Returns the number of objects placed on an anchor of their own, i.e. of live anchors. */
+  int getAnchorCount() {
+    return anchorToHandle.size();
+  }
+
+  /**
+   * Adds an object placed on {@code anchor}.
+   *
+   * @param modelIndex The index of the model drawn for this object.
+   * @param scale The scale applied to the model.
+   * @param color The RGBA color of the model.
+   * @param cloudState One of the {@code CLOUD_STATE_} constants.
+   * @return The handle of the new object.
+   */
+  int add(Anchor anchor, int modelIndex, float scale, float[] color, byte cloudState) {
+    int handle = addDense(anchor, modelIndex, scale, color, cloudState);
+    anchorToHandle.put(anchor, handle);
+    addUnread(handle);
+    return handle;
+  }
+
+  /**
+   * Adds an object placed relative to a root object, which moves and tracks along with the root.
+   * The cloud state of the child is that of its root.
+   *
+   * @param parentHandle The handle of the root, typically with {@link #NO_MODEL}.
+   * @param offsetPose The pose of the object relative to the root, as translation x, y, z then
+   *     rotation quaternion x, y, z, w, starting at {@code offset}.
+   * @return The handle of the new object.
+   */
+  int addChild(
+      int parentHandle,
+      int modelIndex,
+      float scale,
+      float[] color,
+      float[] offsetPose,
+      int offset) {
+    int handle = addDense(null, modelIndex, scale, color, CLOUD_STATE_LOCAL);
+    int index = size - 1;
+    parentHandles[index] = parentHandle;
+    System.arraycopy(
+        offsetPose,
+        offset,
+        offsetPoses,
+        index * PoseSmoother.FLOATS_PER_POSE,
+        PoseSmoother.FLOATS_PER_POSE);
+    int parent = indexOf(parentHandle);
+    if (parent >= 0) {
+      nextSiblingHandles[index] = firstChildHandles[parent];
+      firstChildHandles[parent] = handle;
+    }
+    addUnread(handle);
+    return handle;
+  }
+
+  private void addUnread(int handle) {
+    if (unreadHandleCount == unreadHandles.length) {
+      unreadHandles = Arrays.copyOf(unreadHandles, unreadHandleCount * 2);
+    }
+    unreadHandles[unreadHandleCount++] = handle;
+  }
+
+  private int addDense(
+      @Nullable Anchor anchor, int modelIndex, float scale, float[] color, byte cloudState) {
+    ensureDenseCapacity(size + 1);
+    int slot = allocateSlot();
+    int handle = (slotGenerations[slot] << SLOT_BITS) | slot;
+    slotToDense[slot] = size;
+
+    int index = size++;
+    denseToHandle[index] = handle;
+    anchors[index] = anchor;
+    modelIndices[index] = modelIndex;
+    scales[index] = scale;
+    System.arraycopy(color, 0, colors, index * FLOATS_PER_COLOR, FLOATS_PER_COLOR);
+    Arrays.fill(poseMatrices, index * FLOATS_PER_MATRIX, (index + 1) * FLOATS_PER_MATRIX, 0);
+    trackingStates[index] = (byte) TrackingState.PAUSED.ordinal();
+    cloudStates[index] = cloudState;
+    cloudAnchorIds[index] = null;
+    smoothing[index] = false;
+    parentHandles[index] = INVALID_HANDLE;
+    firstChildHandles[index] = INVALID_HANDLE;
+    nextSiblingHandles[index] = INVALID_HANDLE;
+    childrenQueued[index] = false;
+    System.arraycopy(
+        RoomAnchors.IDENTITY_POSE,
+        0,
+        offsetPoses,
+        index * PoseSmoother.FLOATS_PER_POSE,
+        PoseSmoother.FLOATS_PER_POSE);
+    dirtyBits[index] = 0;
+    markDirty(index, DIRTY_POSE | DIRTY_TRACKING | DIRTY_CLOUD);
+    return handle;
+  }
+
+  /**
+   * Moves an object to another anchor at the same place, e.g. the anchor hosted from its local
+   * one. Does nothing if the handle is stale or the object is a child.
+   */
+  void replaceAnchor(int handle, Anchor anchor) {
+    int index = indexOf(handle);
+    if (index < 0 || anchors[index] == null) {
+      return;
+    }
+    anchorToHandle.remove(anchors[index], INVALID_HANDLE);
+    anchors[index] = anchor;
+    anchorToHandle.put(anchor, handle);
+    addUnread(handle);
+  }
+
+  /** Removes an object. Does nothing if the handle is stale. */
+  void remove(int handle) {
+    int index = indexOf(handle);
+    if (index < 0) {
+      return;
+    }
+    if (anchors[index] != null) {
+      anchorToHandle.remove(anchors[index], INVALID_HANDLE);
+    }
+    // Children of a removed root stop tracking, and are removed along with it by the caller.
+    for (int child = firstChildHandles[index]; child != INVALID_HANDLE; ) {
+      int childIndex = indexOf(child);
+      if (childIndex < 0) {
+        break;
+      }
+      setTrackingState(childIndex, (byte) TrackingState.STOPPED.ordinal());
+      child = nextSiblingHandles[childIndex];
+    }
+    unlinkChild(index);
+    int slot = handle & SLOT_MASK;
+    slotGenerations[slot] = (slotGenerations[slot] + 1) & GENERATION_MASK;
+    freeSlots[freeSlotCount++] = slot;
+
+    // Move the last object into the hole, to keep the columns dense.
+    int last = --size;
+    if (index != last) {
+      copyDense(last, index);
+      slotToDense[denseToHandle[index] & SLOT_MASK] = index;
+    }
+    anchors[last] = null;
+    cloudAnchorIds[last] = null;
+  }
+
+  /** Removes a child from the list of children of its root, if the root is still there. */
+  private void unlinkChild(int index) {
+    int parent = indexOf(parentHandles[index]);
+    if (parent < 0) {
+      return;
+    }
+    int handle = denseToHandle[index];
+    if (firstChildHandles[parent] == handle) {
+      firstChildHandles[parent] = nextSiblingHandles[index];
+      return;
+    }
+    for (int sibling = firstChildHandles[parent]; sibling != INVALID_HANDLE; ) {
+      int siblingIndex = indexOf(sibling);
+      if (nextSiblingHandles[siblingIndex] == handle) {
+        nextSiblingHandles[siblingIndex] = nextSiblingHandles[index];
+        return;
+      }
+      sibling = nextSiblingHandles[siblingIndex];
+    }
+  }
+
+  /** Removes all objects. Handles given out so far become stale. */
+  void clear() {
+    while (size > 0) {
+      remove(denseToHandle[size - 1]);
+    }
+  }
+
+  /** Returns the dense index of an object, or -1 if the handle is stale. */
+  int indexOf(int handle) {
+    if (handle < 0) {
+      return -1;
+    }
+    int slot = handle & SLOT_MASK;
+    if (slot >= slotCount || slotGenerations[slot] != (handle >>> SLOT_BITS)) {
+      return -1;
+    }
+    return slotToDense[slot];
+  }
+
+  /**
+   * Returns the handle of the object placed on {@code anchor}, or {@link #INVALID_HANDLE} if there
+   * is none.
+   */
+  int findHandle(Anchor anchor) {
+    return anchorToHandle.get(anchor, INVALID_HANDLE);
+  }
+
+  /**
+   * Reads the pose and tracking state of the anchors that changed in this frame, and of the
+   * objects added since the last call, and sets the dirty bits of the objects whose pose or
+   * tracking state changed. The poses of the other objects are kept from previous frames, and only
+   * the children of roots that changed follow them, so the cost scales with the number of changes
+   * rather than the size of the scene.
+   *
+   * <p>With a pose smoother, the pose matrices then ease towards the new poses over the following
+   * frames, and keep setting {@link #DIRTY_POSE} until they settle.
+   *
+   * @param updatedAnchors The anchors returned by {@code Frame.getUpdatedAnchors()}.
+   * @param timestampNanos The timestamp of the frame.
+   */
+  void updatePoses(Collection<Anchor> updatedAnchors, long timestampNanos) {
+    for (int i = 0; i < unreadHandleCount; ++i) {
+      int index = indexOf(unreadHandles[i]);
+      if (index < 0) {
+        continue;
+      }
+      if (anchors[index] != null) {
+        readPose(index);
+      } else {
+        updateChild(index);
+      }
+    }
+    unreadHandleCount = 0;
+
+    for (Anchor anchor : updatedAnchors) {
+      int index = indexOf(anchorToHandle.get(anchor, INVALID_HANDLE));
+      if (index >= 0) {
+        readPose(index);
+      }
+    }
+
+    float deltaSeconds =
+        lastTimestampNanos == 0 ? 0 : (timestampNanos - lastTimestampNanos) * SECONDS_PER_NANO;
+    lastTimestampNanos = timestampNanos;
+    if (poseSmoother != null && deltaSeconds > 0) {
+      stepSmoothing(deltaSeconds);
+    }
+    updateChildren();
+  }
+
+  private void stepSmoothing(float deltaSeconds) {
+    for (int i = 0; i < size; ++i) {
+      if (smoothing[i]) {
+        smoothing[i] =
+            poseSmoother.step(
+                filterStates,
+                i * PoseSmoother.FLOATS_PER_STATE,
+                targetPoses,
+                i * PoseSmoother.FLOATS_PER_POSE,
+                deltaSeconds);
+        writePoseMatrix(i);
+      }
+    }
+  }
+
+  /** Updates the pose and tracking state of the children of the roots that changed. */
+  private void updateChildren() {
+    for (int r = 0; r < queuedRootCount; ++r) {
+      int parent = indexOf(queuedRootHandles[r]);
+      if (parent < 0) {
+        continue;
+      }
+      childrenQueued[parent] = false;
+      for (int child = firstChildHandles[parent]; child != INVALID_HANDLE; ) {
+        int childIndex = indexOf(child);
+        updateChild(childIndex);
+        child = nextSiblingHandles[childIndex];
+      }
+    }
+    queuedRootCount = 0;
+  }
+
+  /** Places a child at its offset from its root, and copies the tracking state of the root. */
+  private void updateChild(int index) {
+    int parent = indexOf(parentHandles[index]);
+    if (parent < 0) {
+      return; // The root was removed, which stopped the child.
+    }
+    setTrackingState(index, trackingStates[parent]);
+    if (poseMatrices[parent * FLOATS_PER_MATRIX + 15] == 0) {
+      return; // The pose of the root is not known yet.
+    }
+    PoseSmoother.toMatrix(offsetPoses, index * PoseSmoother.FLOATS_PER_POSE, offsetScratch, 0);
+    Matrix.multiplyMM(
+        poseScratch, 0, poseMatrices, parent * FLOATS_PER_MATRIX, offsetScratch, 0);
+    setPoseMatrix(index, poseScratch);
+  }
+
+  private void setTrackingState(int index, byte trackingState) {
+    if (trackingState != trackingStates[index]) {
+      trackingStates[index] = trackingState;
+      markDirty(index, DIRTY_TRACKING);
+      queueChildren(index);
+    }
+  }
+
+  /** Copies a pose matrix to an object, and flags it if it changed. */
+  private void setPoseMatrix(int index, float[] matrix) {
+    int offset = index * FLOATS_PER_MATRIX;
+    if (!equalRange(matrix, poseMatrices, offset, FLOATS_PER_MATRIX)) {
+      System.arraycopy(matrix, 0, poseMatrices, offset, FLOATS_PER_MATRIX);
+      markDirty(index, DIRTY_POSE);
+      queueChildren(index);
+    }
+  }
+
+  /** Sets dirty bits of an object, and lists it as changed if it had none. */
+  private void markDirty(int index, int bits) {
+    if (dirtyBits[index] == 0) {
+      if (changedHandleCount == changedHandles.length) {
+        changedHandles = Arrays.copyOf(changedHandles, changedHandleCount * 2);
+      }
+      changedHandles[changedHandleCount++] = denseToHandle[index];
+    }
+    dirtyBits[index] |= bits;
+  }
+
+  /** Queues the children of a root to follow it at the end of updatePoses(). */
+  private void queueChildren(int index) {
+    if (firstChildHandles[index] == INVALID_HANDLE || childrenQueued[index]) {
+      return;
+    }
+    childrenQueued[index] = true;
+    if (queuedRootCount == queuedRootHandles.length) {
+      queuedRootHandles = Arrays.copyOf(queuedRootHandles, queuedRootCount * 2);
+    }
+    queuedRootHandles[queuedRootCount++] = denseToHandle[index];
+  }
+
+  /** Reads the pose and tracking state of an anchor, which are JNI calls. */
+  private void readPose(int index) {
+    Anchor anchor = anchors[index];
+    byte trackingState = (byte) anchor.getTrackingState().ordinal();
+    setTrackingState(index, trackingState);
+    if (trackingState == TrackingState.TRACKING.ordinal()) {
+      // The anchor pose is updated during calls to session.update() as ARCore refines its
+      // estimate of the world.
+      Pose pose = anchor.getPose();
+      int targetOffset = index * PoseSmoother.FLOATS_PER_POSE;
+      pose.getTranslation(targetPoses, targetOffset);
+      pose.getRotationQuaternion(targetPoses, targetOffset + 3);
+      boolean poseKnown = poseMatrices[index * FLOATS_PER_MATRIX + 15] != 0;
+      if (poseSmoother != null && poseKnown) {
+        smoothing[index] = true;
+      } else {
+        // Objects appear at their first pose without easing in.
+        PoseSmoother.reset(
+            filterStates, index * PoseSmoother.FLOATS_PER_STATE, targetPoses, targetOffset);
+        smoothing[index] = false;
+        writePoseMatrix(index);
+      }
+    }
+  }
+
+  /** Writes the filtered pose of an object to its pose matrix, and flags it if it changed. */
+  private void writePoseMatrix(int index) {
+    PoseSmoother.toMatrix(filterStates, index * PoseSmoother.FLOATS_PER_STATE, poseScratch, 0);
+    setPoseMatrix(index, poseScratch);
+  }
+
+  /** Sets the cloud state of an object, and its Cloud Anchor ID if it has one. */
+  void setCloudState(int handle, byte cloudState, @Nullable String cloudAnchorId) {
+    int index = indexOf(handle);
+    if (index < 0) {
+      return;
+    }
+    cloudStates[index] = cloudState;
+    cloudAnchorIds[index] = cloudAnchorId;
+    markDirty(index, DIRTY_CLOUD);
+  }
+
+  /**
+   * Fills {@code outRoomAnchors} with every object whose anchor, or whose root's anchor, has a
+   * Cloud Anchor ID. Each anchor with a Cloud Anchor ID becomes a root, and objects placed
+   * directly on an anchor are at the identity pose from it.
+   */
+  void getRoomAnchors(RoomAnchors outRoomAnchors) {
+    outRoomAnchors.clear();
+    if (rootIndexScratch.length < size) {
+      rootIndexScratch = new int[modelIndices.length];
+    }
+    for (int i = 0; i < size; ++i) {
+      rootIndexScratch[i] =
+          cloudAnchorIds[i] != null ? outRoomAnchors.addRoot(cloudAnchorIds[i]) : -1;
+    }
+    for (int i = 0; i < size; ++i) {
+      if (modelIndices[i] == NO_MODEL) {
+        continue;
+      }
+      int root = parentHandles[i] == INVALID_HANDLE ? i : indexOf(parentHandles[i]);
+      if (root < 0 || rootIndexScratch[root] < 0) {
+        continue; // Not hosted yet.
+      }
+      outRoomAnchors.addObject(
+          rootIndexScratch[root],
+          modelIndices[i],
+          offsetPoses,
+          i * PoseSmoother.FLOATS_PER_POSE);
+    }
+  }
+
+  /**
+   * Returns the handle of the nearest root within {@code maxDistance} of a position that is
+   * tracking and hosted, being hosted or waiting to be hosted, or {@link #INVALID_HANDLE} if there
+   * is none.
+   */
+  int findNearestRoot(float x, float y, float z, float maxDistance) {
+    int nearest = INVALID_HANDLE;
+    float nearestDistanceSquared = maxDistance * maxDistance;
+    for (int i = 0; i < size; ++i) {
+      if (modelIndices[i] != NO_MODEL
+          || trackingStates[i] != TrackingState.TRACKING.ordinal()
+          || (cloudStates[i] != CLOUD_STATE_LOCAL
+              && cloudStates[i] != CLOUD_STATE_HOSTING
+              && cloudStates[i] != CLOUD_STATE_HOSTED
+              && cloudStates[i] != CLOUD_STATE_RESOLVED)) {
+        continue;
+      }
+      int offset = i * FLOATS_PER_MATRIX;
+      float dx = poseMatrices[offset + 12] - x;
+      float dy = poseMatrices[offset + 13] - y;
+      float dz = poseMatrices[offset + 14] - z;
+      float distanceSquared = dx * dx + dy * dy + dz * dz;
+      if (distanceSquared <= nearestDistanceSquared) {
+        nearestDistanceSquared = distanceSquared;
+        nearest = denseToHandle[i];
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Returns the number of objects with dirty bits set since the last {@link #clearDirtyBits()},
+   * whose handles are available through {@link #getChangedHandles()}.
+   */
+  int getChangedCount() {
+    return changedHandleCount;
+  }
+
+  /**
+   * Returns the handles of the objects with dirty bits set, in no particular order. Only the first
+   * {@link #getChangedCount()} entries are valid, and the handles of objects removed since are
+   * stale. The array is replaced when the list grows.
+   */
+  int[] getChangedHandles() {
+    return changedHandles;
+  }
+
+  /** Clears the dirty bits of the objects that changed. */
+  void clearDirtyBits() {
+    for (int i = 0; i < changedHandleCount; ++i) {
+      int index = indexOf(changedHandles[i]);
+      if (index >= 0) {
+        dirtyBits[index] = 0;
+      }
+    }
+    changedHandleCount = 0;
+  }
+
+  int getHandle(int index) {
+    return denseToHandle[index];
+  }
+
+  /** Returns the anchor of an object, or null for children, which use their root's anchor. */
+  @Nullable
+  Anchor getAnchor(int index) {
+    return anchors[index];
+  }
+
+  /** Returns the handle of the root of a child, or {@link #INVALID_HANDLE}. */
+  int getParentHandle(int index) {
+    return parentHandles[index];
+  }
+
+  /** Returns the handle of the first child of a root, or {@link #INVALID_HANDLE}. */
+  int getFirstChildHandle(int index) {
+    return firstChildHandles[index];
+  }
+
+  /** Returns the handle of the next child of the same root, or {@link #INVALID_HANDLE}. */
+  int getNextSiblingHandle(int index) {
+    return nextSiblingHandles[index];
+  }
+
+  int getModelIndex(int index) {
+    return modelIndices[index];
+  }
+
+  float getScale(int index) {
+    return scales[index];
+  }
+
+  TrackingState getTrackingState(int index) {
+    return TRACKING_STATES[trackingStates[index]];
+  }
+
+  /** Returns the cloud state of an object, or of its root for children. */
+  byte getCloudState(int index) {
+    int parent = parentHandles[index] == INVALID_HANDLE ? index : indexOf(parentHandles[index]);
+    return parent >= 0 ? cloudStates[parent] : CLOUD_STATE_LOCAL;
+  }
+
+  @Nullable
+  String getCloudAnchorId(int index) {
+    return cloudAnchorIds[index];
+  }
+
+  int getDirtyBits(int index) {
+    return dirtyBits[index];
+  }
+
+  /**
+   * Returns the column of pose matrices. The matrix of the object at {@code index} starts at
+   * {@code index * FLOATS_PER_MATRIX}. The array is replaced when the store grows.
+   */
+  float[] getPoseMatrices() {
+    return poseMatrices;
+  }
+
+  /**
+   * Returns the column of poses relative to the root. The pose of the object at {@code index}
+   * starts at {@code index * PoseSmoother.FLOATS_PER_POSE}. The array is replaced when the store
+   * grows.
+   */
+  float[] getOffsetPoses() {
+    return offsetPoses;
+  }
+
+  /**
+   * Returns the column of colors. The color of the object at {@code index} starts at {@code index
+   * * FLOATS_PER_COLOR}. The array is replaced when the store grows.
+   */
+  float[] getColors() {
+    return colors;
+  }
+
+  private static boolean equalRange(float[] a, float[] b, int bOffset, int length) {
+    for (int i = 0; i < length; ++i) {
+      if (a[i] != b[bOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int allocateSlot() {
+    if (freeSlotCount > 0) {
+      return freeSlots[--freeSlotCount];
+    }
+    if (slotCount == slotToDense.length) {
+      int capacity = slotCount * 2;
+      slotToDense = Arrays.copyOf(slotToDense, capacity);
+      slotGenerations = Arrays.copyOf(slotGenerations, capacity);
+      freeSlots = Arrays.copyOf(freeSlots, capacity);
+    }
+    return slotCount++;
+  }
+
+  private void copyDense(int from, int to) {
+    denseToHandle[to] = denseToHandle[from];
+    anchors[to] = anchors[from];
+    modelIndices[to] = modelIndices[from];
+    scales[to] = scales[from];
+    System.arraycopy(
+        colors, from * FLOATS_PER_COLOR, colors, to * FLOATS_PER_COLOR, FLOATS_PER_COLOR);
+    System.arraycopy(
+        poseMatrices,
+        from * FLOATS_PER_MATRIX,
+        poseMatrices,
+        to * FLOATS_PER_MATRIX,
+        FLOATS_PER_MATRIX);
+    trackingStates[to] = trackingStates[from];
+    cloudStates[to] = cloudStates[from];
+    cloudAnchorIds[to] = cloudAnchorIds[from];
+    dirtyBits[to] = dirtyBits[from];
+    System.arraycopy(
+        targetPoses,
+        from * PoseSmoother.FLOATS_PER_POSE,
+        targetPoses,
+        to * PoseSmoother.FLOATS_PER_POSE,
+        PoseSmoother.FLOATS_PER_POSE);
+    System.arraycopy(
+        filterStates,
+        from * PoseSmoother.FLOATS_PER_STATE,
+        filterStates,
+        to * PoseSmoother.FLOATS_PER_STATE,
+        PoseSmoother.FLOATS_PER_STATE);
+    smoothing[to] = smoothing[from];
+    parentHandles[to] = parentHandles[from];
+    firstChildHandles[to] = firstChildHandles[from];
+    nextSiblingHandles[to] = nextSiblingHandles[from];
+    childrenQueued[to] = childrenQueued[from];
+    System.arraycopy(
+        offsetPoses,
+        from * PoseSmoother.FLOATS_PER_POSE,
+        offsetPoses,
+        to * PoseSmoother.FLOATS_PER_POSE,
+        PoseSmoother.FLOATS_PER_POSE);
+  }
+
+  private void ensureDenseCapacity(int capacity) {
+    if (capacity <= modelIndices.length) {
+      return;
+    }
+    int newCapacity = modelIndices.length * 2;
+    poseMatrices = Arrays.copyOf(poseMatrices, newCapacity * FLOATS_PER_MATRIX);
+    modelIndices = Arrays.copyOf(modelIndices, newCapacity);
+    scales = Arrays.copyOf(scales, newCapacity);
+    colors = Arrays.copyOf(colors, newCapacity * FLOATS_PER_COLOR);
+    trackingStates = Arrays.copyOf(trackingStates, newCapacity);
+    cloudStates = Arrays.copyOf(cloudStates, newCapacity);
+    dirtyBits = Arrays.copyOf(dirtyBits, newCapacity);
+    anchors = Arrays.copyOf(anchors, newCapacity);
+    cloudAnchorIds = Arrays.copyOf(cloudAnchorIds, newCapacity);
+    denseToHandle = Arrays.copyOf(denseToHandle, newCapacity);
+    targetPoses = Arrays.copyOf(targetPoses, newCapacity * PoseSmoother.FLOATS_PER_POSE);
+    filterStates = Arrays.copyOf(filterStates, newCapacity * PoseSmoother.FLOATS_PER_STATE);
+    smoothing = Arrays.copyOf(smoothing, newCapacity);
+    parentHandles = Arrays.copyOf(parentHandles, newCapacity);
+    firstChildHandles = Arrays.copyOf(firstChildHandles, newCapacity);
+    nextSiblingHandles = Arrays.copyOf(nextSiblingHandles, newCapacity);
+    childrenQueued = Arrays.copyOf(childrenQueued, newCapacity);
+    offsetPoses = Arrays.copyOf(offsetPoses, newCapacity * PoseSmoother.FLOATS_PER_POSE);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Session;
+import java.util.HashMap;
+
+/**
+ * The Cloud Anchor service of an ARCore session. The anchors of operations are registered with the
+ * {@link AnchorRegistry} until they are released or handed over.
+ */
+class SessionCloudAnchorService implements CloudAnchorService {
+
+  /** The anchors of a host or resolve. */
+  private static final class Operation {
+    final Anchor anchor;
+    // The local anchor a hosted anchor was copied from.
+    @Nullable final Anchor hostSource;
+
+    Operation(Anchor anchor, @Nullable Anchor hostSource) {
+      this.anchor = anchor;
+      this.hostSource = hostSource;
+    }
+  }
+
+  private final Session session;
+  private final AnchorRegistry anchorRegistry;
+  private final HashMap<Integer, Operation> operations = new HashMap<>();
+  private int nextOperationId;
+
+  SessionCloudAnchorService(Session session, AnchorRegistry anchorRegistry) {
+    this.session = session;
+    this.anchorRegistry = anchorRegistry;
+  }
+
+  @Override
+  public synchronized int hostCloudAnchor(Anchor anchor) {
+    Anchor newAnchor = session.hostCloudAnchor(anchor);
+    anchorRegistry.register(anchor, AnchorRegistry.OWNER_HOST_SOURCE);
+    anchorRegistry.register(newAnchor, AnchorRegistry.OWNER_CLOUD_TASK);
+    return add(new Operation(newAnchor, anchor));
+  }
+
+  @Override
+  public synchronized int resolveCloudAnchor(String cloudAnchorId) {
+    Anchor newAnchor = session.resolveCloudAnchor(cloudAnchorId);
+    anchorRegistry.register(newAnchor, AnchorRegistry.OWNER_CLOUD_TASK);
+    return add(new Operation(newAnchor, null));
+  }
+
+  @Override
+  public CloudAnchorState getCloudAnchorState(int operationId) {
+    Anchor anchor = getAnchor(operationId);
+    // Read without holding the monitor, so that starting operations does not wait on a poll.
+    return anchor != null ? anchor.getCloudAnchorState() : CloudAnchorState.NONE;
+  }
+
+  @Override
+  @Nullable
+  public synchronized Anchor getAnchor(int operationId) {
+    Operation operation = operations.get(operationId);
+    return operation != null ? operation.anchor : null;
+  }
+
+  @Override
+  @Nullable
+  public String getCloudAnchorId(int operationId) {
+    Anchor anchor = getAnchor(operationId);
+    return anchor != null ? anchor.getCloudAnchorId() : null;
+  }
+
+  @Override
+  public synchronized void release(int operationId, boolean keepAnchor) {
+    Operation operation = operations.remove(operationId);
+    if (operation == null) {
+      return;
+    }
+    if (!keepAnchor) {
+      anchorRegistry.release(operation.anchor);
+    }
+    anchorRegistry.release(operation.hostSource);
+  }
+
+  private int add(Operation operation) {
+    int operationId = nextOperationId++;
+    operations.put(operationId, operation);
+    return operationId;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * An in-process Cloud Anchor service, to drive {@link CloudAnchorManager} at scale or with
+ * controlled timing without a device or network, e.g. from a JVM unit test.
+ *
+ * <p>Every operation is {@code TASK_IN_PROGRESS} for a latency drawn from a configurable
+ * distribution, then ends in {@code SUCCESS} or in an error state drawn from configurable failure
+ * rates. Time is read from a {@link Ticker}, so a ticker driven by the caller makes runs
+ * repeatable along with a seeded {@link Random}.
+ *
+ * <p>Operations hand out no anchors, as ARCore anchors cannot be created without a session: the
+ * anchors passed to hosts are ignored, and only states and Cloud Anchor IDs are simulated.
+ */
+class SimulatedCloudAnchorService implements CloudAnchorService {
+  private static final long NANOS_PER_MILLI = 1_000_000L;
+
+  /** A distribution of operation latencies. */
+  interface LatencyDistribution {
+
+    long sampleMillis(Random random);
+  }
+
+  /** Returns a distribution that always takes {@code millis}. */
+  static LatencyDistribution fixedLatency(long millis) {
+    return random -> millis;
+  }
+
+  /** Returns a distribution uniform between {@code minMillis} and {@code maxMillis}. */
+  static LatencyDistribution uniformLatency(long minMillis, long maxMillis) {
+    Preconditions.checkArgument(minMillis <= maxMillis, "The range cannot be empty.");
+    return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+  }
+
+  /**
+   * Returns a log-normal distribution, the usual shape of service latencies: most operations take
+   * about {@code medianMillis}, with a long tail that grows with {@code sigma}.
+   */
+  static LatencyDistribution logNormalLatency(long medianMillis, double sigma) {
+    return random -> (long) (medianMillis * Math.exp(sigma * random.nextGaussian()));
+  }
+
+  /** A host or resolve, and how it ends. */
+  private static final class Operation {
+    final long completionNanos;
+    final CloudAnchorState outcome;
+    // Reported once the operation succeeded.
+    final String cloudAnchorId;
+
+    Operation(long completionNanos, CloudAnchorState outcome, String cloudAnchorId) {
+      this.completionNanos = completionNanos;
+      this.outcome = outcome;
+      this.cloudAnchorId = cloudAnchorId;
+    }
+  }
+
+  private final Ticker ticker;
+  private final Random random;
+
+  private LatencyDistribution hostLatency = logNormalLatency(3000, 0.5);
+  private LatencyDistribution resolveLatency = logNormalLatency(2000, 0.5);
+  private final EnumMap<CloudAnchorState, Float> hostFailureRates =
+      new EnumMap<>(CloudAnchorState.class);
+  private final EnumMap<CloudAnchorState, Float> resolveFailureRates =
+      new EnumMap<>(CloudAnchorState.class);
+  private final HashMap<Integer, Operation> operations = new HashMap<>();
+  private int nextOperationId;
+  private int hostCount;
+  private int resolveCount;
+
+  /**
+   * @param ticker The source of time, e.g. one advanced by a load test to skip the latencies.
+   * @param random The source of latencies and failures.
+   */
+  SimulatedCloudAnchorService(Ticker ticker, Random random) {
+    this.ticker = ticker;
+    this.random = random;
+  }
+
+  synchronized void setHostLatency(LatencyDistribution hostLatency) {
+    this.hostLatency = hostLatency;
+  }
+
+  synchronized void setResolveLatency(LatencyDistribution resolveLatency) {
+    this.resolveLatency = resolveLatency;
+  }
+
+  /** Sets the probability that a host ends in {@code errorState}. */
+  synchronized void setHostFailureRate(CloudAnchorState errorState, float rate) {
+    setFailureRate(hostFailureRates, errorState, rate);
+  }
+
+  /** Sets the probability that a resolve ends in {@code errorState}. */
+  synchronized void setResolveFailureRate(CloudAnchorState errorState, float rate) {
+    setFailureRate(resolveFailureRates, errorState, rate);
+  }
+
+  @Override
+  public synchronized int hostCloudAnchor(Anchor anchor) {
+    hostCount++;
+    return start(hostLatency, hostFailureRates, "simulated-" + nextOperationId);
+  }
+
+  @Override
+  public synchronized int resolveCloudAnchor(String cloudAnchorId) {
+    resolveCount++;
+    return start(resolveLatency, resolveFailureRates, cloudAnchorId);
+  }
+
+  @Override
+  public synchronized CloudAnchorState getCloudAnchorState(int operationId) {
+    Operation operation = operations.get(operationId);
+    if (operation == null) {
+      return CloudAnchorState.NONE;
+    }
+    return ticker.read() >= operation.completionNanos
+        ? operation.outcome
+        : CloudAnchorState.TASK_IN_PROGRESS;
+  }
+
+  @Override
+  @Nullable
+  public Anchor getAnchor(int operationId) {
+    return null;
+  }
+
+  @Override
+  @Nullable
+  public synchronized String getCloudAnchorId(int operationId) {
+    return getCloudAnchorState(operationId) == CloudAnchorState.SUCCESS
+        ? operations.get(operationId).cloudAnchorId
+        : null;
+  }
+
+  @Override
+  public synchronized void release(int operationId, boolean keepAnchor) {
+    operations.remove(operationId);
+  }
+
+  synchronized int getHostCount() {
+    return hostCount;
+  }
+
+  synchronized int getResolveCount() {
+    return resolveCount;
+  }
+
+  /** Returns the number of operations that have not been released. */
+  synchronized int getOperationCount() {
+    return operations.size();
+  }
+
+  /** Returns the number of operations still in progress that have not been released. */
+  synchronized int getInProgressCount() {
+    long now = ticker.read();
+    int count = 0;
+    for (Operation operation : operations.values()) {
+      if (now < operation.completionNanos) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private int start(
+      LatencyDistribution latency,
+      EnumMap<CloudAnchorState, Float> failureRates,
+      String cloudAnchorId) {
+    long latencyNanos = Math.max(0, latency.sampleMillis(random)) * NANOS_PER_MILLI;
+    int operationId = nextOperationId++;
+    operations.put(
+        operationId,
+        new Operation(ticker.read() + latencyNanos, drawOutcome(failureRates), cloudAnchorId));
+    return operationId;
+  }
+
+  private CloudAnchorState drawOutcome(EnumMap<CloudAnchorState, Float> failureRates) {
+    float draw = random.nextFloat();
+    for (Map.Entry<CloudAnchorState, Float> entry : failureRates.entrySet()) {
+      draw -= entry.getValue();
+      if (draw < 0) {
+        return entry.getKey();
+      }
+    }
+    return CloudAnchorState.SUCCESS;
+  }
+
+  private static void setFailureRate(
+      EnumMap<CloudAnchorState, Float> failureRates, CloudAnchorState errorState, float rate) {
+    Preconditions.checkArgument(errorState.isError(), "Only error states can be failure outcomes.");
+    Preconditions.checkArgument(rate >= 0 && rate <= 1, "A rate is a probability.");
+    float total = rate;
+    for (Map.Entry<CloudAnchorState, Float> entry : failureRates.entrySet()) {
+      if (entry.getKey() != errorState) {
+        total += entry.getValue();
+      }
+    }
+    Preconditions.checkArgument(total <= 1, "The failure rates add up to more than 1.");
+    failureRates.put(errorState, rate);
+  }
+}
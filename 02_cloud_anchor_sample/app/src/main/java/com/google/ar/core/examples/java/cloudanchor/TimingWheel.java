@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+import java.util.List;
+
+/**
+ * A hashed timing wheel: timers are hashed by due tick into a ring of slots, so that advancing the
+ * wheel only visits the slots of the elapsed ticks and the timers due in them, however many timers
+ * are scheduled.
+ *
+ * <p>Timers due more than one revolution ahead stay in their slot until the revolution they are
+ * due in. Not thread safe.
+ */
+class TimingWheel<T> {
+
+  /** A scheduled value. Scheduling an already scheduled timer moves it. */
+  static final class Timer<T> {
+    final T value;
+    private long dueTick;
+    private int slot = -1;
+    @Nullable private Timer<T> previous;
+    @Nullable private Timer<T> next;
+
+    Timer(T value) {
+      this.value = value;
+    }
+
+    boolean isScheduled() {
+      return slot >= 0;
+    }
+  }
+
+  private final long tickMillis;
+  private final int mask;
+  private final Timer<T>[] heads;
+  private long currentTick = -1;
+  private int size;
+
+  /**
+   * @param tickMillis The resolution of the wheel.
+   * @param slotCount The number of slots, rounded up to a power of two. One revolution should
+   *     cover the usual delays, so that timers are not visited before they are due.
+   */
+  @SuppressWarnings("unchecked")
+  TimingWheel(long tickMillis, int slotCount) {
+    this.tickMillis = tickMillis;
+    int slots = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+    mask = slots - 1;
+    heads = (Timer<T>[]) new Timer<?>[slots];
+  }
+
+  /** Schedules a timer to be due {@code delayMillis} after {@code nowMillis}. */
+  void schedule(Timer<T> timer, long nowMillis, long delayMillis) {
+    cancel(timer);
+    if (currentTick < 0) {
+      currentTick = nowMillis / tickMillis;
+    }
+    // Never in the current tick, which has already been visited.
+    timer.dueTick = Math.max(currentTick + 1, (nowMillis + delayMillis) / tickMillis);
+    timer.slot = (int) (timer.dueTick & mask);
+    timer.previous = null;
+    timer.next = heads[timer.slot];
+    if (timer.next != null) {
+      timer.next.previous = timer;
+    }
+    heads[timer.slot] = timer;
+    size++;
+  }
+
+  /** Unschedules a timer, if it is scheduled. */
+  void cancel(Timer<T> timer) {
+    if (!timer.isScheduled()) {
+      return;
+    }
+    if (timer.previous != null) {
+      timer.previous.next = timer.next;
+    } else {
+      heads[timer.slot] = timer.next;
+    }
+    if (timer.next != null) {
+      timer.next.previous = timer.previous;
+    }
+    timer.previous = null;
+    timer.next = null;
+    timer.slot = -1;
+    size--;
+  }
+
+  /**
+   * Advances the wheel to {@code nowMillis}, unscheduling the timers that are due and adding their
+   * values to {@code outDue}.
+   */
+  void advance(long nowMillis, List<T> outDue) {
+    long targetTick = nowMillis / tickMillis;
+    if (currentTick < 0 || size == 0) {
+      currentTick = targetTick;
+      return;
+    }
+    // After a long pause, a single revolution visits every slot.
+    long firstTick = Math.max(currentTick + 1, targetTick - mask);
+    for (long tick = firstTick; tick <= targetTick; ++tick) {
+      Timer<T> timer = heads[(int) (tick & mask)];
+      while (timer != null) {
+        Timer<T> next = timer.next;
+        if (timer.dueTick <= targetTick) {
+          cancel(timer);
+          outDue.add(timer.value);
+        }
+        timer = next;
+      }
+    }
+    currentTick = Math.max(currentTick, targetTick);
+  }
+
+  /** Unschedules every timer. */
+  void clear() {
+    for (int i = 0; i < heads.length; ++i) {
+      Timer<T> timer = heads[i];
+      while (timer != null) {
+        Timer<T> next = timer.next;
+        timer.previous = null;
+        timer.next = null;
+        timer.slot = -1;
+        timer = next;
+      }
+      heads[i] = null;
+    }
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import com.google.ar.core.PointCloud;
+import com.google.ar.core.examples.java.common.utils.LongIntHashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Accumulates the feature points ARCore has observed over the session, so that mapping coverage
+ * can be queried without acquiring another point cloud.
+ *
+ * <p>Points are keyed by their {@link PointCloud#getIds()} id, and their data is kept in direct
+ * buffers of a fixed capacity. The confidence of a point decays while it is not observed, and
+ * points whose confidence drops below a threshold are removed. When the map is full, the points
+ * that were observed least recently make room for new ones. Points are also counted in a spatial
+ * hash of cubic cells, which answers coverage queries.
+ *
+ * <p>Memory use is fixed at construction. Not thread safe, typically used on the OpenGL thread.
+ */
+public class FeaturePointMap {
+  private static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
+  private static final float FREE_SLOT_CONFIDENCE = -1.0f;
+  private static final float NANOS_PER_SECOND = 1e9f;
+
+  // Slots checked for decayed points on each update, so that a sweep never stalls a frame.
+  private static final int SWEEP_SLOTS_PER_UPDATE = 256;
+
+  // Cell coordinates are packed into 21 bits each.
+  private static final int CELL_COORDINATE_BITS = 21;
+  private static final long CELL_COORDINATE_MASK = (1L << CELL_COORDINATE_BITS) - 1;
+
+  private final int capacity;
+  private final float cellSizeMeters;
+  private final float halfLifeNanos;
+  private final float minConfidence;
+
+  private final FloatBuffer points;
+  private final IntBuffer ids;
+  private final LongBuffer lastSeenTimestamps;
+  private final LongIntHashMap idToSlot;
+  private final LongIntHashMap cellPointCounts;
+  private final int[] freeSlots;
+  private int freeSlotCount;
+  private int sweepSlot;
+  private long lastTimestamp;
+
+  /**
+   * Creates an empty map.
+   *
+   * @param capacity The maximum number of points kept.
+   * @param cellSizeMeters The edge length of the cells used for coverage queries.
+   * @param halfLifeSeconds The time after which the confidence of an unobserved point is halved.
+   * @param minConfidence Points whose decayed confidence falls below this value are removed.
+   */
+  public FeaturePointMap(
+      int capacity, float cellSizeMeters, float halfLifeSeconds, float minConfidence) {
+    this.capacity = capacity;
+    this.cellSizeMeters = cellSizeMeters;
+    this.halfLifeNanos = halfLifeSeconds * NANOS_PER_SECOND;
+    this.minConfidence = minConfidence;
+
+    points =
+        ByteBuffer.allocateDirect(capacity * FLOATS_PER_POINT * Float.SIZE / 8)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    ids =
+        ByteBuffer.allocateDirect(capacity * Integer.SIZE / 8)
+            .order(ByteOrder.nativeOrder())
+            .asIntBuffer();
+    lastSeenTimestamps =
+        ByteBuffer.allocateDirect(capacity * Long.SIZE / 8)
+            .order(ByteOrder.nativeOrder())
+            .asLongBuffer();
+    // Sized so that neither map ever grows.
+    idToSlot = new LongIntHashMap(capacity);
+    cellPointCounts = new LongIntHashMap(capacity);
+    freeSlots = new int[capacity];
+    clear();
+  }
+
+  /** Removes all points. */
+  public void clear() {
+    idToSlot.clear();
+    cellPointCounts.clear();
+    for (int slot = 0; slot < capacity; ++slot) {
+      points.put(slot * FLOATS_PER_POINT + 3, FREE_SLOT_CONFIDENCE);
+      // Free slots are handed out in increasing order.
+      freeSlots[slot] = capacity - 1 - slot;
+    }
+    freeSlotCount = capacity;
+    sweepSlot = 0;
+  }
+
+  /** Returns the number of points in the map. */
+  public int size() {
+    return capacity - freeSlotCount;
+  }
+
+  /**
+   * Adds the points of {@code cloud} to the map, or refreshes them if they are known. Repeated
+   * calls with the same point cloud will be ignored.
+   */
+  public void update(PointCloud cloud) {
+    long timestamp = cloud.getTimestamp();
+    if (timestamp == lastTimestamp) {
+      // Redundant call.
+      return;
+    }
+    lastTimestamp = timestamp;
+
+    FloatBuffer cloudPoints = cloud.getPoints();
+    IntBuffer cloudIds = cloud.getIds();
+    int pointCount = Math.min(cloudPoints.remaining() / FLOATS_PER_POINT, cloudIds.remaining());
+    int pointsOffset = cloudPoints.position();
+    int idsOffset = cloudIds.position();
+    for (int i = 0; i < pointCount; ++i) {
+      int offset = pointsOffset + i * FLOATS_PER_POINT;
+      float confidence = cloudPoints.get(offset + 3);
+      if (confidence < minConfidence) {
+        continue;
+      }
+      int id = cloudIds.get(idsOffset + i);
+      int slot = idToSlot.get(id, -1);
+      if (slot >= 0) {
+        removeFromCell(slot);
+      } else {
+        slot = allocateSlot(timestamp);
+        if (slot < 0) {
+          break; // Every slot holds a point of this point cloud.
+        }
+        idToSlot.put(id, slot);
+        ids.put(slot, id);
+      }
+      points.put(slot * FLOATS_PER_POINT, cloudPoints.get(offset));
+      points.put(slot * FLOATS_PER_POINT + 1, cloudPoints.get(offset + 1));
+      points.put(slot * FLOATS_PER_POINT + 2, cloudPoints.get(offset + 2));
+      points.put(slot * FLOATS_PER_POINT + 3, confidence);
+      lastSeenTimestamps.put(slot, timestamp);
+      addToCell(slot);
+    }
+
+    sweep(timestamp, SWEEP_SLOTS_PER_UPDATE);
+  }
+
+  /**
+   * Returns the number of points in the cells that overlap a sphere. Cells are counted whole, so
+   * this is an approximation at the scale of the cell size.
+   */
+  public int getPointCount(float x, float y, float z, float radiusMeters) {
+    int minX = toCell(x - radiusMeters);
+    int maxX = toCell(x + radiusMeters);
+    int minY = toCell(y - radiusMeters);
+    int maxY = toCell(y + radiusMeters);
+    int minZ = toCell(z - radiusMeters);
+    int maxZ = toCell(z + radiusMeters);
+    // Cells whose nearest point is within the radius.
+    float radiusSquared = radiusMeters * radiusMeters;
+    int count = 0;
+    for (int cx = minX; cx <= maxX; ++cx) {
+      float dx = distanceToCell(x, cx);
+      for (int cy = minY; cy <= maxY; ++cy) {
+        float dy = distanceToCell(y, cy);
+        for (int cz = minZ; cz <= maxZ; ++cz) {
+          float dz = distanceToCell(z, cz);
+          if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+            count += cellPointCounts.get(packCell(cx, cy, cz), 0);
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns whether at least {@code minPoints} confident points were observed within {@code
+   * radiusMeters} of a position, e.g. to tell whether an anchor placed there is likely to host.
+   */
+  public boolean isWellMapped(float x, float y, float z, float radiusMeters, int minPoints) {
+    return getPointCount(x, y, z, radiusMeters) >= minPoints;
+  }
+
+  /**
+   * Returns a free slot, evicting the least recently observed point if the map is full, or -1 if
+   * every point was observed at {@code timestamp}.
+   */
+  private int allocateSlot(long timestamp) {
+    if (freeSlotCount == 0) {
+      // Evict the point that was observed least recently, among the next slots of the sweep.
+      int oldestSlot = -1;
+      long oldestTimestamp = timestamp;
+      for (int i = 0; i < Math.min(capacity, SWEEP_SLOTS_PER_UPDATE); ++i) {
+        int slot = (sweepSlot + i) % capacity;
+        if (lastSeenTimestamps.get(slot) < oldestTimestamp) {
+          oldestTimestamp = lastSeenTimestamps.get(slot);
+          oldestSlot = slot;
+        }
+      }
+      if (oldestSlot < 0) {
+        return -1;
+      }
+      removePoint(oldestSlot);
+      sweepSlot = (oldestSlot + 1) % capacity;
+    }
+    return freeSlots[--freeSlotCount];
+  }
+
+  /** Removes up to {@code slotCount} points whose confidence has decayed below the minimum. */
+  private void sweep(long timestamp, int slotCount) {
+    for (int i = 0; i < Math.min(capacity, slotCount); ++i) {
+      int slot = sweepSlot;
+      sweepSlot = (sweepSlot + 1) % capacity;
+      float confidence = points.get(slot * FLOATS_PER_POINT + 3);
+      if (confidence == FREE_SLOT_CONFIDENCE) {
+        continue;
+      }
+      float elapsedNanos = timestamp - lastSeenTimestamps.get(slot);
+      float decayedConfidence = confidence * (float) Math.pow(0.5, elapsedNanos / halfLifeNanos);
+      if (decayedConfidence < minConfidence) {
+        removePoint(slot);
+      }
+    }
+  }
+
+  private void removePoint(int slot) {
+    removeFromCell(slot);
+    idToSlot.remove(ids.get(slot), -1);
+    points.put(slot * FLOATS_PER_POINT + 3, FREE_SLOT_CONFIDENCE);
+    freeSlots[freeSlotCount++] = slot;
+  }
+
+  private void addToCell(int slot) {
+    long cell = getCell(slot);
+    cellPointCounts.put(cell, cellPointCounts.get(cell, 0) + 1);
+  }
+
+  private void removeFromCell(int slot) {
+    long cell = getCell(slot);
+    int count = cellPointCounts.get(cell, 0);
+    if (count <= 1) {
+      cellPointCounts.remove(cell, 0);
+    } else {
+      cellPointCounts.put(cell, count - 1);
+    }
+  }
+
+  private long getCell(int slot) {
+    return packCell(
+        toCell(points.get(slot * FLOATS_PER_POINT)),
+        toCell(points.get(slot * FLOATS_PER_POINT + 1)),
+        toCell(points.get(slot * FLOATS_PER_POINT + 2)));
+  }
+
+  private int toCell(float coordinate) {
+    return (int) Math.floor(coordinate / cellSizeMeters);
+  }
+
+  /** Returns the distance from {@code coordinate} to the nearest point of cell {@code cell}. */
+  private float distanceToCell(float coordinate, int cell) {
+    float min = cell * cellSizeMeters;
+    float max = min + cellSizeMeters;
+    return coordinate < min ? min - coordinate : coordinate > max ? coordinate - max : 0;
+  }
+
+  /** Packs signed cell coordinates into a key. The sign bit is never set. */
+  private static long packCell(int x, int y, int z) {
+    return ((x & CELL_COORDINATE_MASK) << (2 * CELL_COORDINATE_BITS))
+        | ((y & CELL_COORDINATE_MASK) << CELL_COORDINATE_BITS)
+        | (z & CELL_COORDINATE_MASK);
+  }
+}
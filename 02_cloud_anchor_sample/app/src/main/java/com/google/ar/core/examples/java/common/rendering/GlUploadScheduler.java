@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.opengl.GLUtils;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs GL upload work on the render thread within a per-frame time budget.
+ *
+ * <p>Producers on any thread {@link #enqueue(UploadJob)} jobs. The render thread calls {@link
+ * #drainOnGlThread()} once per frame, which uploads slices of the queued jobs until the budget is
+ * spent. Large buffers and textures are split into sub-uploads so that a single job never stalls a
+ * frame for long.
+ */
+public class GlUploadScheduler {
+  private static final String TAG = GlUploadScheduler.class.getSimpleName();
+
+  private static final int DEFAULT_SLICE_BYTES = 256 * 1024;
+  private static final int BYTES_PER_RGBA_PIXEL = 4;
+
+  /** A piece of GL upload work that can be performed in several slices. */
+  public interface UploadJob {
+
+    /**
+     * Uploads the next slice of this job. Always called on the OpenGL thread.
+     *
+     * @param maxBytes The suggested maximum number of bytes to upload in this slice.
+     * @return {@code true} if the data is now resident and the job is complete.
+     */
+    boolean uploadNextSlice(int maxBytes);
+  }
+
+  private static final class PendingJob {
+    final UploadJob job;
+    final SettableFuture<Void> future = SettableFuture.create();
+
+    PendingJob(UploadJob job) {
+      this.job = job;
+    }
+  }
+
+  private final ConcurrentLinkedQueue<PendingJob> pendingJobs = new ConcurrentLinkedQueue<>();
+  private long budgetNanos;
+  private int sliceBytes = DEFAULT_SLICE_BYTES;
+
+  /**
+   * Creates a scheduler.
+   *
+   * @param budgetMillis The time each call to {@link #drainOnGlThread()} may spend uploading.
+   */
+  public GlUploadScheduler(float budgetMillis) {
+    setBudgetMillis(budgetMillis);
+  }
+
+  /** Sets the time each call to {@link #drainOnGlThread()} may spend uploading. */
+  public void setBudgetMillis(float budgetMillis) {
+    budgetNanos = (long) (budgetMillis * 1000000L);
+  }
+
+  /** Sets the suggested size of a single sub-upload. */
+  public void setSliceBytes(int sliceBytes) {
+    this.sliceBytes = sliceBytes;
+  }
+
+  /** Returns the number of jobs that have not completed yet. */
+  public int getPendingJobCount() {
+    return pendingJobs.size();
+  }
+
+  /**
+   * Queues a job. May be called from any thread.
+   *
+   * @return A future that completes on the OpenGL thread once the job's data is resident.
+   */
+  public ListenableFuture<Void> enqueue(UploadJob job) {
+    PendingJob pendingJob = new PendingJob(job);
+    pendingJobs.add(pendingJob);
+    return pendingJob.future;
+  }
+
+  /**
+   * Uploads queued work until the per-frame budget is spent. Must be called on the OpenGL thread,
+   * typically at the start of {@link GLSurfaceView.Renderer#onDrawFrame(GL10)}. At least one slice
+   * is uploaded per call, so that progress is made even with a very small budget.
+   */
+  public void drainOnGlThread() {
+    long deadline = System.nanoTime() + budgetNanos;
+    PendingJob pendingJob;
+    while ((pendingJob = pendingJobs.peek()) != null) {
+      if (pendingJob.future.isCancelled()) {
+        pendingJobs.poll();
+        continue;
+      }
+      try {
+        if (pendingJob.job.uploadNextSlice(sliceBytes)) {
+          pendingJobs.poll();
+          pendingJob.future.set(null);
+        }
+      } catch (RuntimeException e) {
+        pendingJobs.poll();
+        pendingJob.future.setException(e);
+      }
+      if (System.nanoTime() >= deadline) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Creates a job that allocates a buffer object and fills it with {@code data} in sub-uploads.
+   *
+   * @param target The buffer target, e.g. {@link GLES20#GL_ARRAY_BUFFER}.
+   * @param bufferId A buffer object generated with {@link GLES20#glGenBuffers(int, int[], int)}.
+   * @param data The data to upload, from position zero to its limit.
+   * @param usage The buffer usage hint, e.g. {@link GLES20#GL_STATIC_DRAW}.
+   */
+  public static UploadJob createBufferUploadJob(
+      int target, int bufferId, ByteBuffer data, int usage) {
+    return new UploadJob() {
+      private int uploadedBytes = -1;
+
+      @Override
+      public boolean uploadNextSlice(int maxBytes) {
+        int totalBytes = data.limit();
+        GLES20.glBindBuffer(target, bufferId);
+        if (uploadedBytes < 0) {
+          // Allocate the storage first, then fill it in slices.
+          GLES20.glBufferData(target, totalBytes, null, usage);
+          uploadedBytes = 0;
+        }
+        int sliceBytes = Math.min(maxBytes, totalBytes - uploadedBytes);
+        if (sliceBytes > 0) {
+          data.position(uploadedBytes);
+          GLES20.glBufferSubData(target, uploadedBytes, sliceBytes, data);
+          uploadedBytes += sliceBytes;
+        }
+        GLES20.glBindBuffer(target, 0);
+        ShaderUtil.checkGLError(TAG, "Buffer upload");
+        return uploadedBytes >= totalBytes;
+      }
+    };
+  }
+
+  /**
+   * Creates a job that uploads a bitmap into a 2D texture in row strips, and optionally generates
+   * its mipmaps in a final slice. May be called from any thread. The bitmap pixels are copied on
+   * the calling thread when the job is created, and only the uploads run on the OpenGL thread.
+   *
+   * @param textureId A texture generated with {@link GLES20#glGenTextures(int, int[], int)}, whose
+   *     parameters have already been set.
+   * @param bitmap The bitmap to upload. It is recycled once its pixels have been copied.
+   * @param generateMipmap Whether to generate mipmaps once all levels are uploaded.
+   */
+  public static UploadJob createTextureUploadJob(
+      int textureId, Bitmap bitmap, boolean generateMipmap) {
+    if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+      // Other formats are uploaded in one go.
+      return maxBytes -> {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        if (generateMipmap) {
+          GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        bitmap.recycle();
+        ShaderUtil.checkGLError(TAG, "Texture upload");
+        return true;
+      };
+    }
+
+    final int width = bitmap.getWidth();
+    final int height = bitmap.getHeight();
+    final ByteBuffer pixels =
+        ByteBuffer.allocateDirect(width * height * BYTES_PER_RGBA_PIXEL)
+            .order(ByteOrder.nativeOrder());
+    bitmap.copyPixelsToBuffer(pixels);
+    bitmap.recycle();
+
+    return new UploadJob() {
+      private int uploadedRows = -1;
+
+      @Override
+      public boolean uploadNextSlice(int maxBytes) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        if (uploadedRows < 0) {
+          GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+          GLES20.glTexImage2D(
+              GLES20.GL_TEXTURE_2D,
+              0,
+              GLES20.GL_RGBA,
+              width,
+              height,
+              0,
+              GLES20.GL_RGBA,
+              GLES20.GL_UNSIGNED_BYTE,
+              null);
+          uploadedRows = 0;
+        } else if (uploadedRows < height) {
+          // At least one row per slice, so that a small budget still makes progress.
+          int rowsInBudget = maxBytes / (width * BYTES_PER_RGBA_PIXEL);
+          int rows = Math.max(1, Math.min(height - uploadedRows, rowsInBudget));
+          pixels.position(uploadedRows * width * BYTES_PER_RGBA_PIXEL);
+          GLES20.glTexSubImage2D(
+              GLES20.GL_TEXTURE_2D,
+              0,
+              0,
+              uploadedRows,
+              width,
+              rows,
+              GLES20.GL_RGBA,
+              GLES20.GL_UNSIGNED_BYTE,
+              pixels);
+          uploadedRows += rows;
+        } else if (generateMipmap) {
+          // Mipmap generation cannot be split, so it gets a slice of its own.
+          GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+          uploadedRows++;
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        ShaderUtil.checkGLError(TAG, "Texture upload");
+        return uploadedRows >= (generateMipmap ? height + 1 : height);
+      }
+    };
+  }
+}
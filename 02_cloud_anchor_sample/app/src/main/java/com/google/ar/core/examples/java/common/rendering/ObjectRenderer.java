@@ -21,6 +21,10 @@ import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import androidx.annotation.Nullable;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import de.javagl.obj.Obj;
 import de.javagl.obj.ObjData;
 import de.javagl.obj.ObjReader;
@@ -31,7 +35,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -71,6 +74,9 @@ public class ObjectRenderer {
   private int indexCount;
 
   private int program;
+  // Whether the program was compiled here rather than taken from the registry, in which case it is
+  // deleted once replaced.
+  private boolean ownsProgram;
   private final int[] textures = new int[1];
 
   // Shader location: model view projection matrix.
@@ -108,8 +114,13 @@ public class ObjectRenderer {
 
   private BlendMode blendMode = null;
 
+  // False while the texture and buffers are still being uploaded by a GlUploadScheduler.
+  private volatile boolean resident = true;
+
   // Temporary matrices allocated here to reduce number of allocations for each frame.
   private final float[] modelMatrix = new float[16];
+  // CPU-side copy of the triangles and their bounds in model space, for ray casting.
+  private TriangleMesh mesh = new TriangleMesh(new float[0], new int[0]);
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
 
@@ -126,6 +137,30 @@ public class ObjectRenderer {
   private float[] uvTransform = null;
   private int depthTextureId;
 
+  // Precompiled shader variants. When set, toggling a variant never compiles on the GL thread.
+  private ShaderVariantRegistry shaderVariantRegistry = null;
+  private boolean requestedUseDepthForOcclusion = false;
+  // Used to compile a variant the registry reports as unavailable when switching from draw().
+  private Context shaderContext = null;
+
+  /**
+   * Registers every shader variant this renderer can switch to, so that they can be precompiled
+   * by {@link ShaderVariantRegistry#warmUpOnGlThread(Context)}.
+   */
+  public static void registerShaderVariants(ShaderVariantRegistry registry) {
+    Map<String, int[]> defineValues = new TreeMap<>();
+    defineValues.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, new int[] {0, 1});
+    registry.register(VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defineValues);
+  }
+
+  /**
+   * Uses programs precompiled by the given registry instead of compiling them when a variant is
+   * selected. Must be called before {@link #createOnGlThread(Context, String, String)}.
+   */
+  public void setShaderVariantRegistry(ShaderVariantRegistry shaderVariantRegistry) {
+    this.shaderVariantRegistry = shaderVariantRegistry;
+  }
+
   /**
    * Creates and initializes OpenGL resources needed for rendering the model.
    *
@@ -135,7 +170,29 @@ public class ObjectRenderer {
    */
   public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
       throws IOException {
+    createOnGlThread(context, objAssetName, diffuseTextureAssetName, null);
+  }
+
+  /**
+   * Creates and initializes OpenGL resources needed for rendering the model.
+   *
+   * @param context Context for loading the shader and below-named model and texture assets.
+   * @param objAssetName Name of the OBJ file containing the model geometry.
+   * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
+   * @param uploadScheduler If non-null, the texture and buffers are uploaded by this scheduler over
+   *     the following frames instead of inline, and the model is not drawn until they are resident.
+   *     The texture and OBJ file are still decoded here, on the OpenGL thread, so that the bounds
+   *     and mesh of the model are available as soon as this returns.
+   * @return A future that completes once the model data is resident.
+   */
+  public ListenableFuture<Void> createOnGlThread(
+      Context context,
+      String objAssetName,
+      String diffuseTextureAssetName,
+      @Nullable GlUploadScheduler uploadScheduler)
+      throws IOException {
     // Compiles and loads the shader based on the current configuration.
+    shaderContext = context.getApplicationContext();
     compileAndLoadShaderProgram(context);
 
     // Read the texture.
@@ -149,12 +206,13 @@ public class ObjectRenderer {
     GLES20.glTexParameteri(
         GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
     GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+    if (uploadScheduler == null) {
+      GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
+      GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+      textureBitmap.recycle();
+    }
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 
-    textureBitmap.recycle();
-
     ShaderUtil.checkGLError(TAG, "Texture loading");
 
     // Read the obj file.
@@ -177,14 +235,17 @@ public class ObjectRenderer {
     FloatBuffer vertices = ObjData.getVertices(obj);
     FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
     FloatBuffer normals = ObjData.getNormals(obj);
+    float[] meshVertices = new float[vertices.limit()];
+    vertices.duplicate().get(meshVertices);
+    int[] meshIndices = new int[wideIndices.limit()];
+    wideIndices.duplicate().get(meshIndices);
+    mesh = new TriangleMesh(meshVertices, meshIndices);
 
     // Convert int indices to shorts for GL ES 2.0 compatibility
-    ShortBuffer indices =
-        ByteBuffer.allocateDirect(2 * wideIndices.limit())
-            .order(ByteOrder.nativeOrder())
-            .asShortBuffer();
+    ByteBuffer indices =
+        ByteBuffer.allocateDirect(2 * wideIndices.limit()).order(ByteOrder.nativeOrder());
     while (wideIndices.hasRemaining()) {
-      indices.put((short) wideIndices.get());
+      indices.putShort((short) wideIndices.get());
     }
     indices.rewind();
 
@@ -193,32 +254,62 @@ public class ObjectRenderer {
     vertexBufferId = buffers[0];
     indexBufferId = buffers[1];
 
-    // Load vertex buffer
+    // Pack the vertex attributes into a single buffer.
     verticesBaseAddress = 0;
     texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
     normalsBaseAddress = texCoordsBaseAddress + 4 * texCoords.limit();
     final int totalBytes = normalsBaseAddress + 4 * normals.limit();
 
+    ByteBuffer vertexData = ByteBuffer.allocateDirect(totalBytes).order(ByteOrder.nativeOrder());
+    FloatBuffer vertexDataFloats = vertexData.asFloatBuffer();
+    vertexDataFloats.put(vertices);
+    vertexDataFloats.put(texCoords);
+    vertexDataFloats.put(normals);
+    indexCount = indices.limit() / 2;
+
+    Matrix.setIdentityM(modelMatrix, 0);
+
+    if (uploadScheduler != null) {
+      resident = false;
+      ListenableFuture<Void> uploaded =
+          Futures.transform(
+              Futures.allAsList(
+                  uploadScheduler.enqueue(
+                      GlUploadScheduler.createTextureUploadJob(textures[0], textureBitmap, true)),
+                  uploadScheduler.enqueue(
+                      GlUploadScheduler.createBufferUploadJob(
+                          GLES20.GL_ARRAY_BUFFER,
+                          vertexBufferId,
+                          vertexData,
+                          GLES20.GL_STATIC_DRAW)),
+                  uploadScheduler.enqueue(
+                      GlUploadScheduler.createBufferUploadJob(
+                          GLES20.GL_ELEMENT_ARRAY_BUFFER,
+                          indexBufferId,
+                          indices,
+                          GLES20.GL_STATIC_DRAW))),
+              results -> {
+                resident = true;
+                return null;
+              },
+              MoreExecutors.directExecutor());
+      return uploaded;
+    }
+
+    // Load vertex buffer
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, verticesBaseAddress, 4 * vertices.limit(), vertices);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, texCoordsBaseAddress, 4 * texCoords.limit(), texCoords);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, normalsBaseAddress, 4 * normals.limit(), normals);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, vertexData, GLES20.GL_STATIC_DRAW);
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     // Load index buffer
     GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    indexCount = indices.limit();
     GLES20.glBufferData(
         GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * indexCount, indices, GLES20.GL_STATIC_DRAW);
     GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "OBJ buffer load");
 
-    Matrix.setIdentityM(modelMatrix, 0);
+    return Futures.immediateFuture(null);
   }
 
   /**
@@ -235,9 +326,10 @@ public class ObjectRenderer {
    * from real-world geometry.
    *
    * <p>This function is a no-op if the value provided is the same as what is already set. If the
-   * value changes, this function will recompile and reload the shader program to either
-   * enable/disable depth-based occlusion. NOTE: recompilation of the shader is inefficient. This
-   * code could be optimized to precompile both versions of the shader.
+   * value changes and a {@link ShaderVariantRegistry} is set, the precompiled program is swapped in
+   * as soon as it is ready, and the current program is used until then. Without a registry, or if
+   * the registry reports the variant as unavailable, this function will recompile and reload the
+   * shader program to either enable/disable depth-based occlusion.
    *
    * @param context Context for loading the shader.
    * @param useDepthForOcclusion Specifies whether to use the depth texture to perform occlusion
@@ -245,20 +337,75 @@ public class ObjectRenderer {
    */
   public void setUseDepthForOcclusion(Context context, boolean useDepthForOcclusion)
       throws IOException {
+    requestedUseDepthForOcclusion = useDepthForOcclusion;
     if (this.useDepthForOcclusion == useDepthForOcclusion) {
       return; // No change, does nothing.
     }
 
+    if (shaderVariantRegistry != null) {
+      // Swaps in the precompiled variant now if it is ready, or later from draw().
+      maybeSwapShaderVariant(context);
+      return;
+    }
+
     // Toggles the occlusion rendering mode and recompiles the shader.
     this.useDepthForOcclusion = useDepthForOcclusion;
     compileAndLoadShaderProgram(context);
   }
 
-  private void compileAndLoadShaderProgram(Context context) throws IOException {
-    // Compiles and loads the shader program based on the selected mode.
+  /**
+   * Switches to the requested shader variant if the registry has finished compiling it, or
+   * compiles it here if the registry will never provide it.
+   */
+  private void maybeSwapShaderVariant(Context context) throws IOException {
+    Map<String, Integer> defineValuesMap = getDefineValuesMap(requestedUseDepthForOcclusion);
+    int variantProgram =
+        shaderVariantRegistry.getProgram(VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defineValuesMap);
+    if (variantProgram == 0) {
+      if (shaderVariantRegistry.isUnavailable(
+          VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defineValuesMap)) {
+        // E.g. the shared context could not be created. Compiles it like without a registry.
+        useDepthForOcclusion = requestedUseDepthForOcclusion;
+        compileAndLoadShaderProgram(context);
+      }
+      return; // Otherwise not linked yet, keeps drawing with the current variant.
+    }
+    useDepthForOcclusion = requestedUseDepthForOcclusion;
+    deleteOwnedProgram();
+    program = variantProgram;
+    loadShaderProgramLocations();
+  }
+
+  /** Deletes the current program if it was compiled by this renderer. Call on the GL thread. */
+  private void deleteOwnedProgram() {
+    if (ownsProgram) {
+      GLES20.glDeleteProgram(program);
+      ownsProgram = false;
+    }
+    program = 0;
+  }
+
+  private static Map<String, Integer> getDefineValuesMap(boolean useDepthForOcclusion) {
     Map<String, Integer> defineValuesMap = new TreeMap<>();
     defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 1 : 0);
+    return defineValuesMap;
+  }
 
+  private void compileAndLoadShaderProgram(Context context) throws IOException {
+    // Uses the precompiled program if it is already available.
+    Map<String, Integer> defineValuesMap = getDefineValuesMap(useDepthForOcclusion);
+    deleteOwnedProgram();
+    if (shaderVariantRegistry != null) {
+      program =
+          shaderVariantRegistry.getProgram(
+              VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defineValuesMap);
+      if (program != 0) {
+        loadShaderProgramLocations();
+        return;
+      }
+    }
+
+    // Compiles and loads the shader program based on the selected mode.
     final int vertexShader =
         ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
     final int fragmentShader =
@@ -266,13 +413,19 @@ public class ObjectRenderer {
             TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME, defineValuesMap);
 
     program = GLES20.glCreateProgram();
+    ownsProgram = true;
     GLES20.glAttachShader(program, vertexShader);
     GLES20.glAttachShader(program, fragmentShader);
     GLES20.glLinkProgram(program);
-    GLES20.glUseProgram(program);
 
     ShaderUtil.checkGLError(TAG, "Program creation");
 
+    loadShaderProgramLocations();
+  }
+
+  private void loadShaderProgramLocations() {
+    GLES20.glUseProgram(program);
+
     modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
     modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
 
@@ -298,6 +451,22 @@ public class ObjectRenderer {
     ShaderUtil.checkGLError(TAG, "Program parameters");
   }
 
+  /**
+   * Copies the axis-aligned bounds of the model, before scaling, as min x, y, z followed by max x,
+   * y, z. Valid once {@link #createOnGlThread} has returned.
+   */
+  public void getLocalBounds(float[] outBounds, int offset) {
+    mesh.getBounds(outBounds, offset);
+  }
+
+  /**
+   * Returns the triangles of the model, before scaling, for ray casting. Valid once {@link
+   * #createOnGlThread} has returned.
+   */
+  public TriangleMesh getMesh() {
+    return mesh;
+  }
+
   /**
    * Updates the object model matrix and applies scaling.
    *
@@ -306,12 +475,21 @@ public class ObjectRenderer {
    * @see android.opengl.Matrix
    */
   public void updateModelMatrix(float[] modelMatrix, float scaleFactor) {
-    float[] scaleMatrix = new float[16];
-    Matrix.setIdentityM(scaleMatrix, 0);
-    scaleMatrix[0] = scaleFactor;
-    scaleMatrix[5] = scaleFactor;
-    scaleMatrix[10] = scaleFactor;
-    Matrix.multiplyMM(this.modelMatrix, 0, modelMatrix, 0, scaleMatrix, 0);
+    updateModelMatrix(modelMatrix, 0, scaleFactor);
+  }
+
+  /**
+   * Overload of {@link #updateModelMatrix(float[], float)} that reads the matrix at an offset, so
+   * that matrices packed into a single array can be used without copying.
+   */
+  public void updateModelMatrix(float[] modelMatrix, int offset, float scaleFactor) {
+    // Scaling before the model matrix scales its first three columns.
+    for (int i = 0; i < 12; ++i) {
+      this.modelMatrix[i] = modelMatrix[offset + i] * scaleFactor;
+    }
+    for (int i = 12; i < 16; ++i) {
+      this.modelMatrix[i] = modelMatrix[offset + i];
+    }
   }
 
   /**
@@ -352,9 +530,37 @@ public class ObjectRenderer {
       float[] cameraPerspective,
       float[] colorCorrectionRgba,
       float[] objColor) {
+    draw(cameraView, cameraPerspective, colorCorrectionRgba, objColor, 0);
+  }
+
+  /**
+   * Draws the model with the given color.
+   *
+   * @param objColor The RGBA color of the model, read at {@code objColorOffset}.
+   * @see #draw(float[], float[], float[])
+   */
+  public void draw(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      float[] objColor,
+      int objColorOffset) {
+
+    if (!resident) {
+      return; // Still uploading.
+    }
 
     ShaderUtil.checkGLError(TAG, "Before draw");
 
+    if (shaderVariantRegistry != null && requestedUseDepthForOcclusion != useDepthForOcclusion) {
+      try {
+        maybeSwapShaderVariant(shaderContext);
+      } catch (IOException e) {
+        // The same shader assets were already read in createOnGlThread().
+        throw new IllegalStateException("Failed to read the shader assets.", e);
+      }
+    }
+
     // Build the ModelView and ModelViewProjection matrices
     // for calculating object position and light.
     Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
@@ -374,7 +580,7 @@ public class ObjectRenderer {
     GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
 
     // Set the object color property.
-    GLES20.glUniform4fv(colorUniform, 1, objColor, 0);
+    GLES20.glUniform4fv(colorUniform, 1, objColor, objColorOffset);
 
     // Set the object material properties.
     GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
@@ -22,7 +22,9 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.util.Log;
 import com.google.ar.core.Camera;
+import com.google.ar.core.Frame;
 import com.google.ar.core.Plane;
 import com.google.ar.core.Pose;
 import com.google.ar.core.TrackingState;
@@ -31,12 +33,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /** Renders the detected AR planes. */
@@ -46,11 +44,19 @@ public class PlaneRenderer {
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/plane.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/plane.frag";
+  private static final String BATCHED_VERTEX_SHADER_NAME = "shaders/plane_batched.vert";
 
   private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
   private static final int BYTES_PER_SHORT = Short.SIZE / 8;
   private static final int COORDS_PER_VERTEX = 3; // x, z, alpha
 
+  // x, y, z, alpha, normal (3), uv matrix (4).
+  private static final int BATCHED_FLOATS_PER_VERTEX = 11;
+  private static final int BATCHED_NORMAL_OFFSET = 4;
+  private static final int BATCHED_UV_MATRIX_OFFSET = 7;
+  // Vertices addressable with unsigned short indices.
+  private static final int MAX_BATCHED_VERTICES = 65536;
+
   private static final int VERTS_PER_BOUNDARY_VERT = 2;
   private static final int INDICES_PER_BOUNDARY_VERT = 3;
   private static final int INITIAL_BUFFER_BOUNDARY_VERTS = 64;
@@ -75,6 +81,16 @@ public class PlaneRenderer {
   // occlusionShrink: occluded planes will fade out between alpha = 0 and 1/occlusionShrink
   private static final float[] GRID_CONTROL = {0.2f, 0.4f, 2.0f, 1.5f};
 
+  // Boundary simplification error, in pixels, at the distance the plane was last seen from.
+  private static final float DEFAULT_SIMPLIFICATION_TOLERANCE_PIXELS = 2.0f;
+  // Planes closer than this are simplified as if they were this far away.
+  private static final float MIN_SIMPLIFICATION_DISTANCE_M = 0.1f;
+  // A cached plane is re-simplified once it is seen this many times closer than before.
+  private static final float RESIMPLIFICATION_FACTOR = 2.0f;
+  private static final int MIN_POLYGON_VERTICES = 3;
+  // Distance below which planes are not ranked as more relevant for being closer.
+  private static final float MIN_RELEVANCE_DISTANCE_M = 0.5f;
+
   private int planeProgram;
   private final int[] textures = new int[1];
 
@@ -87,6 +103,26 @@ public class PlaneRenderer {
   private int gridControlUniform;
   private int planeUvMatrixUniform;
 
+  // Batched mode: all visible planes in a single draw call.
+  private boolean batchingEnabled = false;
+  private int batchedProgram;
+  private int batchedPositionAlphaAttribute;
+  private int batchedNormalAttribute;
+  private int batchedPlaneUvMatrixAttribute;
+  private int batchedViewProjectionUniform;
+  private int batchedTextureUniform;
+  private int batchedGridControlUniform;
+  private final int[] batchBuffers = new int[2];
+  private boolean batchVerticesDirty = true;
+  private FloatBuffer batchVertexData =
+      ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
+          .order(ByteOrder.nativeOrder())
+          .asFloatBuffer();
+  private ShortBuffer batchIndexData =
+      ByteBuffer.allocateDirect(INITIAL_INDEX_BUFFER_SIZE_BYTES)
+          .order(ByteOrder.nativeOrder())
+          .asShortBuffer();
+
   private FloatBuffer vertexBuffer =
       ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
           .order(ByteOrder.nativeOrder())
@@ -97,13 +133,68 @@ public class PlaneRenderer {
           .asShortBuffer();
 
   // Temporary lists/matrices allocated here to reduce number of allocations for each frame.
-  private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
-  private final float[] planeAngleUvMatrix =
-      new float[4]; // 2x2 rotation matrix applied to uv coords.
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] cameraView = new float[16];
+
+  // Boundary simplification.
+  private float simplificationTolerancePixels = DEFAULT_SIMPLIFICATION_TOLERANCE_PIXELS;
+  private int viewportHeight;
+  private float focalLengthPixels;
+  private float lastCameraX;
+  private float lastCameraY;
+  private float lastCameraZ;
+  private float[] simplifiedPolygon = new float[INITIAL_BUFFER_BOUNDARY_VERTS * 2];
+  private FloatBuffer simplifiedBoundary = FloatBuffer.wrap(simplifiedPolygon);
+  private float[] polygonScratch = new float[INITIAL_BUFFER_BOUNDARY_VERTS * 2];
+  private boolean[] keepScratch = new boolean[INITIAL_BUFFER_BOUNDARY_VERTS];
+  private int[] rangeStackScratch = new int[INITIAL_BUFFER_BOUNDARY_VERTS * 2];
+
+  // Per-frame plane selection, in primitive arrays reused between frames.
+  private int maxDrawnPlanes = Integer.MAX_VALUE;
+  private PlaneMesh[] candidateMeshes = new PlaneMesh[16];
+  private float[] candidateScores = new float[16];
+  private float[] candidateDistances = new float[16];
+  private int[] drawOrder = new int[16];
+  private int drawCount;
 
   private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
+  private int nextPlaneIndex = 0;
+
+  // Triangulated geometry of each tracked plane, rebuilt only when ARCore reports a change.
+  private final Map<Plane, PlaneMesh> planeMeshes = new HashMap<>();
+
+  /** The cached vertex and index buffers of a single plane, in the plane's local space. */
+  private static class PlaneMesh {
+    final int vertexBufferId;
+    final int indexBufferId;
+    int vertexBufferSize;
+    int indexBufferSize;
+    int indexCount;
+
+    final float[] modelMatrix = new float[16];
+    final float[] normal = new float[3];
+    final float[] planeAngleUvMatrix = new float[4]; // 2x2 rotation matrix applied to uv coords.
+    TrackingState trackingState;
+
+    // Area of the boundary polygon, in square meters.
+    float area;
+    // Simplification tolerance the boundary was triangulated with, in meters.
+    float simplificationTolerance;
+
+    // World-space copy of the geometry as a triangle list, for batched drawing.
+    float[] worldVertices = new float[0];
+    int vertexCount;
+    short[] triangleIndices = new short[0];
+    int triangleIndexCount;
+    int batchBaseVertex = -1;
+
+    PlaneMesh(int vertexBufferId, int indexBufferId) {
+      this.vertexBufferId = vertexBufferId;
+      this.indexBufferId = indexBufferId;
+    }
+  }
 
   public PlaneRenderer() {}
 
@@ -156,12 +247,61 @@ public class PlaneRenderer {
     planeUvMatrixUniform = GLES20.glGetUniformLocation(planeProgram, "u_PlaneUvMatrix");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
+
+    int batchedVertexShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, BATCHED_VERTEX_SHADER_NAME);
+    batchedProgram = ShaderUtil.linkGLProgram(TAG, batchedVertexShader, passthroughShader);
+
+    batchedPositionAlphaAttribute = GLES20.glGetAttribLocation(batchedProgram, "a_PositionAlpha");
+    batchedNormalAttribute = GLES20.glGetAttribLocation(batchedProgram, "a_Normal");
+    batchedPlaneUvMatrixAttribute = GLES20.glGetAttribLocation(batchedProgram, "a_PlaneUvMatrix");
+    batchedViewProjectionUniform = GLES20.glGetUniformLocation(batchedProgram, "u_ViewProjection");
+    batchedTextureUniform = GLES20.glGetUniformLocation(batchedProgram, "u_Texture");
+    batchedGridControlUniform = GLES20.glGetUniformLocation(batchedProgram, "u_gridControl");
+
+    GLES20.glGenBuffers(2, batchBuffers, 0);
+
+    ShaderUtil.checkGLError(TAG, "Batched program parameters");
   }
 
-  /** Updates the plane model transform matrix and extents. */
-  private void updatePlaneParameters(
-      float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-    System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
+  /**
+   * Selects whether all visible planes are drawn with a single draw call. In batched mode the plane
+   * vertices are kept pre-transformed into world space, with the per-plane normal and uv rotation
+   * stored per vertex instead of in uniforms.
+   */
+  public void setBatchingEnabled(boolean batchingEnabled) {
+    this.batchingEnabled = batchingEnabled;
+  }
+
+  /**
+   * Sets the size of the surface being drawn to, which is needed to convert the simplification
+   * tolerance from pixels to meters. Boundaries are not simplified until this is called.
+   */
+  public void setViewportSize(int width, int height) {
+    viewportHeight = height;
+  }
+
+  /**
+   * Sets how far, in pixels, a simplified plane boundary may deviate from the boundary reported by
+   * ARCore. A value of 0 disables simplification.
+   */
+  public void setSimplificationTolerance(float tolerancePixels) {
+    simplificationTolerancePixels = tolerancePixels;
+  }
+
+  /**
+   * Sets the maximum number of planes drawn per frame. Planes are ranked by their area and their
+   * distance from the camera, and only the most relevant ones are drawn.
+   */
+  public void setMaxDrawnPlanes(int maxDrawnPlanes) {
+    this.maxDrawnPlanes = maxDrawnPlanes;
+  }
+
+  /**
+   * Triangulates the plane boundary polygon into {@link #vertexBuffer} and {@link #indexBuffer},
+   * in the plane's local space.
+   */
+  private void triangulatePlane(float extentX, float extentZ, FloatBuffer boundary) {
     if (boundary == null) {
       vertexBuffer.limit(0);
       indexBuffer.limit(0);
@@ -244,78 +384,537 @@ public class PlaneRenderer {
     }
   }
 
-  private void draw(float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
+  private void draw(float[] cameraView, float[] cameraPerspective, PlaneMesh mesh) {
     // Build the ModelView and ModelViewProjection matrices
     // for calculating cube position and light.
-    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
+    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, mesh.modelMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
     // Set the position of the plane
-    vertexBuffer.rewind();
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.vertexBufferId);
     GLES20.glVertexAttribPointer(
         planeXZPositionAlphaAttribute,
         COORDS_PER_VERTEX,
         GLES20.GL_FLOAT,
         false,
         BYTES_PER_FLOAT * COORDS_PER_VERTEX,
-        vertexBuffer);
+        0);
 
     // Set the Model and ModelViewProjection matrices in the shader.
-    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, 0);
-    GLES20.glUniform3f(planeNormalUniform, planeNormal[0], planeNormal[1], planeNormal[2]);
+    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, mesh.modelMatrix, 0);
+    GLES20.glUniform3f(planeNormalUniform, mesh.normal[0], mesh.normal[1], mesh.normal[2]);
     GLES20.glUniformMatrix4fv(
         planeModelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+    GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, mesh.planeAngleUvMatrix, 0);
 
-    indexBuffer.rewind();
-    GLES20.glDrawElements(
-        GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexBufferId);
+    GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, mesh.indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
     ShaderUtil.checkGLError(TAG, "Drawing plane");
   }
 
-  static class SortablePlane {
-    final float distance;
-    final Plane plane;
+  /**
+   * Updates the cached geometry of the planes that changed in the latest frame. Planes that have
+   * stopped tracking or have been subsumed by another plane are evicted from the cache. Must be
+   * called on the OpenGL thread.
+   *
+   * @param updatedPlanes The planes that changed, as returned by {@link
+   *     Frame#getUpdatedTrackables(Class)}.
+   */
+  public void updatePlanes(Collection<Plane> updatedPlanes) {
+    for (Plane plane : updatedPlanes) {
+      TrackingState trackingState = plane.getTrackingState();
+      if (trackingState == TrackingState.STOPPED || plane.getSubsumedBy() != null) {
+        evictPlane(plane);
+        continue;
+      }
+
+      PlaneMesh mesh = planeMeshes.get(plane);
+      if (mesh == null) {
+        mesh = createPlaneMesh(plane);
+      }
+      mesh.trackingState = trackingState;
+      if (trackingState != TrackingState.TRACKING) {
+        continue; // Keeps the last geometry until tracking resumes.
+      }
+
+      Pose centerPose = plane.getCenterPose();
+      centerPose.toMatrix(mesh.modelMatrix, 0);
+      // Get transformed Y axis of plane's coordinate system.
+      centerPose.getTransformedAxis(1, 1.0f, mesh.normal, 0);
+
+      rebuildPlaneMesh(plane, mesh);
+    }
+
+    // Boundaries simplified from far away are too coarse once the camera gets closer.
+    for (Map.Entry<Plane, PlaneMesh> entry : planeMeshes.entrySet()) {
+      PlaneMesh mesh = entry.getValue();
+      if (mesh.trackingState == TrackingState.TRACKING
+          && mesh.simplificationTolerance
+              > RESIMPLIFICATION_FACTOR * getSimplificationTolerance(mesh)) {
+        rebuildPlaneMesh(entry.getKey(), mesh);
+      }
+    }
+    ShaderUtil.checkGLError(TAG, "Updating planes");
+  }
+
+  private void rebuildPlaneMesh(Plane plane, PlaneMesh mesh) {
+    FloatBuffer polygon = plane.getPolygon();
+    mesh.simplificationTolerance = getSimplificationTolerance(mesh);
+    FloatBuffer boundary = null;
+    if (polygon != null) {
+      boundary = simplifyPolygon(polygon, mesh.simplificationTolerance);
+      mesh.area = calculatePolygonArea(simplifiedPolygon, boundary.limit() / 2);
+    } else {
+      mesh.area = 0;
+    }
+    triangulatePlane(plane.getExtentX(), plane.getExtentZ(), boundary);
+    buildWorldSpaceGeometry(mesh);
+    uploadPlaneMesh(mesh);
+  }
+
+  /**
+   * Returns the simplification tolerance in meters for a plane, given the camera position of the
+   * previous frame, or 0 if simplification is disabled.
+   */
+  private float getSimplificationTolerance(PlaneMesh mesh) {
+    if (simplificationTolerancePixels <= 0 || focalLengthPixels <= 0) {
+      return 0;
+    }
+    float dx = lastCameraX - mesh.modelMatrix[12];
+    float dy = lastCameraY - mesh.modelMatrix[13];
+    float dz = lastCameraZ - mesh.modelMatrix[14];
+    float distance =
+        Math.max((float) Math.sqrt(dx * dx + dy * dy + dz * dz), MIN_SIMPLIFICATION_DISTANCE_M);
+    return simplificationTolerancePixels * distance / focalLengthPixels;
+  }
+
+  /**
+   * Simplifies a closed boundary polygon with the Douglas-Peucker algorithm.
+   *
+   * @param polygon The x, z pairs of the polygon, as returned by {@link Plane#getPolygon()}.
+   * @param tolerance The maximum distance in meters between a removed vertex and the simplified
+   *     boundary.
+   * @return A buffer over {@link #simplifiedPolygon} holding the remaining x, z pairs in order.
+   */
+  private FloatBuffer simplifyPolygon(FloatBuffer polygon, float tolerance) {
+    polygon.rewind();
+    int vertexCount = polygon.limit() / 2;
+    if (polygonScratch.length < vertexCount * 2) {
+      polygonScratch = new float[vertexCount * 4];
+      keepScratch = new boolean[vertexCount * 2];
+      rangeStackScratch = new int[vertexCount * 4];
+    }
+    if (simplifiedPolygon.length < vertexCount * 2) {
+      simplifiedPolygon = new float[vertexCount * 4];
+      simplifiedBoundary = FloatBuffer.wrap(simplifiedPolygon);
+    }
+    float[] points = polygonScratch;
+    polygon.get(points, 0, vertexCount * 2);
+
+    boolean[] keep = keepScratch;
+    boolean simplify = tolerance > 0 && vertexCount > MIN_POLYGON_VERTICES;
+    for (int i = 0; i < vertexCount; ++i) {
+      keep[i] = !simplify;
+    }
+
+    if (simplify) {
+      // Split the closed polygon into two chains, at vertex 0 and the vertex farthest from it.
+      int farthest = 0;
+      float farthestDistance = -1;
+      for (int i = 1; i < vertexCount; ++i) {
+        float dx = points[i * 2] - points[0];
+        float dz = points[i * 2 + 1] - points[1];
+        float distance = dx * dx + dz * dz;
+        if (distance > farthestDistance) {
+          farthestDistance = distance;
+          farthest = i;
+        }
+      }
+      keep[0] = true;
+      keep[farthest] = true;
+
+      // Each range is [first, last], with last possibly wrapping back to vertex 0.
+      int[] stack = rangeStackScratch;
+      int stackSize = 0;
+      stack[stackSize++] = 0;
+      stack[stackSize++] = farthest;
+      stack[stackSize++] = farthest;
+      stack[stackSize++] = vertexCount;
+      float toleranceSquared = tolerance * tolerance;
+      while (stackSize > 0) {
+        int last = stack[--stackSize];
+        int first = stack[--stackSize];
+        float ax = points[first * 2];
+        float az = points[first * 2 + 1];
+        float bx = points[(last % vertexCount) * 2];
+        float bz = points[(last % vertexCount) * 2 + 1];
+        float abx = bx - ax;
+        float abz = bz - az;
+        float abLengthSquared = abx * abx + abz * abz;
+
+        int split = -1;
+        float maxDistanceSquared = toleranceSquared;
+        for (int i = first + 1; i < last; ++i) {
+          float apx = points[i * 2] - ax;
+          float apz = points[i * 2 + 1] - az;
+          float distanceSquared;
+          if (abLengthSquared > 0) {
+            float cross = abx * apz - abz * apx;
+            distanceSquared = cross * cross / abLengthSquared;
+          } else {
+            distanceSquared = apx * apx + apz * apz;
+          }
+          if (distanceSquared > maxDistanceSquared) {
+            maxDistanceSquared = distanceSquared;
+            split = i;
+          }
+        }
+        if (split >= 0) {
+          keep[split] = true;
+          stack[stackSize++] = first;
+          stack[stackSize++] = split;
+          stack[stackSize++] = split;
+          stack[stackSize++] = last;
+        }
+      }
+    }
+
+    int kept = 0;
+    for (int i = 0; i < vertexCount; ++i) {
+      if (keep[i]) {
+        simplifiedPolygon[kept * 2] = points[i * 2];
+        simplifiedPolygon[kept * 2 + 1] = points[i * 2 + 1];
+        kept++;
+      }
+    }
+    if (kept < MIN_POLYGON_VERTICES) {
+      // Too thin to keep its shape, use the original boundary instead.
+      System.arraycopy(points, 0, simplifiedPolygon, 0, vertexCount * 2);
+      kept = vertexCount;
+    }
+    simplifiedBoundary.clear();
+    simplifiedBoundary.limit(kept * 2);
+    return simplifiedBoundary;
+  }
+
+  /** Computes the area of a polygon given as x, z pairs, with the shoelace formula. */
+  private static float calculatePolygonArea(float[] polygon, int vertexCount) {
+    float twiceArea = 0;
+    for (int i = 0, j = vertexCount - 1; i < vertexCount; j = i++) {
+      twiceArea += polygon[j * 2] * polygon[i * 2 + 1] - polygon[i * 2] * polygon[j * 2 + 1];
+    }
+    return Math.abs(twiceArea) * 0.5f;
+  }
+
+  private PlaneMesh createPlaneMesh(Plane plane) {
+    int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    PlaneMesh mesh = new PlaneMesh(buffers[0], buffers[1]);
+
+    // Get plane index. Keep a map to assign same indices to same planes.
+    Integer planeIndex = planeIndexMap.get(plane);
+    if (planeIndex == null) {
+      planeIndex = nextPlaneIndex++;
+      planeIndexMap.put(plane, planeIndex);
+    }
+
+    // Each plane will have its own angle offset from others, to make them easier to
+    // distinguish. Compute a 2x2 rotation matrix from the angle.
+    float angleRadians = planeIndex * 0.144f;
+    float uScale = DOTS_PER_METER;
+    float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
+    mesh.planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
+    mesh.planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
+    mesh.planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
+    mesh.planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
+
+    planeMeshes.put(plane, mesh);
+    return mesh;
+  }
+
+  /** Copies the triangulation in {@link #vertexBuffer} and {@link #indexBuffer} into the mesh. */
+  private void uploadPlaneMesh(PlaneMesh mesh) {
+    int vertexBytes = vertexBuffer.limit() * BYTES_PER_FLOAT;
+    int indexBytes = indexBuffer.limit() * BYTES_PER_SHORT;
+    vertexBuffer.rewind();
+    indexBuffer.rewind();
+
+    // Reallocate only when the polygon outgrows the buffers, otherwise update in place.
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.vertexBufferId);
+    if (vertexBytes > mesh.vertexBufferSize) {
+      mesh.vertexBufferSize = Math.max(vertexBytes, INITIAL_VERTEX_BUFFER_SIZE_BYTES);
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER, mesh.vertexBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
+    }
+    GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, vertexBytes, vertexBuffer);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexBufferId);
+    if (indexBytes > mesh.indexBufferSize) {
+      mesh.indexBufferSize = Math.max(indexBytes, INITIAL_INDEX_BUFFER_SIZE_BYTES);
+      GLES20.glBufferData(
+          GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
+    }
+    GLES20.glBufferSubData(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0, indexBytes, indexBuffer);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+    mesh.indexCount = indexBuffer.limit();
+  }
+
+  /**
+   * Transforms the triangulation in {@link #vertexBuffer} into world space, and converts the
+   * triangle strip in {@link #indexBuffer} into a triangle list so that several planes can be
+   * concatenated into one draw call.
+   */
+  private void buildWorldSpaceGeometry(PlaneMesh mesh) {
+    int vertexCount = vertexBuffer.limit() / COORDS_PER_VERTEX;
+    if (mesh.worldVertices.length < vertexCount * BATCHED_FLOATS_PER_VERTEX) {
+      mesh.worldVertices = new float[vertexCount * BATCHED_FLOATS_PER_VERTEX * 2];
+    }
+    float[] m = mesh.modelMatrix;
+    float[] out = mesh.worldVertices;
+    int o = 0;
+    for (int i = 0; i < vertexCount; ++i) {
+      // Local vertices lie on the plane, at (x, 0, z).
+      float x = vertexBuffer.get(i * COORDS_PER_VERTEX);
+      float z = vertexBuffer.get(i * COORDS_PER_VERTEX + 1);
+      out[o++] = m[0] * x + m[8] * z + m[12];
+      out[o++] = m[1] * x + m[9] * z + m[13];
+      out[o++] = m[2] * x + m[10] * z + m[14];
+      out[o++] = vertexBuffer.get(i * COORDS_PER_VERTEX + 2);
+      out[o++] = mesh.normal[0];
+      out[o++] = mesh.normal[1];
+      out[o++] = mesh.normal[2];
+      out[o++] = mesh.planeAngleUvMatrix[0];
+      out[o++] = mesh.planeAngleUvMatrix[1];
+      out[o++] = mesh.planeAngleUvMatrix[2];
+      out[o++] = mesh.planeAngleUvMatrix[3];
+    }
+    mesh.vertexCount = vertexCount;
+
+    // A strip of n indices has at most n-2 triangles.
+    int stripLength = indexBuffer.limit();
+    int maxTriangleIndices = Math.max(0, stripLength - 2) * 3;
+    if (mesh.triangleIndices.length < maxTriangleIndices) {
+      mesh.triangleIndices = new short[maxTriangleIndices * 2];
+    }
+    int count = 0;
+    for (int i = 0; i + 2 < stripLength; ++i) {
+      short a = indexBuffer.get(i);
+      short b = indexBuffer.get(i + 1);
+      short c = indexBuffer.get(i + 2);
+      if (a == b || b == c || a == c) {
+        continue; // Degenerate.
+      }
+      // Every other triangle of a strip has reversed winding.
+      mesh.triangleIndices[count++] = (i % 2 == 0) ? a : b;
+      mesh.triangleIndices[count++] = (i % 2 == 0) ? b : a;
+      mesh.triangleIndices[count++] = c;
+    }
+    mesh.triangleIndexCount = count;
+    batchVerticesDirty = true;
+  }
 
-    SortablePlane(float distance, Plane plane) {
-      this.distance = distance;
-      this.plane = plane;
+  private void evictPlane(Plane plane) {
+    PlaneMesh mesh = planeMeshes.remove(plane);
+    planeIndexMap.remove(plane);
+    if (mesh != null) {
+      int[] buffers = {mesh.vertexBufferId, mesh.indexBufferId};
+      GLES20.glDeleteBuffers(2, buffers, 0);
+      batchVerticesDirty = true;
     }
   }
 
+  /** Concatenates the world-space vertices of every cached plane into the batch vertex buffer. */
+  private void rebuildBatchVertices() {
+    int totalFloats = 0;
+    for (PlaneMesh mesh : planeMeshes.values()) {
+      totalFloats += mesh.vertexCount * BATCHED_FLOATS_PER_VERTEX;
+    }
+    if (batchVertexData.capacity() < totalFloats) {
+      int size = batchVertexData.capacity();
+      while (size < totalFloats) {
+        size *= 2;
+      }
+      batchVertexData =
+          ByteBuffer.allocateDirect(BYTES_PER_FLOAT * size)
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+    }
+    batchVertexData.clear();
+
+    int baseVertex = 0;
+    for (PlaneMesh mesh : planeMeshes.values()) {
+      if (baseVertex + mesh.vertexCount > MAX_BATCHED_VERTICES) {
+        Log.w(TAG, "Too many plane vertices to batch, skipping a plane.");
+        mesh.batchBaseVertex = -1;
+        continue;
+      }
+      mesh.batchBaseVertex = baseVertex;
+      batchVertexData.put(mesh.worldVertices, 0, mesh.vertexCount * BATCHED_FLOATS_PER_VERTEX);
+      baseVertex += mesh.vertexCount;
+    }
+    batchVertexData.flip();
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, batchBuffers[0]);
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER,
+        batchVertexData.limit() * BYTES_PER_FLOAT,
+        batchVertexData,
+        GLES20.GL_DYNAMIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    batchVerticesDirty = false;
+  }
+
+  /** Draws the selected planes, already sorted back to front, with a single draw call. */
+  private void drawPlanesBatched(float[] cameraView, float[] cameraPerspective) {
+    if (batchVerticesDirty) {
+      rebuildBatchVertices();
+    }
+
+    // The index buffer is rebuilt every frame, since it encodes the back to front order.
+    int indexCount = 0;
+    for (int i = 0; i < drawCount; ++i) {
+      PlaneMesh mesh = candidateMeshes[drawOrder[i]];
+      if (mesh.batchBaseVertex >= 0) {
+        indexCount += mesh.triangleIndexCount;
+      }
+    }
+    if (indexCount == 0) {
+      return;
+    }
+    if (batchIndexData.capacity() < indexCount) {
+      int size = batchIndexData.capacity();
+      while (size < indexCount) {
+        size *= 2;
+      }
+      batchIndexData =
+          ByteBuffer.allocateDirect(BYTES_PER_SHORT * size)
+              .order(ByteOrder.nativeOrder())
+              .asShortBuffer();
+    }
+    batchIndexData.clear();
+    for (int i = 0; i < drawCount; ++i) {
+      PlaneMesh mesh = candidateMeshes[drawOrder[i]];
+      if (mesh.batchBaseVertex < 0) {
+        continue;
+      }
+      for (int j = 0; j < mesh.triangleIndexCount; ++j) {
+        // Values above 32767 wrap around, but are read back as unsigned shorts.
+        batchIndexData.put((short) (mesh.batchBaseVertex + mesh.triangleIndices[j]));
+      }
+    }
+    batchIndexData.flip();
+
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+
+    GLES20.glUseProgram(batchedProgram);
+
+    // Attach the texture.
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+    GLES20.glUniform1i(batchedTextureUniform, 0);
+
+    GLES20.glUniform4fv(batchedGridControlUniform, 1, GRID_CONTROL, 0);
+    GLES20.glUniformMatrix4fv(batchedViewProjectionUniform, 1, false, viewProjectionMatrix, 0);
+
+    int stride = BYTES_PER_FLOAT * BATCHED_FLOATS_PER_VERTEX;
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, batchBuffers[0]);
+    GLES20.glVertexAttribPointer(
+        batchedPositionAlphaAttribute, 4, GLES20.GL_FLOAT, false, stride, 0);
+    GLES20.glVertexAttribPointer(
+        batchedNormalAttribute,
+        3,
+        GLES20.GL_FLOAT,
+        false,
+        stride,
+        BYTES_PER_FLOAT * BATCHED_NORMAL_OFFSET);
+    GLES20.glVertexAttribPointer(
+        batchedPlaneUvMatrixAttribute,
+        4,
+        GLES20.GL_FLOAT,
+        false,
+        stride,
+        BYTES_PER_FLOAT * BATCHED_UV_MATRIX_OFFSET);
+    GLES20.glEnableVertexAttribArray(batchedPositionAlphaAttribute);
+    GLES20.glEnableVertexAttribArray(batchedNormalAttribute);
+    GLES20.glEnableVertexAttribArray(batchedPlaneUvMatrixAttribute);
+
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, batchBuffers[1]);
+    GLES20.glBufferData(
+        GLES20.GL_ELEMENT_ARRAY_BUFFER,
+        indexCount * BYTES_PER_SHORT,
+        batchIndexData,
+        GLES20.GL_DYNAMIC_DRAW);
+
+    GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+
+    GLES20.glDisableVertexAttribArray(batchedPositionAlphaAttribute);
+    GLES20.glDisableVertexAttribArray(batchedNormalAttribute);
+    GLES20.glDisableVertexAttribArray(batchedPlaneUvMatrixAttribute);
+
+    ShaderUtil.checkGLError(TAG, "Drawing batched planes");
+  }
+
   /**
-   * Draws the collection of tracked planes, with closer planes hiding more distant ones.
+   * Draws the cached tracked planes, with closer planes hiding more distant ones.
    *
-   * @param allPlanes The collection of planes to draw.
    * @param cameraPose The pose of the camera, as returned by {@link Camera#getPose()}
    * @param cameraPerspective The projection matrix, as returned by {@link
    *     Camera#getProjectionMatrix(float[], int, float, float)}
+   * @see #updatePlanes(Collection)
    */
-  public void drawPlanes(Collection<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
-    // Planes must be sorted by distance from camera so that we draw closer planes first, and
-    // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
+  public void drawPlanes(Pose cameraPose, float[] cameraPerspective) {
+    float cameraX = cameraPose.tx();
+    float cameraY = cameraPose.ty();
+    float cameraZ = cameraPose.tz();
+    lastCameraX = cameraX;
+    lastCameraY = cameraY;
+    lastCameraZ = cameraZ;
+    // Focal length in pixels, used by the next updatePlanes() call to simplify boundaries.
+    focalLengthPixels = cameraPerspective[5] * viewportHeight * 0.5f;
 
-    for (Plane plane : allPlanes) {
-      if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
+    if (candidateMeshes.length < planeMeshes.size()) {
+      int size = planeMeshes.size() * 2;
+      candidateMeshes = new PlaneMesh[size];
+      candidateScores = new float[size];
+      candidateDistances = new float[size];
+      drawOrder = new int[size];
+    }
+    int candidateCount = 0;
+    for (PlaneMesh mesh : planeMeshes.values()) {
+      if (mesh.trackingState != TrackingState.TRACKING || mesh.indexCount == 0) {
         continue;
       }
 
-      float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
+      // Normal distance from the camera, using the cached center pose.
+      float dx = cameraX - mesh.modelMatrix[12];
+      float dy = cameraY - mesh.modelMatrix[13];
+      float dz = cameraZ - mesh.modelMatrix[14];
+      float distance = dx * mesh.normal[0] + dy * mesh.normal[1] + dz * mesh.normal[2];
       if (distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
-    }
-    Collections.sort(
-        sortedPlanes,
-        new Comparator<SortablePlane>() {
-          @Override
-          public int compare(SortablePlane a, SortablePlane b) {
-            return Float.compare(b.distance, a.distance);
-          }
-        });
+      // Planes are ranked by their approximate size on screen.
+      float rangeSquared =
+          Math.max(
+              dx * dx + dy * dy + dz * dz,
+              MIN_RELEVANCE_DISTANCE_M * MIN_RELEVANCE_DISTANCE_M);
+      candidateMeshes[candidateCount] = mesh;
+      candidateScores[candidateCount] = mesh.area / rangeSquared;
+      candidateDistances[candidateCount] = distance;
+      drawOrder[candidateCount] = candidateCount;
+      candidateCount++;
+    }
+
+    // Keep the most relevant planes, then sort them by distance from camera so that we draw
+    // closer planes first, and they occlude the farther planes.
+    drawCount = Math.min(candidateCount, maxDrawnPlanes);
+    if (drawCount < candidateCount) {
+      selectLargest(drawOrder, candidateScores, 0, candidateCount - 1, drawCount);
+    }
+    sortDescending(drawOrder, candidateDistances, 0, drawCount - 1);
 
-    float[] cameraView = new float[16];
     cameraPose.inverse().toMatrix(cameraView, 0);
 
     // Disable depth write.
@@ -325,57 +924,35 @@ public class PlaneRenderer {
     GLES20.glEnable(GLES20.GL_BLEND);
     GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 
-    // Set up the shader.
-    GLES20.glUseProgram(planeProgram);
-
-    // Attach the texture.
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-    GLES20.glUniform1i(textureUniform, 0);
+    if (batchingEnabled) {
+      drawPlanesBatched(cameraView, cameraPerspective);
+    } else {
+      // Set up the shader.
+      GLES20.glUseProgram(planeProgram);
 
-    // Shared fragment uniforms.
-    GLES20.glUniform4fv(gridControlUniform, 1, GRID_CONTROL, 0);
+      // Attach the texture.
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+      GLES20.glUniform1i(textureUniform, 0);
 
-    // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
+      // Shared fragment uniforms.
+      GLES20.glUniform4fv(gridControlUniform, 1, GRID_CONTROL, 0);
 
-    ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
+      // Enable vertex arrays
+      GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
+      ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
 
-      float[] normal = new float[3];
-      // Get transformed Y axis of plane's coordinate system.
-      plane.getCenterPose().getTransformedAxis(1, 1.0f, normal, 0);
-
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
-
-      // Get plane index. Keep a map to assign same indices to same planes.
-      Integer planeIndex = planeIndexMap.get(plane);
-      if (planeIndex == null) {
-        planeIndex = planeIndexMap.size();
-        planeIndexMap.put(plane, planeIndex);
+      for (int i = 0; i < drawCount; ++i) {
+        draw(cameraView, cameraPerspective, candidateMeshes[drawOrder[i]]);
       }
 
-      // Each plane will have its own angle offset from others, to make them easier to
-      // distinguish. Compute a 2x2 rotation matrix from the angle.
-      float angleRadians = planeIndex * 0.144f;
-      float uScale = DOTS_PER_METER;
-      float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
-      planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
-      planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
-      planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
-      planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
-      GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
-
-      draw(cameraView, cameraPerspective, normal);
+      GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
     }
 
     // Clean up the state we set
-    GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     GLES20.glDisable(GLES20.GL_BLEND);
     GLES20.glDepthMask(true);
@@ -383,6 +960,69 @@ public class PlaneRenderer {
     ShaderUtil.checkGLError(TAG, "Cleaning up after drawing planes");
   }
 
+  /**
+   * Partially orders {@code order[first..last]} so that its first {@code count} entries index the
+   * largest keys, in no particular order.
+   */
+  private static void selectLargest(int[] order, float[] keys, int first, int last, int count) {
+    int target = first + count - 1;
+    while (first < last) {
+      int pivot = partitionDescending(order, keys, first, last);
+      if (pivot == target) {
+        return;
+      } else if (pivot < target) {
+        first = pivot + 1;
+      } else {
+        last = pivot - 1;
+      }
+    }
+  }
+
+  /** Sorts {@code order[first..last]} so that the keys it indexes are in descending order. */
+  private static void sortDescending(int[] order, float[] keys, int first, int last) {
+    while (last - first > 8) {
+      int pivot = partitionDescending(order, keys, first, last);
+      // Recurse into the smaller half to bound the stack depth.
+      if (pivot - first < last - pivot) {
+        sortDescending(order, keys, first, pivot - 1);
+        first = pivot + 1;
+      } else {
+        sortDescending(order, keys, pivot + 1, last);
+        last = pivot - 1;
+      }
+    }
+    for (int i = first + 1; i <= last; ++i) {
+      int value = order[i];
+      int j = i - 1;
+      while (j >= first && keys[order[j]] < keys[value]) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = value;
+    }
+  }
+
+  /** Lomuto partition around the middle element, with larger keys first. */
+  private static int partitionDescending(int[] order, float[] keys, int first, int last) {
+    int middle = (first + last) >>> 1;
+    swap(order, middle, last);
+    float pivotKey = keys[order[last]];
+    int store = first;
+    for (int i = first; i < last; ++i) {
+      if (keys[order[i]] > pivotKey) {
+        swap(order, i, store++);
+      }
+    }
+    swap(order, store, last);
+    return store;
+  }
+
+  private static void swap(int[] array, int i, int j) {
+    int tmp = array[i];
+    array[i] = array[j];
+    array[j] = tmp;
+  }
+
   // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
   // parallel to plane's normal, for example plane's center pose or hit test pose.
   public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
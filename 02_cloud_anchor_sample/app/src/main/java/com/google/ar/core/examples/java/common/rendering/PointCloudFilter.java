@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.PointCloud;
+import com.google.ar.core.examples.java.common.utils.LongIntHashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Filters point clouds on a worker thread before they are uploaded by {@link PointCloudRenderer}.
+ *
+ * <p>Points below a confidence threshold are dropped, and the remaining points are downsampled to
+ * the most confident point per voxel, up to a maximum number of points. The GL thread copies each
+ * new point cloud with {@link #submit(PointCloud)}, and picks up the latest filtered result with
+ * {@link #pollFilteredPoints()}. Point clouds that arrive while the worker is busy replace the one
+ * waiting to be filtered, so the worker never falls behind.
+ */
+public class PointCloudFilter {
+  private static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
+  private static final int INITIAL_BUFFER_POINTS = 1000;
+  // One batch being filled, one waiting, one being filtered and one being drawn.
+  private static final int BATCH_COUNT = 4;
+
+  // Voxel coordinates are packed into 21 bits each.
+  private static final int VOXEL_COORDINATE_BITS = 21;
+  private static final long VOXEL_COORDINATE_MASK = (1L << VOXEL_COORDINATE_BITS) - 1;
+
+  /** The input and output of filtering a single point cloud. */
+  private static final class Batch {
+    FloatBuffer input = allocatePoints(INITIAL_BUFFER_POINTS);
+    FloatBuffer output = allocatePoints(INITIAL_BUFFER_POINTS);
+  }
+
+  private final float minConfidence;
+  private final float voxelSizeMeters;
+  private final int maxPoints;
+
+  private final ExecutorService worker = Executors.newSingleThreadExecutor();
+  // Only used on the worker thread.
+  private final LongIntHashMap voxelToPoint = new LongIntHashMap(INITIAL_BUFFER_POINTS);
+
+  private final Object lock = new Object();
+  // Guarded by lock.
+  private final ArrayDeque<Batch> freeBatches = new ArrayDeque<>();
+  private Batch pendingBatch;
+  private Batch filteredBatch;
+  private Batch drawnBatch;
+
+  private long lastSubmittedTimestamp;
+
+  /**
+   * Creates a filter.
+   *
+   * @param minConfidence Points with a lower confidence are dropped.
+   * @param voxelSizeMeters The edge length of the voxels points are downsampled to.
+   * @param maxPoints The maximum number of points in a filtered point cloud.
+   */
+  public PointCloudFilter(float minConfidence, float voxelSizeMeters, int maxPoints) {
+    this.minConfidence = minConfidence;
+    this.voxelSizeMeters = voxelSizeMeters;
+    this.maxPoints = maxPoints;
+    for (int i = 0; i < BATCH_COUNT; ++i) {
+      freeBatches.add(new Batch());
+    }
+  }
+
+  /**
+   * Copies the points of {@code cloud} and schedules them to be filtered. Repeated calls with the
+   * same point cloud will be ignored. The point cloud can be closed as soon as this returns.
+   */
+  public void submit(PointCloud cloud) {
+    if (cloud.getTimestamp() == lastSubmittedTimestamp) {
+      // Redundant call.
+      return;
+    }
+    lastSubmittedTimestamp = cloud.getTimestamp();
+
+    Batch batch;
+    synchronized (lock) {
+      batch = freeBatches.poll();
+      if (batch == null) {
+        // Drop the point cloud that is still waiting, in favor of this newer one.
+        batch = pendingBatch;
+        pendingBatch = null;
+      }
+    }
+    if (batch == null) {
+      return;
+    }
+
+    FloatBuffer points = cloud.getPoints();
+    if (batch.input.capacity() < points.remaining()) {
+      batch.input = allocatePoints(points.remaining() / FLOATS_PER_POINT * 2);
+    }
+    batch.input.clear();
+    batch.input.put(points.duplicate());
+    batch.input.flip();
+
+    synchronized (lock) {
+      if (pendingBatch != null) {
+        freeBatches.add(pendingBatch);
+      }
+      pendingBatch = batch;
+    }
+    worker.execute(this::filterPendingBatch);
+  }
+
+  /**
+   * Returns the latest filtered points that have not been polled yet, or null if there are none.
+   * The returned buffer stays valid until the next call that returns non-null.
+   */
+  @Nullable
+  public FloatBuffer pollFilteredPoints() {
+    synchronized (lock) {
+      if (filteredBatch == null) {
+        return null;
+      }
+      if (drawnBatch != null) {
+        freeBatches.add(drawnBatch);
+      }
+      drawnBatch = filteredBatch;
+      filteredBatch = null;
+      return drawnBatch.output;
+    }
+  }
+
+  /** Stops the worker thread. Batches that were not filtered yet are dropped. */
+  public void shutdown() {
+    worker.shutdownNow();
+  }
+
+  private void filterPendingBatch() {
+    Batch batch;
+    synchronized (lock) {
+      batch = pendingBatch;
+      pendingBatch = null;
+    }
+    if (batch == null) {
+      return;
+    }
+
+    filter(batch);
+
+    synchronized (lock) {
+      if (filteredBatch != null) {
+        freeBatches.add(filteredBatch);
+      }
+      filteredBatch = batch;
+    }
+  }
+
+  private void filter(Batch batch) {
+    FloatBuffer input = batch.input;
+    int inputPoints = input.remaining() / FLOATS_PER_POINT;
+    if (batch.output.capacity() < Math.min(inputPoints, maxPoints) * FLOATS_PER_POINT) {
+      batch.output = allocatePoints(Math.min(inputPoints * 2, maxPoints));
+    }
+    FloatBuffer output = batch.output;
+    output.clear();
+
+    float inverseVoxelSize = 1.0f / voxelSizeMeters;
+    voxelToPoint.clear();
+    int outputPoints = 0;
+    for (int i = 0; i < inputPoints; ++i) {
+      int offset = i * FLOATS_PER_POINT;
+      float confidence = input.get(offset + 3);
+      if (confidence < minConfidence) {
+        continue;
+      }
+      float x = input.get(offset);
+      float y = input.get(offset + 1);
+      float z = input.get(offset + 2);
+      long key =
+          packVoxel(
+              (int) Math.floor(x * inverseVoxelSize),
+              (int) Math.floor(y * inverseVoxelSize),
+              (int) Math.floor(z * inverseVoxelSize));
+
+      int existing = voxelToPoint.get(key, -1);
+      int target;
+      if (existing >= 0) {
+        // Keep the most confident point of each voxel.
+        if (output.get(existing * FLOATS_PER_POINT + 3) >= confidence) {
+          continue;
+        }
+        target = existing;
+      } else if (outputPoints < maxPoints) {
+        target = outputPoints++;
+        voxelToPoint.put(key, target);
+      } else {
+        continue;
+      }
+      output.put(target * FLOATS_PER_POINT, x);
+      output.put(target * FLOATS_PER_POINT + 1, y);
+      output.put(target * FLOATS_PER_POINT + 2, z);
+      output.put(target * FLOATS_PER_POINT + 3, confidence);
+    }
+    output.position(0);
+    output.limit(outputPoints * FLOATS_PER_POINT);
+  }
+
+  /** Packs signed voxel coordinates into a key. The sign bit is never set. */
+  private static long packVoxel(int x, int y, int z) {
+    return ((x & VOXEL_COORDINATE_MASK) << (2 * VOXEL_COORDINATE_BITS))
+        | ((y & VOXEL_COORDINATE_MASK) << VOXEL_COORDINATE_BITS)
+        | (z & VOXEL_COORDINATE_MASK);
+  }
+
+  private static FloatBuffer allocatePoints(int points) {
+    return ByteBuffer.allocateDirect(Math.max(points, 1) * FLOATS_PER_POINT * Float.SIZE / 8)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+}
@@ -16,11 +16,14 @@
 package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import com.google.ar.core.PointCloud;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 
 /** Renders a point cloud. */
 public class PointCloudRenderer {
@@ -35,10 +38,13 @@ public class PointCloudRenderer {
   private static final int BYTES_PER_POINT = BYTES_PER_FLOAT * FLOATS_PER_POINT;
   private static final int INITIAL_BUFFER_POINTS = 1000;
 
-  private int vbo;
-  private int vboSize;
+  // Rotates between several buffers so that an update never writes into the buffer the GPU is
+  // still drawing the previous point cloud from.
+  private final StreamingBuffer vbo = new StreamingBuffer(GLES20.GL_ARRAY_BUFFER);
 
   private int programName;
+  // The context the buffers and program were created in, since they can only be deleted there.
+  private EGLContext createdContext = EGL14.EGL_NO_CONTEXT;
   private int positionAttribute;
   private int modelViewProjectionUniform;
   private int colorUniform;
@@ -61,14 +67,10 @@ public class PointCloudRenderer {
   public void createOnGlThread(Context context) throws IOException {
     ShaderUtil.checkGLError(TAG, "before create");
 
-    int[] buffers = new int[1];
-    GLES20.glGenBuffers(1, buffers, 0);
-    vbo = buffers[0];
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
-
-    vboSize = INITIAL_BUFFER_POINTS * BYTES_PER_POINT;
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    // The surface may be created again on the same context.
+    release();
+    createdContext = EGL14.eglGetCurrentContext();
+    vbo.createOnGlThread(INITIAL_BUFFER_POINTS * BYTES_PER_POINT);
 
     ShaderUtil.checkGLError(TAG, "buffer alloc");
 
@@ -93,6 +95,21 @@ public class PointCloudRenderer {
     ShaderUtil.checkGLError(TAG, "program  params");
   }
 
+  /**
+   * Deletes the buffers, their fences and the program. Must be called on the OpenGL thread. If the
+   * context they were created in is gone, they are gone with it and are only forgotten.
+   */
+  public void release() {
+    if (programName != 0 && createdContext.equals(EGL14.eglGetCurrentContext())) {
+      vbo.release();
+      GLES20.glDeleteProgram(programName);
+    }
+    createdContext = EGL14.EGL_NO_CONTEXT;
+    programName = 0;
+    numPoints = 0;
+    lastTimestamp = 0;
+  }
+
   /**
    * Updates the OpenGL buffer contents to the provided point. Repeated calls with the same point
    * cloud will be ignored.
@@ -102,22 +119,22 @@ public class PointCloudRenderer {
       // Redundant call.
       return;
     }
-    ShaderUtil.checkGLError(TAG, "before update");
-
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
     lastTimestamp = cloud.getTimestamp();
+    update(cloud.getPoints());
+  }
 
-    // If the VBO is not large enough to fit the new point cloud, resize it.
-    numPoints = cloud.getPoints().remaining() / FLOATS_PER_POINT;
-    if (numPoints * BYTES_PER_POINT > vboSize) {
-      while (numPoints * BYTES_PER_POINT > vboSize) {
-        vboSize *= 2;
-      }
-      GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
-    }
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, cloud.getPoints());
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+  /**
+   * Updates the OpenGL buffer contents to the provided points, such as the output of {@link
+   * PointCloudFilter#pollFilteredPoints()}.
+   *
+   * @param points X,Y,Z,confidence values, from the position to the limit of the buffer.
+   */
+  public void update(FloatBuffer points) {
+    ShaderUtil.checkGLError(TAG, "before update");
+
+    // The streaming buffer grows as needed to fit the new point cloud.
+    numPoints = points.remaining() / FLOATS_PER_POINT;
+    vbo.update(points);
 
     ShaderUtil.checkGLError(TAG, "after update");
   }
@@ -138,7 +155,7 @@ public class PointCloudRenderer {
 
     GLES20.glUseProgram(programName);
     GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo.getBufferId());
     GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
     GLES20.glUniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
     GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
@@ -150,4 +167,12 @@ public class PointCloudRenderer {
 
     ShaderUtil.checkGLError(TAG, "Draw");
   }
+
+  /**
+   * Returns the number of point cloud updates written in place after their fence signaled. Always 0
+   * on OpenGL ES 2.0.
+   */
+  public long getAvoidedStallCount() {
+    return vbo.getAvoidedStallCount();
+  }
 }
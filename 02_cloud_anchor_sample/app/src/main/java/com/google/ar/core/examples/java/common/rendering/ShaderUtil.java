@@ -78,6 +78,33 @@ public final class ShaderUtil {
     return loadGLShader(tag, context, type, filename, emptyDefineValuesMap);
   }
 
+  /**
+   * Links a vertex and a fragment shader into a new OpenGL ES program.
+   *
+   * @param vertexShader The compiled vertex shader object handler.
+   * @param fragmentShader The compiled fragment shader object handler.
+   * @return The program object handler.
+   */
+  public static int linkGLProgram(String tag, int vertexShader, int fragmentShader) {
+    int program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    GLES20.glLinkProgram(program);
+
+    // Get the link status.
+    final int[] linkStatus = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+
+    // If the link failed, delete the program.
+    if (linkStatus[0] == 0) {
+      Log.e(tag, "Error linking program: " + GLES20.glGetProgramInfoLog(program));
+      GLES20.glDeleteProgram(program);
+      throw new RuntimeException("Error linking program.");
+    }
+
+    return program;
+  }
+
   /**
    * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
    *
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lists every {@code #define} permutation of the shaders used by the renderers, and precompiles
+ * them on a background thread that owns an EGL context shared with the rendering context.
+ *
+ * <p>Renderers ask for a variant with {@link #getProgram(String, String, Map)}, which returns 0
+ * until the variant has been linked. A renderer that wants to switch variants keeps drawing with
+ * its current program until the new one is available, so the switch never compiles on the GL
+ * thread. If {@link #isUnavailable(String, String, Map)} reports that a variant will never be
+ * linked, e.g. because the shared context could not be created, the renderer compiles it itself.
+ */
+public class ShaderVariantRegistry {
+  private static final String TAG = ShaderVariantRegistry.class.getSimpleName();
+
+  /** A single shader program permutation. */
+  private static final class Variant {
+    final String vertexShaderName;
+    final String fragmentShaderName;
+    final Map<String, Integer> defineValuesMap;
+
+    // Written by the warm-up thread once the program has finished linking, and reset when a new
+    // context is warmed up. Guarded by the registry for writes.
+    volatile int program;
+    // Set by the warm-up thread if the variant failed to compile or link for the current context.
+    volatile boolean failed;
+
+    Variant(
+        String vertexShaderName, String fragmentShaderName, Map<String, Integer> defineValuesMap) {
+      this.vertexShaderName = vertexShaderName;
+      this.fragmentShaderName = fragmentShaderName;
+      this.defineValuesMap = defineValuesMap;
+    }
+  }
+
+  private final Map<String, Variant> variants = new ConcurrentHashMap<>();
+  // Incremented for each context warmed up, so that a warm-up thread of a previous context does not
+  // publish its programs. Guarded by this.
+  private int generation;
+  // Whether a warm-up of the current context is running or has finished without failing as a
+  // whole. False until the first warm-up starts, since no variant is linked without one.
+  private volatile boolean warmUpAvailable;
+
+  /**
+   * Registers every permutation of the given {@code #define} values for a vertex and fragment
+   * shader pair.
+   *
+   * @param vertexShaderName The filename of the vertex shader asset.
+   * @param fragmentShaderName The filename of the fragment shader asset.
+   * @param defineValues The values each {@code #define} can take. An empty map registers the
+   *     shader pair without any additional {@code #define} values.
+   */
+  public void register(
+      String vertexShaderName, String fragmentShaderName, Map<String, int[]> defineValues) {
+    List<Map<String, Integer>> permutations = new ArrayList<>();
+    permutations.add(new TreeMap<>());
+    for (Map.Entry<String, int[]> entry : new TreeMap<>(defineValues).entrySet()) {
+      List<Map<String, Integer>> expanded = new ArrayList<>();
+      for (Map<String, Integer> permutation : permutations) {
+        for (int value : entry.getValue()) {
+          Map<String, Integer> next = new TreeMap<>(permutation);
+          next.put(entry.getKey(), value);
+          expanded.add(next);
+        }
+      }
+      permutations = expanded;
+    }
+
+    for (Map<String, Integer> defineValuesMap : permutations) {
+      String key = getKey(vertexShaderName, fragmentShaderName, defineValuesMap);
+      if (!variants.containsKey(key)) {
+        variants.put(key, new Variant(vertexShaderName, fragmentShaderName, defineValuesMap));
+      }
+    }
+  }
+
+  /**
+   * Returns the linked program for the given permutation, or 0 if the permutation is not
+   * registered or has not finished compiling yet.
+   */
+  public int getProgram(
+      String vertexShaderName, String fragmentShaderName, Map<String, Integer> defineValuesMap) {
+    Variant variant = variants.get(getKey(vertexShaderName, fragmentShaderName, defineValuesMap));
+    return variant == null ? 0 : variant.program;
+  }
+
+  /**
+   * Returns whether the given permutation will not be linked for the current context, because it
+   * is not registered, no warm-up is running, the warm-up failed, or the variant itself failed to
+   * compile. Renderers compile the program on their own in that case instead of waiting for it.
+   */
+  public boolean isUnavailable(
+      String vertexShaderName, String fragmentShaderName, Map<String, Integer> defineValuesMap) {
+    Variant variant = variants.get(getKey(vertexShaderName, fragmentShaderName, defineValuesMap));
+    if (variant == null) {
+      return true;
+    }
+    return variant.program == 0 && (variant.failed || !warmUpAvailable);
+  }
+
+  /**
+   * Starts compiling all registered permutations in the background. Must be called on the OpenGL
+   * thread, typically in {@code GLSurfaceView.Renderer.onSurfaceCreated}, since the background
+   * context is created to share objects with the context that is current on the calling thread.
+   * Programs still being compiled for a previous context are dropped.
+   *
+   * @param context Needed to access shader source.
+   */
+  public void warmUpOnGlThread(Context context) {
+    EGLDisplay display = EGL14.eglGetCurrentDisplay();
+    EGLContext sharedContext = EGL14.eglGetCurrentContext();
+    boolean hasContext = sharedContext != null && !sharedContext.equals(EGL14.EGL_NO_CONTEXT);
+
+    // Programs from a previous context are gone together with that context.
+    int warmUpGeneration;
+    synchronized (this) {
+      warmUpGeneration = ++generation;
+      for (Variant variant : variants.values()) {
+        variant.program = 0;
+        variant.failed = false;
+      }
+      warmUpAvailable = hasContext;
+    }
+    if (!hasContext) {
+      Log.w(TAG, "No current EGL context, shader variants will not be precompiled.");
+      return;
+    }
+
+    final int[] configId = new int[1];
+    EGL14.eglQueryContext(display, sharedContext, EGL14.EGL_CONFIG_ID, configId, 0);
+    final int[] clientVersion = new int[1];
+    EGL14.eglQueryContext(
+        display, sharedContext, EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion, 0);
+
+    List<Variant> pending = new ArrayList<>(variants.values());
+    Context appContext = context.getApplicationContext();
+    Runnable warmUp =
+        () ->
+            compileVariants(
+                appContext,
+                display,
+                sharedContext,
+                configId[0],
+                clientVersion[0],
+                pending,
+                warmUpGeneration);
+    new Thread(warmUp, TAG).start();
+  }
+
+  private void compileVariants(
+      Context context,
+      EGLDisplay display,
+      EGLContext sharedContext,
+      int configId,
+      int clientVersion,
+      List<Variant> pending,
+      int warmUpGeneration) {
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] numConfigs = new int[1];
+    int[] configAttributes = {EGL14.EGL_CONFIG_ID, configId, EGL14.EGL_NONE};
+    if (!EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, numConfigs, 0)
+        || numConfigs[0] == 0) {
+      Log.e(TAG, "Could not find the EGL config of the rendering context.");
+      failWarmUp(warmUpGeneration);
+      return;
+    }
+
+    int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion, EGL14.EGL_NONE};
+    EGLContext workerContext =
+        EGL14.eglCreateContext(display, configs[0], sharedContext, contextAttributes, 0);
+    if (workerContext == null || workerContext.equals(EGL14.EGL_NO_CONTEXT)) {
+      Log.e(TAG, "Could not create a shared EGL context: " + EGL14.eglGetError());
+      failWarmUp(warmUpGeneration);
+      return;
+    }
+
+    // The rendering config is usually a window config, in which case fall back to a surfaceless
+    // context.
+    int[] surfaceAttributes = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+    EGLSurface surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+    if (surface == null || surface.equals(EGL14.EGL_NO_SURFACE)) {
+      surface = EGL14.EGL_NO_SURFACE;
+    }
+
+    try {
+      if (!EGL14.eglMakeCurrent(display, surface, surface, workerContext)) {
+        Log.e(TAG, "Could not make the shared EGL context current: " + EGL14.eglGetError());
+        failWarmUp(warmUpGeneration);
+        return;
+      }
+
+      for (Variant variant : pending) {
+        if (!isCurrentGeneration(warmUpGeneration)) {
+          return; // A newer context is being warmed up.
+        }
+        try {
+          int vertexShader =
+              ShaderUtil.loadGLShader(
+                  TAG,
+                  context,
+                  GLES20.GL_VERTEX_SHADER,
+                  variant.vertexShaderName,
+                  variant.defineValuesMap);
+          int fragmentShader =
+              ShaderUtil.loadGLShader(
+                  TAG,
+                  context,
+                  GLES20.GL_FRAGMENT_SHADER,
+                  variant.fragmentShaderName,
+                  variant.defineValuesMap);
+          int program = ShaderUtil.linkGLProgram(TAG, vertexShader, fragmentShader);
+
+          // The program must be complete before another context is allowed to use it.
+          GLES20.glFinish();
+          if (!publish(variant, program, warmUpGeneration)) {
+            GLES20.glDeleteProgram(program);
+            return;
+          }
+        } catch (Exception e) {
+          Log.e(TAG, "Failed to precompile " + variant.fragmentShaderName, e);
+          fail(variant, warmUpGeneration);
+        }
+      }
+    } finally {
+      EGL14.eglMakeCurrent(
+          display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+      if (!EGL14.EGL_NO_SURFACE.equals(surface)) {
+        EGL14.eglDestroySurface(display, surface);
+      }
+      // Objects created here stay alive, since they belong to the shared context group.
+      EGL14.eglDestroyContext(display, workerContext);
+      EGL14.eglReleaseThread();
+    }
+  }
+
+  private synchronized boolean isCurrentGeneration(int warmUpGeneration) {
+    return warmUpGeneration == generation;
+  }
+
+  /** Publishes a linked program, unless a newer context is being warmed up. */
+  private synchronized boolean publish(Variant variant, int program, int warmUpGeneration) {
+    if (warmUpGeneration != generation) {
+      return false;
+    }
+    variant.program = program;
+    return true;
+  }
+
+  /** Reports that no variant will be linked, unless a newer context is being warmed up. */
+  private synchronized void failWarmUp(int warmUpGeneration) {
+    if (warmUpGeneration == generation) {
+      warmUpAvailable = false;
+    }
+  }
+
+  /** Reports that a variant failed to link, unless a newer context is being warmed up. */
+  private synchronized void fail(Variant variant, int warmUpGeneration) {
+    if (warmUpGeneration == generation) {
+      variant.failed = true;
+    }
+  }
+
+  private static String getKey(
+      String vertexShaderName, String fragmentShaderName, Map<String, Integer> defineValuesMap) {
+    return vertexShaderName + "|" + fragmentShaderName + "|" + new TreeMap<>(defineValuesMap);
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.GLSurfaceView;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A buffer object for data that is rewritten every frame, such as the point cloud.
+ *
+ * <p>Writing into a buffer that the GPU may still be reading from forces the driver to either
+ * copy the data or wait for the previous frame to finish, which is costly on tile-based GPUs. To
+ * avoid this, each {@link #update} call writes into the next of several buffers that are used in
+ * rotation.
+ *
+ * <ul>
+ *   <li>On OpenGL ES 3.0, every buffer is guarded by a fence. When the fence of the next buffer has
+ *       signaled, the buffer is mapped with {@code GL_MAP_UNSYNCHRONIZED_BIT} and written in place.
+ *       Otherwise its storage is orphaned and the map invalidates the whole buffer.
+ *   <li>On OpenGL ES 2.0, the storage of the next buffer is orphaned with {@code glBufferData}
+ *       before it is written, so the driver can hand out fresh memory.
+ * </ul>
+ */
+public class StreamingBuffer {
+  private static final String TAG = StreamingBuffer.class.getSimpleName();
+
+  private static final int DEFAULT_RING_SIZE = 3;
+
+  private final int target;
+  private final int[] bufferIds;
+  private final int[] bufferSizes;
+  // Fences are only used on OpenGL ES 3.0, 0 means that no fence is pending.
+  private final long[] fences;
+
+  private boolean useMapBufferRange;
+  private int current = -1;
+  private int size;
+
+  private long updateCount;
+  private long avoidedStallCount;
+  private long orphanCount;
+
+  /** Creates a streaming buffer that rotates between the default number of buffers. */
+  public StreamingBuffer(int target) {
+    this(target, DEFAULT_RING_SIZE);
+  }
+
+  /**
+   * Creates a streaming buffer.
+   *
+   * @param target The buffer target, e.g. {@link GLES20#GL_ARRAY_BUFFER}.
+   * @param ringSize The number of buffers used in rotation. Should be at least the number of
+   *     frames the GPU may be behind the CPU.
+   */
+  public StreamingBuffer(int target, int ringSize) {
+    this.target = target;
+    bufferIds = new int[ringSize];
+    bufferSizes = new int[ringSize];
+    fences = new long[ringSize];
+  }
+
+  /**
+   * Allocates the buffers. Must be called on the OpenGL thread, typically in {@link
+   * GLSurfaceView.Renderer#onSurfaceCreated(GL10, EGLConfig)}.
+   *
+   * @param initialSizeBytes The initial size of each buffer. Buffers grow as needed.
+   */
+  public void createOnGlThread(int initialSizeBytes) {
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    useMapBufferRange = version != null && !version.startsWith("OpenGL ES 2.");
+
+    GLES20.glGenBuffers(bufferIds.length, bufferIds, 0);
+    for (int i = 0; i < bufferIds.length; ++i) {
+      GLES20.glBindBuffer(target, bufferIds[i]);
+      GLES20.glBufferData(target, initialSizeBytes, null, GLES20.GL_STREAM_DRAW);
+      bufferSizes[i] = initialSizeBytes;
+      fences[i] = 0;
+    }
+    GLES20.glBindBuffer(target, 0);
+    current = -1;
+    size = 0;
+
+    ShaderUtil.checkGLError(TAG, "Streaming buffer alloc");
+  }
+
+  /**
+   * Writes {@code data}, from its position to its limit, into the next buffer of the ring, which
+   * becomes the one returned by {@link #getBufferId()}. The position of {@code data} is left
+   * unchanged. Must be called on the OpenGL thread, after all draw calls that used the previous
+   * contents have been issued.
+   */
+  public void update(FloatBuffer data) {
+    int sizeBytes = data.remaining() * Float.SIZE / 8;
+    int slot = beginUpdate(sizeBytes);
+    ByteBuffer mapped = map(slot, sizeBytes);
+    if (mapped != null) {
+      mapped.order(ByteOrder.nativeOrder()).asFloatBuffer().put(data.duplicate());
+      endMap();
+    } else {
+      GLES20.glBufferSubData(target, 0, sizeBytes, data);
+    }
+    endUpdate(sizeBytes);
+  }
+
+  /** Overload of {@link #update(FloatBuffer)} for byte data. */
+  public void update(ByteBuffer data) {
+    int sizeBytes = data.remaining();
+    int slot = beginUpdate(sizeBytes);
+    ByteBuffer mapped = map(slot, sizeBytes);
+    if (mapped != null) {
+      mapped.put(data.duplicate());
+      endMap();
+    } else {
+      GLES20.glBufferSubData(target, 0, sizeBytes, data);
+    }
+    endUpdate(sizeBytes);
+  }
+
+  /** Returns the buffer holding the data of the last {@link #update} call. */
+  public int getBufferId() {
+    return current < 0 ? bufferIds[0] : bufferIds[current];
+  }
+
+  /** Returns the size in bytes of the data of the last {@link #update} call. */
+  public int getSize() {
+    return size;
+  }
+
+  /** Returns the number of {@link #update} calls so far. */
+  public long getUpdateCount() {
+    return updateCount;
+  }
+
+  /**
+   * Returns the number of updates that wrote in place into a buffer whose fence had already
+   * signaled. Always 0 on OpenGL ES 2.0, where there is no fence to tell whether a stall was
+   * possible.
+   */
+  public long getAvoidedStallCount() {
+    return avoidedStallCount;
+  }
+
+  /** Returns the number of updates that had to orphan the storage of their buffer. */
+  public long getOrphanCount() {
+    return orphanCount;
+  }
+
+  /** Deletes the buffers and pending fences. Must be called on the OpenGL thread. */
+  public void release() {
+    for (int i = 0; i < fences.length; ++i) {
+      if (fences[i] != 0) {
+        GLES30.glDeleteSync(fences[i]);
+        fences[i] = 0;
+      }
+    }
+    GLES20.glDeleteBuffers(bufferIds.length, bufferIds, 0);
+  }
+
+  /** Fences the buffer in use so far, then binds the next buffer of the ring for writing. */
+  private int beginUpdate(int sizeBytes) {
+    if (useMapBufferRange && current >= 0) {
+      // Every draw from the current buffer has been issued by now.
+      if (fences[current] != 0) {
+        GLES30.glDeleteSync(fences[current]);
+      }
+      fences[current] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    int slot = (current + 1) % bufferIds.length;
+    GLES20.glBindBuffer(target, bufferIds[slot]);
+    if (sizeBytes > bufferSizes[slot]) {
+      int newSize = Math.max(bufferSizes[slot], 1);
+      while (newSize < sizeBytes) {
+        newSize *= 2;
+      }
+      GLES20.glBufferData(target, newSize, null, GLES20.GL_STREAM_DRAW);
+      bufferSizes[slot] = newSize;
+      if (fences[slot] != 0) {
+        // The new storage is not in use by the GPU.
+        GLES30.glDeleteSync(fences[slot]);
+        fences[slot] = 0;
+      }
+    } else if (!useMapBufferRange) {
+      // Orphan the old storage, the previous contents are not needed.
+      GLES20.glBufferData(target, bufferSizes[slot], null, GLES20.GL_STREAM_DRAW);
+      orphanCount++;
+    }
+    return slot;
+  }
+
+  /**
+   * Maps the bound buffer for writing. Returns null on OpenGL ES 2.0, in which case the caller
+   * uploads with {@code glBufferSubData} instead.
+   */
+  private ByteBuffer map(int slot, int sizeBytes) {
+    if (!useMapBufferRange || sizeBytes == 0) {
+      return null;
+    }
+    int access = GLES30.GL_MAP_WRITE_BIT;
+    long fence = fences[slot];
+    if (fence == 0) {
+      // Never drawn from, or just reallocated.
+      access |= GLES30.GL_MAP_UNSYNCHRONIZED_BIT;
+    } else {
+      int status = GLES30.glClientWaitSync(fence, 0, 0);
+      GLES30.glDeleteSync(fence);
+      fences[slot] = 0;
+      if (status == GLES30.GL_ALREADY_SIGNALED || status == GLES30.GL_CONDITION_SATISFIED) {
+        access |= GLES30.GL_MAP_UNSYNCHRONIZED_BIT;
+        avoidedStallCount++;
+      } else {
+        // The GPU is still reading, let the driver hand out fresh storage instead of waiting.
+        access |= GLES30.GL_MAP_INVALIDATE_BUFFER_BIT;
+        orphanCount++;
+      }
+    }
+    Buffer mapped = GLES30.glMapBufferRange(target, 0, sizeBytes, access);
+    return mapped instanceof ByteBuffer ? (ByteBuffer) mapped : null;
+  }
+
+  private void endMap() {
+    GLES30.glUnmapBuffer(target);
+  }
+
+  private void endUpdate(int sizeBytes) {
+    GLES20.glBindBuffer(target, 0);
+    current = (current + 1) % bufferIds.length;
+    size = sizeBytes;
+    updateCount++;
+    ShaderUtil.checkGLError(TAG, "Streaming buffer update");
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.util.Arrays;
+
+/**
+ * The triangles of a model, kept on the CPU to intersect rays with, e.g. to pick objects. Holds no
+ * OpenGL resources.
+ */
+public class TriangleMesh {
+  private static final int COORDS_PER_VERTEX = 3;
+
+  private final float[] vertices;
+  private final int[] indices;
+  // Min x, y, z followed by max x, y, z.
+  private final float[] bounds = new float[2 * COORDS_PER_VERTEX];
+
+  /**
+   * Creates a mesh.
+   *
+   * @param vertices The vertex positions, x, y, z for each vertex.
+   * @param indices The vertex indices of the triangles, three per triangle.
+   */
+  public TriangleMesh(float[] vertices, int[] indices) {
+    this.vertices = vertices;
+    this.indices = indices;
+    computeBounds();
+  }
+
+  /** Returns the number of triangles. */
+  public int getTriangleCount() {
+    return indices.length / 3;
+  }
+
+  /** Copies the axis-aligned bounds, as min x, y, z followed by max x, y, z. */
+  public void getBounds(float[] outBounds, int offset) {
+    System.arraycopy(bounds, 0, outBounds, offset, bounds.length);
+  }
+
+  /**
+   * Intersects a ray with the bounds of the mesh. The ray need not be normalized.
+   *
+   * @return The ray parameter at which the ray enters the bounds, 0 if it starts inside them, or
+   *     -1 if it misses them before {@code maxT}.
+   */
+  public float intersectBounds(float[] origin, float[] direction, float maxT) {
+    float tMin = 0;
+    float tMax = maxT;
+    for (int axis = 0; axis < COORDS_PER_VERTEX; ++axis) {
+      float min = bounds[axis];
+      float max = bounds[axis + COORDS_PER_VERTEX];
+      if (direction[axis] == 0) {
+        if (origin[axis] < min || origin[axis] > max) {
+          return -1;
+        }
+        continue;
+      }
+      float inverse = 1.0f / direction[axis];
+      float t1 = (min - origin[axis]) * inverse;
+      float t2 = (max - origin[axis]) * inverse;
+      tMin = Math.max(tMin, Math.min(t1, t2));
+      tMax = Math.min(tMax, Math.max(t1, t2));
+      if (tMin > tMax) {
+        return -1;
+      }
+    }
+    return tMin < maxT ? tMin : -1;
+  }
+
+  /**
+   * Intersects a ray with the triangles of the mesh. The ray need not be normalized. The
+   * triangles are only visited if the ray hits the bounds before {@code maxT}.
+   *
+   * @return The ray parameter of the nearest hit closer than {@code maxT}, or -1 if there is none.
+   */
+  public float intersectRay(float[] origin, float[] direction, float maxT) {
+    if (intersectBounds(origin, direction, maxT) < 0) {
+      return -1;
+    }
+    float nearestT = -1;
+    for (int i = 0; i + 2 < indices.length; i += 3) {
+      float t = intersectTriangle(origin, direction, i, maxT);
+      if (t >= 0) {
+        nearestT = t;
+        maxT = t;
+      }
+    }
+    return nearestT;
+  }
+
+  /** Moller-Trumbore ray-triangle intersection, for both faces of the triangle. */
+  private float intersectTriangle(float[] origin, float[] direction, int firstIndex, float maxT) {
+    int v0 = indices[firstIndex] * COORDS_PER_VERTEX;
+    int v1 = indices[firstIndex + 1] * COORDS_PER_VERTEX;
+    int v2 = indices[firstIndex + 2] * COORDS_PER_VERTEX;
+    float e1x = vertices[v1] - vertices[v0];
+    float e1y = vertices[v1 + 1] - vertices[v0 + 1];
+    float e1z = vertices[v1 + 2] - vertices[v0 + 2];
+    float e2x = vertices[v2] - vertices[v0];
+    float e2y = vertices[v2 + 1] - vertices[v0 + 1];
+    float e2z = vertices[v2 + 2] - vertices[v0 + 2];
+
+    float px = direction[1] * e2z - direction[2] * e2y;
+    float py = direction[2] * e2x - direction[0] * e2z;
+    float pz = direction[0] * e2y - direction[1] * e2x;
+    float determinant = e1x * px + e1y * py + e1z * pz;
+    if (Math.abs(determinant) < 1e-12f) {
+      return -1; // The ray is parallel to the triangle.
+    }
+    float inverseDeterminant = 1.0f / determinant;
+
+    float sx = origin[0] - vertices[v0];
+    float sy = origin[1] - vertices[v0 + 1];
+    float sz = origin[2] - vertices[v0 + 2];
+    float u = (sx * px + sy * py + sz * pz) * inverseDeterminant;
+    if (u < 0 || u > 1) {
+      return -1;
+    }
+
+    float qx = sy * e1z - sz * e1y;
+    float qy = sz * e1x - sx * e1z;
+    float qz = sx * e1y - sy * e1x;
+    float v = (direction[0] * qx + direction[1] * qy + direction[2] * qz) * inverseDeterminant;
+    if (v < 0 || u + v > 1) {
+      return -1;
+    }
+
+    float t = (e2x * qx + e2y * qy + e2z * qz) * inverseDeterminant;
+    return t >= 0 && t < maxT ? t : -1;
+  }
+
+  private void computeBounds() {
+    if (vertices.length < COORDS_PER_VERTEX) {
+      Arrays.fill(bounds, 0);
+      return;
+    }
+    for (int axis = 0; axis < COORDS_PER_VERTEX; ++axis) {
+      bounds[axis] = Float.POSITIVE_INFINITY;
+      bounds[axis + COORDS_PER_VERTEX] = Float.NEGATIVE_INFINITY;
+    }
+    for (int i = 0; i + COORDS_PER_VERTEX <= vertices.length; i += COORDS_PER_VERTEX) {
+      for (int axis = 0; axis < COORDS_PER_VERTEX; ++axis) {
+        float value = vertices[i + axis];
+        bounds[axis] = Math.min(bounds[axis], value);
+        bounds[axis + COORDS_PER_VERTEX] = Math.max(bounds[axis + COORDS_PER_VERTEX], value);
+      }
+    }
+  }
+}
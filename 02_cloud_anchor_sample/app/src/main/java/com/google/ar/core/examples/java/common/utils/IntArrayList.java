@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.utils;
+
+import java.util.Arrays;
+
+/** A growable list of {@code int} values that does not box. Not thread safe. */
+public class IntArrayList {
+  private int[] values;
+  private int size;
+
+  /** Creates a list that holds {@code initialCapacity} values without growing. */
+  public IntArrayList(int initialCapacity) {
+    values = new int[Math.max(1, initialCapacity)];
+  }
+
+  /** Returns the number of values. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the value at {@code index}. */
+  public int get(int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " out of " + size);
+    }
+    return values[index];
+  }
+
+  /** Appends a value. */
+  public void add(int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  /** Removes all values, keeping the current capacity. */
+  public void clear() {
+    size = 0;
+  }
+}
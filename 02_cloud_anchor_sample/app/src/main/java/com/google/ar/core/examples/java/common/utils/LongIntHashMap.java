@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from {@code long} keys to {@code int} values that does not box or allocate per entry.
+ *
+ * <p>Uses open addressing with linear probing. {@link #FREE_KEY} marks empty slots and cannot be
+ * used as a key. Not thread safe.
+ */
+public class LongIntHashMap {
+  /** The key reserved for empty slots. */
+  public static final long FREE_KEY = Long.MIN_VALUE;
+
+  private static final float MAX_LOAD_FACTOR = 0.5f;
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int size;
+
+  /** Creates a map that holds {@code expectedSize} entries without growing. */
+  public LongIntHashMap(int expectedSize) {
+    int minCapacity = Math.max(4, (int) (expectedSize / MAX_LOAD_FACTOR));
+    // Rounds up to a power of two, so that slots can be found with a mask.
+    allocate(Integer.highestOneBit(minCapacity - 1) << 1);
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the value for {@code key}, or {@code missingValue} if there is none. */
+  public int get(long key, int missingValue) {
+    int slot = findSlot(key);
+    return keys[slot] == FREE_KEY ? missingValue : values[slot];
+  }
+
+  /** Returns whether the map has a value for {@code key}. */
+  public boolean containsKey(long key) {
+    return keys[findSlot(key)] != FREE_KEY;
+  }
+
+  /**
+   * Associates {@code value} with {@code key}.
+   *
+   * @throws IllegalArgumentException if {@code key} is {@link #FREE_KEY}.
+   */
+  public void put(long key, int value) {
+    if (key == FREE_KEY) {
+      throw new IllegalArgumentException("The free key cannot be stored.");
+    }
+    int slot = findSlot(key);
+    if (keys[slot] == FREE_KEY) {
+      if (size + 1 > keys.length * MAX_LOAD_FACTOR) {
+        rehash(keys.length * 2);
+        slot = findSlot(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    values[slot] = value;
+  }
+
+  /**
+   * Removes the value for {@code key}, and returns it or {@code missingValue} if there was none.
+   */
+  public int remove(long key, int missingValue) {
+    int slot = findSlot(key);
+    if (keys[slot] == FREE_KEY) {
+      return missingValue;
+    }
+    int removed = values[slot];
+
+    // Shift back the entries that follow in the probe sequence, so that lookups never need
+    // tombstones.
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != FREE_KEY) {
+      int home = hash(keys[next]) & mask;
+      // Move the entry unless its home slot lies cyclically in (hole, next].
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = FREE_KEY;
+    size--;
+    return removed;
+  }
+
+  /** Removes all entries, keeping the current capacity. */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, FREE_KEY);
+      size = 0;
+    }
+  }
+
+  /** Returns the slot holding {@code key}, or the free slot where it would be inserted. */
+  private int findSlot(long key) {
+    int slot = hash(key) & mask;
+    while (keys[slot] != FREE_KEY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != FREE_KEY) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, FREE_KEY);
+    mask = capacity - 1;
+  }
+
+  private static int hash(long key) {
+    // Mixes the high bits into the low bits, since packed coordinates differ mostly in the middle.
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from object keys to {@code int} values that does not box or allocate per entry.
+ *
+ * <p>Keys are compared with {@link Object#equals(Object)}, so that e.g. the anchors reported by
+ * ARCore, which are new wrappers of the same native anchors, find their entries. Uses open
+ * addressing with linear probing. Null keys are not allowed. Not thread safe.
+ */
+public class ObjectIntHashMap<K> {
+  private static final float MAX_LOAD_FACTOR = 0.5f;
+
+  private Object[] keys;
+  private int[] values;
+  private int mask;
+  private int size;
+
+  /** Creates a map that holds {@code expectedSize} entries without growing. */
+  public ObjectIntHashMap(int expectedSize) {
+    int minCapacity = Math.max(4, (int) (expectedSize / MAX_LOAD_FACTOR));
+    // Rounds up to a power of two, so that slots can be found with a mask.
+    allocate(Integer.highestOneBit(minCapacity - 1) << 1);
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the value for {@code key}, or {@code missingValue} if there is none. */
+  public int get(K key, int missingValue) {
+    int slot = findSlot(key);
+    return keys[slot] == null ? missingValue : values[slot];
+  }
+
+  /** Returns whether the map has a value for {@code key}. */
+  public boolean containsKey(K key) {
+    return keys[findSlot(key)] != null;
+  }
+
+  /**
+   * Associates {@code value} with {@code key}.
+   *
+   * @throws NullPointerException if {@code key} is null.
+   */
+  public void put(K key, int value) {
+    if (key == null) {
+      throw new NullPointerException("Null keys cannot be stored.");
+    }
+    int slot = findSlot(key);
+    if (keys[slot] == null) {
+      if (size + 1 > keys.length * MAX_LOAD_FACTOR) {
+        rehash(keys.length * 2);
+        slot = findSlot(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    values[slot] = value;
+  }
+
+  /**
+   * Removes the value for {@code key}, and returns it or {@code missingValue} if there was none.
+   */
+  public int remove(K key, int missingValue) {
+    int slot = findSlot(key);
+    if (keys[slot] == null) {
+      return missingValue;
+    }
+    int removed = values[slot];
+
+    // Shift back the entries that follow in the probe sequence, so that lookups never need
+    // tombstones.
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != null) {
+      int home = hash(keys[next]) & mask;
+      // Move the entry unless its home slot lies cyclically in (hole, next].
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = null;
+    size--;
+    return removed;
+  }
+
+  /** Removes all entries, keeping the current capacity. */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, null);
+      size = 0;
+    }
+  }
+
+  /** Returns the slot holding {@code key}, or the free slot where it would be inserted. */
+  private int findSlot(Object key) {
+    int slot = hash(key) & mask;
+    while (keys[slot] != null && !keys[slot].equals(key)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    Object[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != null) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new Object[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  private static int hash(Object key) {
+    // Spreads the bits of hash codes that differ mostly in the high bits, e.g. native pointers.
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests {@link CloudAnchorManager} against a {@link SimulatedCloudAnchorService}, and measures it
+ * with 10,000 hosts and resolves.
+ */
+public class CloudAnchorManagerTest {
+  private static final long FRAME_NANOS = 16_666_667L;
+  private static final long SEED = 42;
+  private static final int WARM_UP_OPERATIONS = 2000;
+  private static final int MEASURED_OPERATIONS = 10000;
+  // Started in bursts, so that nearly all of them are pending at once.
+  private static final int STARTS_PER_FRAME = 500;
+  // Ten minutes at 60 Hz, far more than the longest retry backoff.
+  private static final int MAX_FRAMES = 36000;
+  // A frame at 60 Hz lasts 16.7 ms, so polling must only take a small part of it.
+  private static final double MAX_MEAN_FRAME_MS = 1.0;
+
+  /** A ticker that only moves when advanced. */
+  private static final class ManualTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long deltaNanos) {
+      nanos += deltaNanos;
+    }
+  }
+
+  private final ManualTicker ticker = new ManualTicker();
+  private final SimulatedCloudAnchorService service =
+      new SimulatedCloudAnchorService(ticker, new Random(SEED));
+  private final CloudAnchorManager manager = newManager(ticker, service);
+  private final Anchor localAnchor = mock(Anchor.class);
+
+  @Test
+  public void host_completesWithSimulatedOutcome() {
+    service.setHostLatency(SimulatedCloudAnchorService.fixedLatency(1000));
+
+    CloudAnchorManager.CloudAnchorFuture future = manager.hostCloudAnchor(localAnchor);
+    runFrames(manager, 50);
+    assertFalse(future.isDone());
+    runUntilDone(manager);
+
+    CloudAnchorManager.CloudAnchorResult result = Futures.getUnchecked(future);
+    assertEquals(CloudAnchorState.SUCCESS, result.cloudState);
+    assertNotNull(result.cloudAnchorId);
+    assertNull(result.anchor);
+    assertEquals(0, service.getOperationCount());
+  }
+
+  @Test
+  public void resolve_retriesTransientErrors() {
+    service.setResolveLatency(SimulatedCloudAnchorService.fixedLatency(100));
+    service.setResolveFailureRate(CloudAnchorState.ERROR_INTERNAL, 1);
+
+    CloudAnchorManager.CloudAnchorFuture future = manager.resolveCloudAnchor("room-root");
+    runUntilDone(manager);
+
+    CloudAnchorManager.CloudAnchorResult result = Futures.getUnchecked(future);
+    assertEquals(CloudAnchorState.ERROR_INTERNAL, result.cloudState);
+    assertEquals("room-root", result.cloudAnchorId);
+    // The first attempt and four retries.
+    assertEquals(5, service.getResolveCount());
+    assertEquals(0, service.getOperationCount());
+  }
+
+  @Test
+  public void resolve_doesNotRetryPermanentErrors() {
+    service.setResolveLatency(SimulatedCloudAnchorService.fixedLatency(100));
+    service.setResolveFailureRate(CloudAnchorState.ERROR_CLOUD_ID_NOT_FOUND, 1);
+
+    CloudAnchorManager.CloudAnchorFuture future = manager.resolveCloudAnchor("room-root");
+    runUntilDone(manager);
+
+    assertEquals(
+        CloudAnchorState.ERROR_CLOUD_ID_NOT_FOUND, Futures.getUnchecked(future).cloudState);
+    assertEquals(1, service.getResolveCount());
+  }
+
+  @Test
+  public void cancel_releasesOperation() {
+    CloudAnchorManager.CloudAnchorFuture future = manager.resolveCloudAnchor("room-root");
+    runFrames(manager, 10);
+
+    future.cancel(false);
+
+    assertEquals(0, manager.getPendingCount());
+    assertEquals(0, service.getOperationCount());
+  }
+
+  @Test
+  public void hostAndResolve10000Operations_measuresThroughputFrameOverheadAndMemory() {
+    runLoad(WARM_UP_OPERATIONS, false);
+    runLoad(MEASURED_OPERATIONS, true);
+  }
+
+  /** Hosts and resolves {@code operationCount} anchors, half each, until all have completed. */
+  private static void runLoad(int operationCount, boolean report) {
+    ManualTicker ticker = new ManualTicker();
+    SimulatedCloudAnchorService service =
+        new SimulatedCloudAnchorService(ticker, new Random(SEED));
+    service.setHostFailureRate(CloudAnchorState.ERROR_HOSTING_SERVICE_UNAVAILABLE, 0.05f);
+    service.setResolveFailureRate(CloudAnchorState.ERROR_INTERNAL, 0.05f);
+    service.setResolveFailureRate(CloudAnchorState.ERROR_RESOURCE_EXHAUSTED, 0.02f);
+    service.setResolveFailureRate(CloudAnchorState.ERROR_CLOUD_ID_NOT_FOUND, 0.01f);
+    CloudAnchorManager manager = newManager(ticker, service);
+    Anchor localAnchor = mock(Anchor.class);
+    int[] outcomes = new int[2]; // Successes, then failures.
+    CloudAnchorManager.CloudAnchorHostListener hostListener =
+        result -> outcomes[result.cloudState.isError() ? 1 : 0]++;
+    CloudAnchorManager.CloudAnchorResolveListener resolveListener =
+        new CloudAnchorManager.CloudAnchorResolveListener() {
+          @Override
+          public void onCloudTaskComplete(
+              CloudAnchorManager.CloudAnchorResult result, int objectId) {
+            outcomes[result.cloudState.isError() ? 1 : 0]++;
+          }
+
+          @Override
+          public void onShowResolveMessage() {}
+        };
+
+    long[] frameNanos = new long[MAX_FRAMES];
+    long baselineBytes = usedMemory();
+    long startNanos = 0;
+    int frames = 0;
+    int started = 0;
+    int peakPending = 0;
+    long peakBytes = 0;
+    while (started < operationCount || manager.getPendingCount() > 0) {
+      assertTrue("Did not complete", frames < MAX_FRAMES);
+      long start = System.nanoTime();
+      for (int i = 0; i < STARTS_PER_FRAME && started < operationCount; ++i, ++started) {
+        if (started % 2 == 0) {
+          manager.hostCloudAnchor(localAnchor, hostListener);
+        } else {
+          manager.resolveCloudAnchor("anchor-" + started, started, resolveListener);
+        }
+      }
+      startNanos += System.nanoTime() - start;
+      if (started == operationCount && peakPending == 0) {
+        // Measured once the last operations were started, when the most are pending.
+        peakPending = manager.getPendingCount();
+        peakBytes = usedMemory();
+      }
+
+      ticker.advance(FRAME_NANOS);
+      start = System.nanoTime();
+      manager.onUpdate();
+      frameNanos[frames++] = System.nanoTime() - start;
+    }
+    long retainedBytes = usedMemory();
+
+    assertEquals(operationCount, outcomes[0] + outcomes[1]);
+    assertEquals(0, service.getOperationCount());
+    long[] sortedFrameNanos = Arrays.copyOf(frameNanos, frames);
+    Arrays.sort(sortedFrameNanos);
+    long updateNanos = Arrays.stream(sortedFrameNanos).sum();
+    double meanFrameMs = updateNanos / 1e6 / frames;
+    if (!report) {
+      return;
+    }
+    System.out.printf(
+        "CloudAnchorManager: %d operations (%d hosts, %d resolves with retries), %d failed,"
+            + " %.1f simulated s%n",
+        operationCount,
+        service.getHostCount(),
+        service.getResolveCount(),
+        outcomes[1],
+        frames * FRAME_NANOS / 1e9);
+    System.out.printf(
+        "  throughput %.0f operations/s of CPU time, %.2f us per start%n",
+        operationCount / ((startNanos + updateNanos) / 1e9),
+        startNanos / 1e3 / operationCount);
+    System.out.printf(
+        "  onUpdate() over %d frames: mean %.4f ms, p99 %.4f ms, max %.4f ms%n",
+        frames,
+        meanFrameMs,
+        sortedFrameNanos[frames * 99 / 100] / 1e6,
+        sortedFrameNanos[frames - 1] / 1e6);
+    System.out.printf(
+        "  heap: %d bytes per pending operation at %d pending, %d bytes retained after%n",
+        peakPending > 0 ? (peakBytes - baselineBytes) / peakPending : 0,
+        peakPending,
+        retainedBytes - baselineBytes);
+    assertTrue("Mean onUpdate() took " + meanFrameMs + " ms", meanFrameMs < MAX_MEAN_FRAME_MS);
+  }
+
+  private static CloudAnchorManager newManager(Ticker ticker, CloudAnchorService service) {
+    CloudAnchorManager manager =
+        new CloudAnchorManager(new AnchorRegistry(), Runnable::run, ticker, new Random(SEED));
+    manager.setService(service);
+    return manager;
+  }
+
+  private void runFrames(CloudAnchorManager manager, int frameCount) {
+    for (int frame = 0; frame < frameCount; ++frame) {
+      ticker.advance(FRAME_NANOS);
+      manager.onUpdate();
+    }
+  }
+
+  private void runUntilDone(CloudAnchorManager manager) {
+    for (int frame = 0; manager.getPendingCount() > 0; ++frame) {
+      assertTrue("Did not complete", frame < MAX_FRAMES);
+      runFrames(manager, 1);
+    }
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; ++i) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import com.google.ar.core.examples.java.common.rendering.TriangleMesh;
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests {@link ObjectPicker}, and measures a tap in a scene of 1,000 objects. */
+public class ObjectPickerTest {
+  // Unit tests run from the module directory.
+  private static final String MODEL_PATH = "src/main/assets/models/andy.obj";
+  // The scale CloudAnchorActivity draws the model at.
+  private static final float SCALE = 2.0f;
+  private static final int GRID_SIZE = 10;
+  private static final float SPACING_M = 0.5f;
+  private static final float RAY_LENGTH_M = 20.0f;
+  private static final int WARM_UP_PICKS = 2000;
+  private static final int MEASURED_PICKS = 10000;
+  private static final double MAX_MEAN_PICK_MS = 0.5;
+
+  private final SceneStore store = new SceneStore();
+  private final SceneBvh bvh = new SceneBvh();
+  private final ObjectPicker picker = new ObjectPicker();
+  private TriangleMesh[] meshes;
+  private int[][][] handles;
+
+  @Before
+  public void setUp() throws IOException {
+    meshes = new TriangleMesh[] {loadMesh(MODEL_PATH)};
+    float[] modelLocalBounds = new float[6];
+    meshes[0].getBounds(modelLocalBounds, 0);
+
+    // A cube of GRID_SIZE^3 objects, from the origin towards +x, +y and -z.
+    handles = new int[GRID_SIZE][GRID_SIZE][GRID_SIZE];
+    float[] color = {1, 1, 1, 1};
+    for (int x = 0; x < GRID_SIZE; ++x) {
+      for (int y = 0; y < GRID_SIZE; ++y) {
+        for (int z = 0; z < GRID_SIZE; ++z) {
+          Anchor anchor = mock(Anchor.class);
+          when(anchor.getTrackingState()).thenReturn(TrackingState.TRACKING);
+          when(anchor.getPose())
+              .thenReturn(Pose.makeTranslation(x * SPACING_M, y * SPACING_M, -z * SPACING_M));
+          handles[x][y][z] = store.add(anchor, 0, SCALE, color, SceneStore.CLOUD_STATE_LOCAL);
+        }
+      }
+    }
+    store.updatePoses(Collections.emptyList(), 1);
+    bvh.update(store, modelLocalBounds);
+    store.clearDirtyBits();
+  }
+
+  @Test
+  public void pickRay_returnsNearestObject() {
+    // Straight into a row of objects, at the height of their bodies.
+    float[] origin = {2 * SPACING_M, 3 * SPACING_M + 0.2f, 2.0f};
+    float[] direction = {0, 0, -RAY_LENGTH_M};
+
+    assertEquals(handles[2][3][0], picker.pickRay(origin, direction, store, bvh, meshes));
+  }
+
+  @Test
+  public void pickRay_missesBetweenObjects() {
+    float[] origin = {2.5f * SPACING_M, 3 * SPACING_M + 0.2f, 2.0f};
+    float[] direction = {0, 0, -RAY_LENGTH_M};
+
+    assertEquals(
+        SceneStore.INVALID_HANDLE, picker.pickRay(origin, direction, store, bvh, meshes));
+  }
+
+  @Test
+  public void pickRay_1000Objects_takesWellUnderAMillisecond() {
+    // Taps from a camera in front of the cube, towards random points inside of it, so that most
+    // rays cross the bounds of many objects.
+    Random random = new Random(42);
+    float extent = (GRID_SIZE - 1) * SPACING_M;
+    float[] origin = {extent / 2, extent / 2, 2.0f};
+    float[][] directions = new float[WARM_UP_PICKS + MEASURED_PICKS][3];
+    for (float[] direction : directions) {
+      direction[0] = random.nextFloat() * extent - origin[0];
+      direction[1] = random.nextFloat() * extent - origin[1];
+      direction[2] = -random.nextFloat() * extent - origin[2];
+      float scale =
+          RAY_LENGTH_M
+              / (float)
+                  Math.sqrt(
+                      direction[0] * direction[0]
+                          + direction[1] * direction[1]
+                          + direction[2] * direction[2]);
+      for (int axis = 0; axis < 3; ++axis) {
+        direction[axis] *= scale;
+      }
+    }
+
+    for (int p = 0; p < WARM_UP_PICKS; ++p) {
+      picker.pickRay(origin, directions[p], store, bvh, meshes);
+    }
+    long[] pickNanos = new long[MEASURED_PICKS];
+    int hits = 0;
+    for (int p = 0; p < MEASURED_PICKS; ++p) {
+      long start = System.nanoTime();
+      int handle = picker.pickRay(origin, directions[WARM_UP_PICKS + p], store, bvh, meshes);
+      pickNanos[p] = System.nanoTime() - start;
+      if (handle != SceneStore.INVALID_HANDLE) {
+        hits++;
+      }
+    }
+
+    Arrays.sort(pickNanos);
+    double meanMs = Arrays.stream(pickNanos).average().getAsDouble() / 1e6;
+    double p99Ms = pickNanos[MEASURED_PICKS * 99 / 100] / 1e6;
+    double maxMs = pickNanos[MEASURED_PICKS - 1] / 1e6;
+    System.out.printf(
+        "ObjectPicker: %d objects of %d triangles, %d%% hits, mean %.4f ms, p99 %.4f ms,"
+            + " max %.4f ms per pick%n",
+        store.size(),
+        meshes[0].getTriangleCount(),
+        100 * hits / MEASURED_PICKS,
+        meanMs,
+        p99Ms,
+        maxMs);
+    assertTrue("Mean pick took " + meanMs + " ms", meanMs < MAX_MEAN_PICK_MS);
+  }
+
+  private static TriangleMesh loadMesh(String path) throws IOException {
+    Obj obj;
+    try (InputStream input = new FileInputStream(path)) {
+      obj = ObjUtils.convertToRenderable(ObjReader.read(input));
+    }
+    FloatBuffer vertexBuffer = ObjData.getVertices(obj);
+    float[] vertices = new float[vertexBuffer.limit()];
+    vertexBuffer.get(vertices);
+    IntBuffer indexBuffer = ObjData.getFaceVertexIndices(obj, 3);
+    int[] indices = new int[indexBuffer.limit()];
+    indexBuffer.get(indices);
+    return new TriangleMesh(vertices, indices);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests {@link PoseSmoother}, and measures the cost of smoothing the poses of a full scene. */
+public class PoseSmootherTest {
+  private static final int ANCHOR_COUNT = 1000;
+  private static final float FRAME_SECONDS = 1.0f / 60;
+  private static final int WARM_UP_FRAMES = 500;
+  private static final int MEASURED_FRAMES = 2000;
+  // A frame at 60 Hz lasts 16.7 ms, so smoothing must only take a small part of it.
+  private static final double MAX_MEAN_FRAME_MS = 1.0;
+
+  // The constants used by CloudAnchorActivity.
+  private final PoseSmoother smoother = new PoseSmoother(1.0f, 10.0f, 2.0f, 1.0f);
+
+  @Test
+  public void step_convergesToTarget() {
+    float[] states = new float[PoseSmoother.FLOATS_PER_STATE];
+    float[] start = {0, 0, 0, 0, 0, 0, 1};
+    float[] target = {0.05f, 0, -0.02f, 0, 0.0998f, 0, 0.995f};
+    PoseSmoother.reset(states, 0, start, 0);
+
+    int frames = 0;
+    while (smoother.step(states, 0, target, 0, FRAME_SECONDS)) {
+      assertTrue("Did not converge", ++frames < 600);
+    }
+
+    assertTrue(frames > 1);
+    assertFalse(smoother.step(states, 0, target, 0, FRAME_SECONDS));
+    for (int i = 0; i < PoseSmoother.FLOATS_PER_POSE; ++i) {
+      assertEquals(target[i], states[i], 0);
+    }
+  }
+
+  @Test
+  public void step_1000Anchors_fitsInAFrame() {
+    float[] states = new float[ANCHOR_COUNT * PoseSmoother.FLOATS_PER_STATE];
+    float[] matrices = new float[ANCHOR_COUNT * 16];
+    // Two sets of targets a few centimeters and degrees apart, alternated every few frames like
+    // the refinements ARCore reports, so that no state ever converges.
+    float[][] targets = {randomPoses(new Random(1)), randomPoses(new Random(2))};
+    for (int i = 0; i < ANCHOR_COUNT; ++i) {
+      PoseSmoother.reset(
+          states,
+          i * PoseSmoother.FLOATS_PER_STATE,
+          targets[0],
+          i * PoseSmoother.FLOATS_PER_POSE);
+    }
+
+    for (int frame = 0; frame < WARM_UP_FRAMES; ++frame) {
+      stepAll(states, targets[(frame / 10) % 2], matrices);
+    }
+    long[] frameNanos = new long[MEASURED_FRAMES];
+    int smoothing = 0;
+    for (int frame = 0; frame < MEASURED_FRAMES; ++frame) {
+      long start = System.nanoTime();
+      smoothing += stepAll(states, targets[(frame / 10) % 2], matrices);
+      frameNanos[frame] = System.nanoTime() - start;
+    }
+
+    Arrays.sort(frameNanos);
+    double meanMs = Arrays.stream(frameNanos).average().getAsDouble() / 1e6;
+    double medianMs = frameNanos[MEASURED_FRAMES / 2] / 1e6;
+    double p99Ms = frameNanos[MEASURED_FRAMES * 99 / 100] / 1e6;
+    System.out.printf(
+        "PoseSmoother: %d anchors, %.1f%% smoothing, mean %.3f ms, median %.3f ms,"
+            + " p99 %.3f ms per frame%n",
+        ANCHOR_COUNT,
+        100.0 * smoothing / ((long) ANCHOR_COUNT * MEASURED_FRAMES),
+        meanMs,
+        medianMs,
+        p99Ms);
+    assertTrue("Mean frame took " + meanMs + " ms", meanMs < MAX_MEAN_FRAME_MS);
+  }
+
+  /** Steps every state and writes its matrix, like SceneStore does. Returns the moving ones. */
+  private int stepAll(float[] states, float[] targets, float[] matrices) {
+    int moving = 0;
+    for (int i = 0; i < ANCHOR_COUNT; ++i) {
+      int stateOffset = i * PoseSmoother.FLOATS_PER_STATE;
+      if (smoother.step(
+          states, stateOffset, targets, i * PoseSmoother.FLOATS_PER_POSE, FRAME_SECONDS)) {
+        moving++;
+      }
+      PoseSmoother.toMatrix(states, stateOffset, matrices, i * 16);
+    }
+    return moving;
+  }
+
+  /** Returns poses near each other, but with random refinements. */
+  private static float[] randomPoses(Random random) {
+    float[] poses = new float[ANCHOR_COUNT * PoseSmoother.FLOATS_PER_POSE];
+    for (int i = 0; i < ANCHOR_COUNT; ++i) {
+      int offset = i * PoseSmoother.FLOATS_PER_POSE;
+      Random anchorRandom = new Random(i);
+      for (int axis = 0; axis < 3; ++axis) {
+        poses[offset + axis] = anchorRandom.nextFloat() * 10 + random.nextFloat() * 0.05f;
+      }
+      float angle = anchorRandom.nextFloat() * 6.28f + random.nextFloat() * 0.05f;
+      poses[offset + 4] = (float) Math.sin(angle / 2);
+      poses[offset + 6] = (float) Math.cos(angle / 2);
+    }
+    return poses;
+  }
+}